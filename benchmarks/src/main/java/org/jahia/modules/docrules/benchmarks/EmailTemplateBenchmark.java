@@ -0,0 +1,146 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.benchmarks;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+
+import org.jahia.modules.docrules.EmailDocumentRule;
+import org.jahia.modules.docrules.mail.MailSender;
+import org.jahia.modules.docrules.mail.RecipientResolver;
+import org.jahia.modules.docrules.mail.TemplateRenderer;
+import org.jahia.modules.docrules.mail.TemplateRenderer.TemplateException;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRPropertyWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the evaluation of the subject and body templates of the e-mail notification rule. The templates are the default
+ * ones from the module's Spring configuration. The mail is "sent" to a no-op sender.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class EmailTemplateBenchmark {
+
+    private static final String BODY = "<html>\n"
+            + "<head>\n"
+            + "<meta http-equiv=\"Content-Type\" content=\"text/html;charset=utf-8\" />\n"
+            + "<title>Document update</title>\n"
+            + "</head>\n"
+            + "<body>\n"
+            + "<h2>Document uploaded/updated</h2>\n"
+            + "<p>\n"
+            + "<strong>File: </strong><a href=\"http://localhost:8080${document.url}\">${document.name}</a><br/>\n"
+            + "<strong>Folder: </strong>${document.parent.path}<br/>\n"
+            + "<strong>Created: </strong>${document.propertiesAsString.get(\"jcr:created\")}<br/>\n"
+            + "<strong>Created by: </strong>${document.propertiesAsString.get(\"jcr:createdBy\")}<br/>\n"
+            + "<strong>Modified: </strong>${document.propertiesAsString.get(\"jcr:lastModified\")}<br/>\n"
+            + "<strong>Modified by: </strong>${document.propertiesAsString.get(\"jcr:lastModifiedBy\")}<br/>\n"
+            + "</p>\n"
+            + "<p>With best regards<br/>Portal Team</p>\n"
+            + "</body>\n"
+            + "</html>";
+
+    private static final String SUBJECT = "Document notification: ${document.parent.name}/${document.name}";
+
+    private JCRNodeWrapper document;
+
+    private TemplateRenderer renderer;
+
+    private EmailDocumentRule rule;
+
+    @Benchmark
+    public String renderBody() throws TemplateException {
+        return renderer.render(BODY, Collections.<String, Object> singletonMap("document", document));
+    }
+
+    @Benchmark
+    public String renderSubject() throws TemplateException {
+        return renderer.render(SUBJECT,
+                Collections.<String, Object> singletonMap("document", document));
+    }
+
+    @Benchmark
+    public void execute() throws RepositoryException {
+        rule.execute(document);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        renderer = new TemplateRenderer();
+        renderer.afterPropertiesSet();
+
+        JCRNodeWrapper folder = Mocks.newFolder("/sites/acme/files/contracts", "documentRuleEmail");
+        document = Mocks.newDocument(folder, "agreement.docx");
+
+        RecipientResolver recipients = mock(RecipientResolver.class);
+        when(recipients.resolve(anyInt(), anyString())).thenReturn(
+                new String[] { "john.doe@example.com", "jane.doe@example.com" });
+        JCRNodeWrapper group = mock(JCRNodeWrapper.class);
+        when(group.getName()).thenReturn("contract-managers");
+        JCRPropertyWrapper to = mock(JCRPropertyWrapper.class);
+        when(to.getNode()).thenReturn(group);
+        when(folder.hasProperty("j:documentRuleTo")).thenReturn(true);
+        when(folder.getProperty("j:documentRuleTo")).thenReturn(to);
+
+        rule = new EmailDocumentRule();
+        rule.setMailSender(mock(MailSender.class));
+        rule.setRecipientResolver(recipients);
+        rule.setTemplateRenderer(renderer);
+        rule.setSubject(SUBJECT);
+        rule.setBody(BODY);
+    }
+}
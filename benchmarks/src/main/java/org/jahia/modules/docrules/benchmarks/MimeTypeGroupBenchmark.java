@@ -0,0 +1,109 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jahia.modules.docrules.CreatePDFDocumentRule;
+import org.jahia.modules.docrules.MimeTypeMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the MIME type group check of the PDF conversion rule: the static
+ * {@link CreatePDFDocumentRule#isMimeTypeGroup(String, String...)} call, which looks up the matcher of the groups in the cache,
+ * and the compilation of the groups on each invocation against the precompiled matcher, used by
+ * {@link CreatePDFDocumentRule#isApplicable}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MimeTypeGroupBenchmark {
+
+    private static final String[][] GROUP_SETS = new String[][] {
+            // the default supported document formats of the PDF conversion rule
+            { "word", "rtf", "excel", "powerpoint", "openoffice", "text/*" },
+            // a single group
+            { "pdf" },
+            // all groups together with explicit MIME types and wildcards
+            { "pdf", "word", "rtf", "excel", "powerpoint", "openoffice", "archive", "image",
+                    "video", "html", "text/plain", "application/x-*-script" } };
+
+    private String[] groups;
+
+    @Param({ "0", "1", "2" })
+    public int groupSet;
+
+    private MimeTypeMatcher matcher;
+
+    @Param({ "application/msword", "application/vnd.oasis.opendocument.text", "text/csv",
+            "application/octet-stream" })
+    public String mimeType;
+
+    @Benchmark
+    public boolean compileOnEachCall() {
+        return MimeTypeMatcher.compile(groups).matches(mimeType);
+    }
+
+    @Benchmark
+    public boolean isMimeTypeGroup() {
+        return CreatePDFDocumentRule.isMimeTypeGroup(mimeType, groups);
+    }
+
+    @Benchmark
+    public boolean precompiledMatcher() {
+        return matcher.matches(mimeType);
+    }
+
+    @Setup
+    public void setup() {
+        Mocks.initContentUtils();
+        groups = GROUP_SETS[groupSet];
+        matcher = MimeTypeMatcher.compile(groups);
+    }
+}
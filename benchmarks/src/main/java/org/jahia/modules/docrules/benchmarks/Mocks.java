@@ -0,0 +1,204 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Workspace;
+
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRPropertyWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.nodetypes.ExtendedNodeType;
+
+/**
+ * In-memory stand-ins for the Jahia services and JCR nodes, used by the benchmarks instead of a running Jahia server. The
+ * stand-ins are stub-only mocks, which do not record their invocations, so that the measured code does not pay for the mocking
+ * framework bookkeeping and its memory does not grow during a benchmark run.
+ * 
+ * @author Sergiy Shyrkov
+ */
+final class Mocks {
+
+    /**
+     * Returns the MIME type group definitions, equivalent to the default ones of Jahia.
+     * 
+     * @return the MIME type group definitions, equivalent to the default ones of Jahia
+     */
+    static Map<String, List<String>> getMimeTypeGroups() {
+        Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+        groups.put("pdf", Arrays.asList("application/pdf"));
+        groups.put("word", Arrays.asList("application/msword",
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.template"));
+        groups.put("rtf", Arrays.asList("text/rtf", "application/rtf"));
+        groups.put("excel", Arrays.asList("application/vnd.ms-excel", "application/excel",
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.template"));
+        groups.put("powerpoint", Arrays.asList("application/vnd.ms-powerpoint",
+                "application/mspowerpoint",
+                "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+                "application/vnd.openxmlformats-officedocument.presentationml.slideshow"));
+        groups.put("openoffice", Arrays.asList("application/vnd.oasis.opendocument.*",
+                "application/vnd.sun.xml.*"));
+        groups.put("archive", Arrays.asList("application/zip", "application/x-tar",
+                "application/x-gzip", "application/x-*-compressed"));
+        groups.put("image", Arrays.asList("image/*"));
+        groups.put("video", Arrays.asList("video/*"));
+        groups.put("html", Arrays.asList("text/html", "application/xhtml+xml"));
+
+        return groups;
+    }
+
+    /**
+     * Initializes the {@link JCRContentUtils} singleton with the default MIME type groups.
+     */
+    static void initContentUtils() {
+        new JCRContentUtils(getMimeTypeGroups(), new HashMap<String, String>());
+    }
+
+    /**
+     * Creates a document node stub inside the provided folder.
+     * 
+     * @param folder
+     *            the parent folder
+     * @param name
+     *            the document name
+     * @return a document node stub
+     * @throws RepositoryException
+     *             in case of a stubbing error
+     */
+    static JCRNodeWrapper newDocument(JCRNodeWrapper folder, String name)
+            throws RepositoryException {
+        JCRNodeWrapper doc = stub(JCRNodeWrapper.class);
+        String path = folder.getPath() + "/" + name;
+        when(doc.getName()).thenReturn(name);
+        when(doc.getPath()).thenReturn(path);
+        when(doc.getIdentifier()).thenReturn("doc-" + name);
+        when(doc.getUrl()).thenReturn("/cms/render/default/en" + path);
+        when(doc.getParent()).thenReturn(folder);
+        JCRSessionWrapper session = folder.getSession();
+        when(doc.getSession()).thenReturn(session);
+
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("jcr:created", "2013-01-15T10:21:00.000+01:00");
+        props.put("jcr:createdBy", "root");
+        props.put("jcr:lastModified", "2013-01-15T10:24:00.000+01:00");
+        props.put("jcr:lastModifiedBy", "root");
+        when(doc.getPropertiesAsString()).thenReturn(props);
+
+        return doc;
+    }
+
+    /**
+     * Creates a folder node stub with the specified document rules.
+     * 
+     * @param path
+     *            the folder path
+     * @param rules
+     *            the rule bean IDs (e.g. documentRuleEmail); a trailing <code>*</code> marks the rule to be executed as a
+     *            background job
+     * @return a folder node stub with the specified document rules
+     * @throws RepositoryException
+     *             in case of a stubbing error
+     */
+    static JCRNodeWrapper newFolder(String path, String... rules) throws RepositoryException {
+        JCRNodeWrapper folder = stub(JCRNodeWrapper.class);
+        when(folder.getPath()).thenReturn(path);
+        when(folder.getName()).thenReturn(path.substring(path.lastIndexOf('/') + 1));
+        when(folder.getIdentifier()).thenReturn("folder-" + path);
+
+        JCRSessionWrapper session = stub(JCRSessionWrapper.class);
+        Workspace workspace = stub(Workspace.class);
+        when(workspace.getName()).thenReturn(Constants.EDIT_WORKSPACE);
+        when(session.getWorkspace()).thenReturn(workspace);
+        when(folder.getSession()).thenReturn(session);
+
+        ExtendedNodeType[] mixins = new ExtendedNodeType[rules.length + 1];
+        mixins[0] = newMixin("jmix:applyDocumentRules");
+        for (int i = 0; i < rules.length; i++) {
+            boolean background = rules[i].endsWith("*");
+            String rule = background ? rules[i].substring(0, rules[i].length() - 1) : rules[i];
+            mixins[i + 1] = newMixin("jmix:" + rule);
+            String backgroundProperty = "j:" + rule + "AsBackgroundJob";
+            when(folder.hasProperty(backgroundProperty)).thenReturn(true);
+            JCRPropertyWrapper property = stub(JCRPropertyWrapper.class);
+            when(property.getBoolean()).thenReturn(background);
+            when(folder.getProperty(backgroundProperty)).thenReturn(property);
+        }
+        when(folder.isNodeType("jmix:applyDocumentRules")).thenReturn(rules.length > 0);
+        when(folder.getMixinNodeTypes()).thenReturn(mixins);
+
+        return folder;
+    }
+
+    private static ExtendedNodeType newMixin(String name) {
+        ExtendedNodeType mixin = stub(ExtendedNodeType.class);
+        when(mixin.getName()).thenReturn(name);
+        when(mixin.isNodeType("jmix:applyDocumentRules")).thenReturn(true);
+        return mixin;
+    }
+
+    /**
+     * Creates a stub-only mock of the specified type, which does not record its invocations.
+     * 
+     * @param type
+     *            the type to be stubbed
+     * @return a stub-only mock of the specified type
+     */
+    static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+
+    private Mocks() {
+        super();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.benchmarks;
+
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+
+import org.jahia.modules.docrules.execution.DocumentRuleCoalescer;
+import org.jahia.modules.docrules.rules.DocumentRulesRuleService;
+import org.jahia.modules.docrules.rules.FolderRules;
+import org.jahia.modules.docrules.rules.FolderRulesCache;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.rules.AddedNodeFact;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the resolution of the document rules in {@link DocumentRulesRuleService#executeRules}, i.e. the rule lookup on the
+ * parent folder and the dispatching of the background rules. The rules themselves are not executed: all of them are declared as
+ * background jobs and are handed over to a no-op coalescer.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class RuleResolutionBenchmark {
+
+    private static final String[][] RULE_SETS = new String[][] { { "documentRuleCreatePdf*" },
+            { "documentRuleCreatePdf*", "documentRuleEmail*" },
+            { "documentRuleCreatePdf*", "documentRuleEmail*", "documentRuleTagging*",
+                    "documentRuleAutoPublish*" } };
+
+    private JCRNodeWrapper folder;
+
+    private AddedNodeFact nodeFact;
+
+    @Param({ "0", "1", "2" })
+    public int ruleSet;
+
+    private DocumentRulesRuleService service;
+
+    @Benchmark
+    public void executeRules() throws RepositoryException {
+        service.executeRules(nodeFact, null);
+    }
+
+    @Benchmark
+    public FolderRules resolveUncached() throws RepositoryException {
+        return FolderRules.resolve(folder);
+    }
+
+    @Setup
+    public void setup() throws RepositoryException {
+        folder = Mocks.newFolder("/sites/acme/files/contracts", RULE_SETS[ruleSet]);
+        JCRNodeWrapper document = Mocks.newDocument(folder, "agreement.docx");
+        nodeFact = Mocks.stub(AddedNodeFact.class);
+        when(nodeFact.getNode()).thenReturn(document);
+
+        service = new DocumentRulesRuleService();
+        service.setFolderRulesCache(new FolderRulesCache());
+        service.setCoalescer(Mocks.stub(DocumentRuleCoalescer.class));
+    }
+}
@@ -0,0 +1,719 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.nodetype.PropertyDefinition;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
+import org.jahia.api.Constants;
+import org.jahia.modules.docrules.stats.DocumentRuleStatistics;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRPropertyWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.jahia.services.content.nodetypes.NodeTypeRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Records a processing fingerprint per rule and workspace for the documents and detects, if a rule was already executed on the
+ * same document content with the same rule settings of the folder. This way moving or renaming a document, which also fires
+ * the document rules, does not repeat the PDF conversion, tagging or e-mail notification, when the binary is unchanged.
+ * <p>
+ * The fingerprint consists of the content identity of the <code>jcr:data</code> binary (the data store identifier, if
+ * available, or the content length and the last modification date otherwise), the MIME type and a digest of the folder
+ * properties, declared by the rule mixin. For the rules, which produce output in the document folder (see
+ * {@link #setOutputRules(Set)}), the folder identifier is part of the fingerprint as well, so that the output is created again
+ * in the target folder of a move. Only the rules, explicitly configured via {@link #setRules(Set)}, are subject to the skipping:
+ * rules like auto-publication must run on every move.
+ * <p>
+ * The fingerprints are not stored on the document itself, but in a separate node per document under {@link #setStorePath(String)}
+ * in the default workspace, one property per rule. They are written by a single background thread in its own system session,
+ * only after the document state, the fingerprint was computed for, is persisted, so that they never add changes to the session
+ * of a rule and never conflict with rules, executed concurrently on the same document. Failed writes are retried. The
+ * fingerprint node of a document is removed, when the document is deleted (see {@link #remove(String, String)}), and a periodic
+ * sweep removes the remaining ones, which document no longer exists (see {@link #setSweepInterval(long)}).
+ * <p>
+ * The stored fingerprints are kept in a bounded in-memory cache. They are read using the session of the document, if it is a
+ * system session of the default workspace, so that checking a fingerprint does not open a session on every rule execution.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=DocumentRuleFingerprints",
+        description = "Change-aware skipping of document rules")
+public class DocumentRuleFingerprints implements InitializingBean, DisposableBean {
+
+    private static final class Record {
+
+        private int attempts;
+
+        private final String fingerprint;
+
+        private final String ruleBeanId;
+
+        private final String uuid;
+
+        private final String workspace;
+
+        Record(String workspace, String uuid, String ruleBeanId, String fingerprint) {
+            super();
+            this.workspace = workspace;
+            this.uuid = uuid;
+            this.ruleBeanId = ruleBeanId;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static final String FOLDER_TYPE = "jnt:documentRuleFingerprintFolder";
+
+    private static final String NONE = "";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final DocumentRuleFingerprints INSTANCE = new DocumentRuleFingerprints();
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRuleFingerprints.class);
+
+    private static final String TYPE = "jnt:documentRuleFingerprints";
+
+    /**
+     * Returns the singleton instance of this class.
+     * 
+     * @return the singleton instance of this class
+     */
+    public static DocumentRuleFingerprints getInstance() {
+        return INSTANCE;
+    }
+
+    private static boolean exists(JCRSessionWrapper session, String uuid)
+            throws RepositoryException {
+        try {
+            session.getNodeByIdentifier(uuid);
+            return true;
+        } catch (ItemNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static String getCacheKey(String workspace, String uuid, String ruleBeanId) {
+        return workspace + "/" + uuid + "/" + ruleBeanId;
+    }
+
+    private static String getContentIdentity(JCRNodeWrapper document, JCRNodeWrapper content)
+            throws RepositoryException {
+        Node realNode = document.getRealNode();
+        if (realNode != null && realNode.hasNode(Constants.JCR_CONTENT)) {
+            Node realContent = realNode.getNode(Constants.JCR_CONTENT);
+            if (realContent.hasProperty(Constants.JCR_DATA)) {
+                Value data = realContent.getProperty(Constants.JCR_DATA).getValue();
+                if (data instanceof JackrabbitValue) {
+                    // content is in the data store: the identity is the digest of the binary
+                    String identity = ((JackrabbitValue) data).getContentIdentity();
+                    if (identity != null) {
+                        return identity;
+                    }
+                }
+            }
+        }
+        if (!content.hasProperty(Constants.JCR_DATA)
+                || !content.hasProperty(Constants.JCR_LASTMODIFIED)) {
+            return null;
+        }
+
+        return content.getProperty(Constants.JCR_DATA).getLength() + "@"
+                + content.getProperty(Constants.JCR_LASTMODIFIED).getDate().getTimeInMillis();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return hex.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        // separator, so that the adjacent values are not ambiguous
+        digest.update((byte) 0);
+    }
+
+    private final AtomicLong abandoned = new AtomicLong();
+
+    private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 2912650837340961270L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxCachedEntries;
+        }
+    };
+
+    private int maxAttempts = 10;
+
+    private int maxCachedEntries = 10000;
+
+    private Set<String> outputRules = Collections.emptySet();
+
+    private final AtomicLong recorded = new AtomicLong();
+
+    private final AtomicLong removed = new AtomicLong();
+
+    private long retryDelay = 2000;
+
+    private Set<String> rules = Collections.emptySet();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private String storePath = "/settings/documentRuleFingerprints";
+
+    private long sweepInterval = 24 * 60 * 60 * 1000L;
+
+    private volatile ScheduledThreadPoolExecutor writer;
+
+    private DocumentRuleFingerprints() {
+        super();
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-fingerprints");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (sweepInterval > 0) {
+            writer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        sweep();
+                    } catch (Exception e) {
+                        logger.warn("Error removing fingerprints of deleted documents", e);
+                    }
+                }
+            }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Computes the processing fingerprint of the specified rule on the document.
+     * 
+     * @param document
+     *            the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the processing fingerprint of the specified rule on the document or <code>null</code> if the rule is not subject to
+     *         the change-aware skipping or the document content cannot be identified
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public String compute(JCRNodeWrapper document, String ruleBeanId) throws RepositoryException {
+        if (!rules.contains(ruleBeanId) || !document.hasNode(Constants.JCR_CONTENT)) {
+            return null;
+        }
+        JCRNodeWrapper content = document.getNode(Constants.JCR_CONTENT);
+        String identity = getContentIdentity(document, content);
+        if (identity == null) {
+            return null;
+        }
+
+        MessageDigest digest = newDigest();
+        update(digest, identity);
+        update(digest, content.hasProperty("jcr:mimeType") ? content.getProperty("jcr:mimeType")
+                .getString() : "");
+        JCRNodeWrapper folder = document.getParent();
+        if (outputRules.contains(ruleBeanId)) {
+            // the output is created in the document folder
+            update(digest, folder.getIdentifier());
+        }
+        try {
+            PropertyDefinition[] definitions = NodeTypeRegistry.getInstance()
+                    .getNodeType("jmix:" + ruleBeanId).getPropertyDefinitions();
+            for (PropertyDefinition definition : definitions) {
+                String name = definition.getName();
+                if (!"*".equals(name) && folder.hasProperty(name)) {
+                    update(digest, name);
+                    JCRPropertyWrapper property = folder.getProperty(name);
+                    if (property.isMultiple()) {
+                        for (Value value : property.getValues()) {
+                            update(digest, value.getString());
+                        }
+                    } else {
+                        update(digest, property.getString());
+                    }
+                }
+            }
+        } catch (NoSuchNodeTypeException e) {
+            // the rule has no settings
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public void destroy() throws Exception {
+        if (writer != null) {
+            writer.shutdown();
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+            writer = null;
+        }
+    }
+
+    @ManagedAttribute(description = "Number of fingerprints, which were not stored as the document state was not persisted")
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    @ManagedAttribute(description = "Number of fingerprints, waiting to be stored or removed")
+    public int getPending() {
+        ScheduledThreadPoolExecutor current = writer;
+        // the periodic sweep is not counted
+        return current != null ? Math.max(current.getQueue().size() - (sweepInterval > 0 ? 1 : 0),
+                0) : 0;
+    }
+
+    @ManagedAttribute(description = "Number of recorded fingerprints")
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    @ManagedAttribute(description = "Number of removed fingerprint nodes of deleted documents")
+    public long getRemoved() {
+        return removed.get();
+    }
+
+    @ManagedAttribute(description = "Bean IDs of the rules, which are skipped if the document was not changed")
+    public Set<String> getRules() {
+        return rules;
+    }
+
+    @ManagedAttribute(description = "Number of rule executions skipped as the document was not changed")
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the stored fingerprint of the rule for the document from the cache or reads it from the store.
+     */
+    private String getStored(JCRNodeWrapper document, final String ruleBeanId)
+            throws RepositoryException {
+        JCRSessionWrapper documentSession = document.getSession();
+        String workspace = documentSession.getWorkspace().getName();
+        String uuid = document.getIdentifier();
+        String key = getCacheKey(workspace, uuid, ruleBeanId);
+        String stored;
+        synchronized (cache) {
+            stored = cache.get(key);
+        }
+        if (stored == null) {
+            final String path = getStorePath(workspace, uuid);
+            if (documentSession.isSystem() && Constants.EDIT_WORKSPACE.equals(workspace)) {
+                stored = read(documentSession, path, ruleBeanId);
+            } else {
+                stored = JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                        Constants.EDIT_WORKSPACE, new JCRCallback<String>() {
+                            public String doInJCR(JCRSessionWrapper session)
+                                    throws RepositoryException {
+                                return read(session, path, ruleBeanId);
+                            }
+                        });
+            }
+            synchronized (cache) {
+                if (!cache.containsKey(key)) {
+                    // a fingerprint, written meanwhile, is not replaced
+                    cache.put(key, stored);
+                }
+            }
+        }
+
+        return stored.length() > 0 ? stored : null;
+    }
+
+    private String getStorePath(String workspace, String uuid) {
+        String key = uuid.replace("-", "");
+        return storePath + "/" + workspace + "/" + key.substring(0, 2) + "/" + key.substring(2, 4)
+                + "/" + uuid;
+    }
+
+    /**
+     * Checks if the specified rule was already executed on the document with the same fingerprint. The skipped execution is
+     * accounted in the rule statistics.
+     * 
+     * @param document
+     *            the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param fingerprint
+     *            the current fingerprint (see {@link #compute(JCRNodeWrapper, String)})
+     * @return <code>true</code> if the rule was already executed on the document with the same fingerprint
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public boolean isUnchanged(JCRNodeWrapper document, String ruleBeanId, String fingerprint)
+            throws RepositoryException {
+        if (fingerprint == null) {
+            return false;
+        }
+        if (fingerprint.equals(getStored(document, ruleBeanId))) {
+            skipped.incrementAndGet();
+            DocumentRuleStatistics.getInstance().recordUnchanged(ruleBeanId);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Document {} was not changed since the last execution of rule {}."
+                        + " Skipping it.", document.getPath(), ruleBeanId);
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private String read(JCRSessionWrapper session, String path, String ruleBeanId)
+            throws RepositoryException {
+        if (!session.nodeExists(path)) {
+            return NONE;
+        }
+        JCRNodeWrapper node = session.getNode(path);
+        return node.hasProperty(ruleBeanId) ? node.getProperty(ruleBeanId).getString() : NONE;
+    }
+
+    /**
+     * Stores the fingerprint of the specified rule for the document, replacing the previous one of this rule and workspace. The
+     * fingerprint is written asynchronously in a separate session, as soon as the document state, it was computed for, is
+     * persisted, i.e. the session of the rule was saved; the session of the document is not modified. If the document state is
+     * not persisted after the configured number of attempts (e.g. the changes were discarded), the fingerprint is abandoned.
+     * 
+     * @param document
+     *            the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param fingerprint
+     *            the fingerprint (see {@link #compute(JCRNodeWrapper, String)}); <code>null</code> values are ignored
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public void record(JCRNodeWrapper document, String ruleBeanId, String fingerprint)
+            throws RepositoryException {
+        if (fingerprint == null || writer == null) {
+            return;
+        }
+        schedule(new Record(document.getSession().getWorkspace().getName(),
+                document.getIdentifier(), ruleBeanId, fingerprint), 0);
+    }
+
+    /**
+     * Removes the stored fingerprints of the specified document asynchronously. Is called when the document is deleted.
+     * 
+     * @param workspace
+     *            the workspace of the document
+     * @param uuid
+     *            the identifier of the document
+     */
+    public void remove(final String workspace, final String uuid) {
+        ScheduledThreadPoolExecutor current = writer;
+        if (current == null || current.isShutdown()) {
+            return;
+        }
+        current.execute(new Runnable() {
+            public void run() {
+                try {
+                    JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                            Constants.EDIT_WORKSPACE, new JCRCallback<Boolean>() {
+                                public Boolean doInJCR(JCRSessionWrapper session)
+                                        throws RepositoryException {
+                                    String path = getStorePath(workspace, uuid);
+                                    if (!session.nodeExists(path)) {
+                                        return Boolean.FALSE;
+                                    }
+                                    session.getNode(path).remove();
+                                    session.save();
+                                    removed.incrementAndGet();
+                                    return Boolean.TRUE;
+                                }
+                            });
+                } catch (RepositoryException e) {
+                    // the periodic sweep will remove it
+                    logger.debug("Error removing fingerprints of the deleted document " + uuid, e);
+                }
+            }
+        });
+    }
+
+    private void schedule(final Record record, long delay) {
+        ScheduledThreadPoolExecutor current = writer;
+        if (current == null || current.isShutdown()) {
+            return;
+        }
+        current.schedule(new Runnable() {
+            public void run() {
+                try {
+                    if (write(record)) {
+                        recorded.incrementAndGet();
+                        return;
+                    }
+                } catch (RepositoryException e) {
+                    // e.g. a concurrent modification of the fingerprint node by another cluster member
+                    logger.debug("Error storing fingerprint of rule " + record.ruleBeanId
+                            + " for document " + record.uuid + ". Will retry.", e);
+                }
+                if (++record.attempts < maxAttempts) {
+                    schedule(record, retryDelay * record.attempts);
+                } else {
+                    abandoned.incrementAndGet();
+                    logger.debug("Abandoning fingerprint of rule {} for document {}",
+                            record.ruleBeanId, record.uuid);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Sets the maximum number of stored fingerprints, kept in memory. The least recently used ones are evicted first.
+     * 
+     * @param maxCachedEntries
+     *            the maximum number of stored fingerprints, kept in memory
+     */
+    public void setMaxCachedEntries(int maxCachedEntries) {
+        this.maxCachedEntries = maxCachedEntries;
+    }
+
+    /**
+     * Sets the bean IDs of the rules, which produce output (e.g. a PDF version) in the folder of the document. The fingerprint of
+     * these rules includes the folder identifier, so moving a document into another folder with the same settings executes them
+     * again.
+     * 
+     * @param outputRules
+     *            the bean IDs of the rules, which produce output in the document folder
+     */
+    public void setOutputRules(Set<String> outputRules) {
+        this.outputRules = outputRules != null ? outputRules : Collections.<String> emptySet();
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first retry of a fingerprint, which document state was not yet persisted. The
+     * delay grows with each attempt.
+     * 
+     * @param retryDelay
+     *            the delay in milliseconds before the first retry
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Sets the bean IDs of the rules, which are skipped if they were already executed on the same document content with the same
+     * folder settings.
+     * 
+     * @param rules
+     *            the bean IDs of the rules, subject to the change-aware skipping
+     */
+    public void setRules(Set<String> rules) {
+        this.rules = rules != null ? rules : Collections.<String> emptySet();
+    }
+
+    /**
+     * Sets the path of the node in the default workspace, under which the fingerprints are stored. The parent node has to
+     * exist.
+     * 
+     * @param storePath
+     *            the path of the node, under which the fingerprints are stored
+     */
+    public void setStorePath(String storePath) {
+        this.storePath = storePath;
+    }
+
+    /**
+     * Sets the interval in milliseconds of the sweep, which removes the fingerprint nodes of the documents, which no longer
+     * exist. A value <code>&lt;= 0</code> disables the sweep.
+     * 
+     * @param sweepInterval
+     *            the interval in milliseconds of the sweep
+     */
+    public void setSweepInterval(long sweepInterval) {
+        this.sweepInterval = sweepInterval;
+    }
+
+    /**
+     * Removes the fingerprint nodes of the documents, which no longer exist in their workspace.
+     * 
+     * @return the number of removed fingerprint nodes
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    @ManagedOperation(description = "Removes the fingerprints of the documents, which no longer exist")
+    public int sweep() throws RepositoryException {
+        int count = JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                Constants.EDIT_WORKSPACE, new JCRCallback<Integer>() {
+                    public Integer doInJCR(JCRSessionWrapper session) throws RepositoryException {
+                        if (!session.nodeExists(storePath)) {
+                            return 0;
+                        }
+                        int count = 0;
+                        for (JCRNodeWrapper workspaceNode : session.getNode(storePath).getNodes()) {
+                            count += sweep(session, workspaceNode);
+                        }
+                        return count;
+                    }
+                });
+        removed.addAndGet(count);
+        if (count > 0) {
+            logger.info("Removed fingerprints of {} deleted document(s)", count);
+        }
+
+        return count;
+    }
+
+    private int sweep(final JCRSessionWrapper store, final JCRNodeWrapper workspaceNode)
+            throws RepositoryException {
+        return JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspaceNode.getName(),
+                new JCRCallback<Integer>() {
+                    public Integer doInJCR(JCRSessionWrapper session) throws RepositoryException {
+                        int count = 0;
+                        for (JCRNodeWrapper first : workspaceNode.getNodes()) {
+                            for (JCRNodeWrapper second : first.getNodes()) {
+                                List<JCRNodeWrapper> orphans = new ArrayList<JCRNodeWrapper>();
+                                for (JCRNodeWrapper node : second.getNodes()) {
+                                    if (!exists(session, node.getName())) {
+                                        orphans.add(node);
+                                    }
+                                }
+                                for (JCRNodeWrapper orphan : orphans) {
+                                    orphan.remove();
+                                }
+                                if (!orphans.isEmpty()) {
+                                    store.save();
+                                    count += orphans.size();
+                                }
+                            }
+                        }
+                        return count;
+                    }
+                });
+    }
+
+    /**
+     * Writes the fingerprint if the persisted state of the document still produces the same fingerprint.
+     * 
+     * @return <code>true</code> if the fingerprint was written; <code>false</code> if the document state is not persisted
+     */
+    private boolean write(final Record record) throws RepositoryException {
+        String persisted = JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                record.workspace, new JCRCallback<String>() {
+                    public String doInJCR(JCRSessionWrapper session) throws RepositoryException {
+                        try {
+                            return compute(session.getNodeByIdentifier(record.uuid),
+                                    record.ruleBeanId);
+                        } catch (ItemNotFoundException e) {
+                            return null;
+                        }
+                    }
+                });
+        if (!record.fingerprint.equals(persisted)) {
+            return false;
+        }
+
+        JCRTemplate.getInstance().doExecuteWithSystemSession(null, Constants.EDIT_WORKSPACE,
+                new JCRCallback<Boolean>() {
+                    public Boolean doInJCR(JCRSessionWrapper session) throws RepositoryException {
+                        String parent = StringUtils.defaultIfEmpty(
+                                StringUtils.substringBeforeLast(storePath, "/"), "/");
+                        JCRNodeWrapper node = session.getNode(parent);
+                        // create the missing nodes of the path below the existing parent
+                        String[] names = StringUtils.split(getStorePath(record.workspace,
+                                record.uuid).substring(parent.length()), '/');
+                        for (int i = 0; i < names.length; i++) {
+                            node = node.hasNode(names[i]) ? node.getNode(names[i]) : node
+                                    .addNode(names[i], i < names.length - 1 ? FOLDER_TYPE : TYPE);
+                        }
+                        node.setProperty(record.ruleBeanId, record.fingerprint);
+                        session.save();
+                        synchronized (cache) {
+                            cache.put(getCacheKey(record.workspace, record.uuid,
+                                    record.ruleBeanId), record.fingerprint);
+                        }
+                        return Boolean.TRUE;
+                    }
+                });
+
+        return true;
+    }
+
+}
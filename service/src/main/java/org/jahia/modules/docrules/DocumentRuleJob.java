@@ -39,10 +39,19 @@
  */
 package org.jahia.modules.docrules;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.RepositoryException;
 
 import org.apache.commons.lang.StringUtils;
 import org.jahia.api.Constants;
+import org.jahia.modules.docrules.execution.PendingRuleJournal;
+import org.jahia.modules.docrules.stats.DocumentRuleStatistics;
 import org.jahia.services.SpringContextSingleton;
 import org.jahia.services.content.JCRCallback;
 import org.jahia.services.content.JCRNodeWrapper;
@@ -50,75 +59,304 @@ import org.jahia.services.content.JCRSessionWrapper;
 import org.jahia.services.content.JCRTemplate;
 import org.jahia.services.scheduler.BackgroundJob;
 import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
 import org.quartz.JobExecutionContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 
 /**
- * Background task for creating PDF versions of the documents.
+ * Background job, executing a document rule, looked up by its bean ID, on a single document node or on a batch of them, and the
+ * static entry points for the same execution from the executor and the synchronous rules. A batch is processed in a single system
+ * session in chunks of the commit interval; rules, implementing {@link BatchDocumentRule}, get a whole chunk at once. The changes
+ * of each document are saved before the next one is executed, so that a failing document is retried alone.
+ * <p>
+ * Documents, which did not change since the last execution of a change-aware rule, are skipped using the
+ * {@link DocumentRuleFingerprints}. The execution, save and scheduling times are recorded in the {@link DocumentRuleStatistics}
+ * and the executed documents are completed in the {@link PendingRuleJournal} after each chunk.
  * 
  * @author Sergiy Shyrkov
  */
 public class DocumentRuleJob extends BackgroundJob {
 
+    public static final String JOB_COMMIT_INTERVAL = "commitInterval";
+
     public static final String JOB_RULE_BEAN_ID = "ruleBeanId";
 
+    public static final String JOB_SCHEDULED = "scheduled";
+
     public static final String JOB_UUID = "uuid";
 
+    public static final String JOB_UUIDS = "uuids";
+
     public static final String JOB_WORKSPACE = "workspace";
 
     private static final Logger logger = LoggerFactory.getLogger(DocumentRuleJob.class);
 
+    private static boolean executeBatch(JCRSessionWrapper session, List<String> uuids,
+            String ruleBeanId, BatchDocumentRule rule) throws RepositoryException {
+        DocumentRuleStatistics stats = DocumentRuleStatistics.getInstance();
+        DocumentRuleFingerprints fingerprints = DocumentRuleFingerprints.getInstance();
+        List<JCRNodeWrapper> documents = new ArrayList<JCRNodeWrapper>(uuids.size());
+        List<String> documentFingerprints = new ArrayList<String>(uuids.size());
+        long applicableTime = 0;
+        try {
+            for (String uuid : uuids) {
+                JCRNodeWrapper document = null;
+                try {
+                    document = session.getNodeByIdentifier(uuid);
+                } catch (ItemNotFoundException e) {
+                    logger.info("Document node {} no longer exists. Skip execution of rule {} on it.",
+                            uuid, ruleBeanId);
+                    continue;
+                }
+                String fingerprint = fingerprints.compute(document, ruleBeanId);
+                if (fingerprints.isUnchanged(document, ruleBeanId, fingerprint)) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                boolean applicable = rule.isApplicable(document);
+                long time = System.nanoTime() - start;
+                applicableTime += time;
+                if (applicable) {
+                    documents.add(document);
+                    documentFingerprints.add(fingerprint);
+                } else {
+                    stats.recordInvocation(ruleBeanId, time, false, 0);
+                }
+            }
+            if (documents.isEmpty()) {
+                return true;
+            }
+
+            long start = System.nanoTime();
+            try {
+                rule.execute(documents);
+            } finally {
+                long executeTime = (System.nanoTime() - start) / documents.size();
+                for (int i = 0; i < documents.size(); i++) {
+                    stats.recordInvocation(ruleBeanId, applicableTime / uuids.size(), true,
+                            executeTime);
+                }
+            }
+            save(session, ruleBeanId);
+            for (int i = 0; i < documents.size(); i++) {
+                fingerprints.record(documents.get(i), ruleBeanId, documentFingerprints.get(i));
+            }
+
+            return true;
+        } catch (Exception e) {
+            stats.recordFailure(ruleBeanId);
+            logger.warn("Error executing rule " + ruleBeanId + " on a batch of " + uuids.size()
+                    + " document(s). Will process them one by one.", e);
+            session.refresh(false);
+            return false;
+        }
+    }
+
+    private static void completed(String workspace, List<String> uuids, String ruleBeanId,
+            long[] generations) {
+        PendingRuleJournal journal = PendingRuleJournal.getInstance();
+        if (journal != null) {
+            for (int i = 0; i < uuids.size(); i++) {
+                journal.complete(workspace, uuids.get(i), ruleBeanId, generations[i]);
+            }
+        }
+    }
+
+    private static void executeChunk(JCRSessionWrapper session, List<String> uuids,
+            String ruleBeanId) throws RepositoryException {
+        if (uuids.size() > 1) {
+            DocumentRule rule = getRule(ruleBeanId);
+            if (rule instanceof BatchDocumentRule
+                    && executeBatch(session, uuids, ruleBeanId, (BatchDocumentRule) rule)) {
+                return;
+            }
+        }
+
+        List<String> failed = new LinkedList<String>();
+        for (String uuid : uuids) {
+            try {
+                JCRNodeWrapper document = session.getNodeByIdentifier(uuid);
+                String fingerprint = execute(document, ruleBeanId);
+                if (session.hasPendingChanges()) {
+                    // persisted before the next document, so that a failing document discards only its own changes
+                    save(session, ruleBeanId);
+                }
+                DocumentRuleFingerprints.getInstance().record(document, ruleBeanId, fingerprint);
+            } catch (ItemNotFoundException e) {
+                logger.info("Document node {} no longer exists. Skip execution of rule {} on it.",
+                        uuid, ruleBeanId);
+            } catch (Exception e) {
+                logger.warn("Error executing rule " + ruleBeanId + " on the document node " + uuid
+                        + ". Will retry it separately.", e);
+                // the pending changes, including a failed save, are only the ones of this document
+                session.refresh(false);
+                failed.add(uuid);
+            }
+        }
+
+        for (String uuid : failed) {
+            executeSingle(session, uuid, ruleBeanId);
+        }
+    }
+
+    private static void executeInSystemSession(String workspace, final String uuid,
+            final String ruleBeanId) throws RepositoryException {
+        JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+                new JCRCallback<Boolean>() {
+                    public Boolean doInJCR(JCRSessionWrapper session) throws RepositoryException {
+                        try {
+                            JCRNodeWrapper node = session.getNodeByIdentifier(uuid);
+                            String fingerprint = execute(node, ruleBeanId);
+                            save(session, ruleBeanId);
+                            DocumentRuleFingerprints.getInstance().record(node, ruleBeanId,
+                                    fingerprint);
+                        } catch (ItemNotFoundException e) {
+                            // the journal entry is completed by the caller
+                            logger.info("Document node {} no longer exists."
+                                    + " Skip execution of rule {} on it.", uuid, ruleBeanId);
+                        } catch (Exception e) {
+                            logger.error("Error executing rule " + ruleBeanId
+                                    + " on the document node " + uuid, e);
+                        }
+
+                        return Boolean.TRUE;
+                    }
+                });
+    }
+
     /**
-     * Does the execution of the rule on the provided document node
+     * Does the execution of the rule on the provided document node and returns the fingerprint of the execution, which has to be
+     * recorded after the session is saved.
      * 
-     * @param documentNode
-     *            the document node to execute the rule on
-     * @param beanId
-     *            the rule bean ID
-     * @throws Exception
-     *             in case of a rule error
+     * @return the fingerprint of the execution or <code>null</code> if the rule was not executed or is not subject to the
+     *         change-aware skipping
      */
-    public static void executeRule(JCRNodeWrapper documentNode, String beanId) throws Exception {
-        DocumentRule rule = null;
+    private static String execute(JCRNodeWrapper documentNode, String beanId) throws Exception {
+        DocumentRule rule = getRule(beanId);
+        if (rule == null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Skip execution of unknown rule {} on document node {}", beanId,
+                        documentNode.getPath());
+            }
+            return null;
+        }
+
+        DocumentRuleFingerprints fingerprints = DocumentRuleFingerprints.getInstance();
+        String fingerprint = fingerprints.compute(documentNode, beanId);
+        if (fingerprints.isUnchanged(documentNode, beanId, fingerprint)) {
+            return null;
+        }
+
+        DocumentRuleStatistics stats = DocumentRuleStatistics.getInstance();
+        long start = System.nanoTime();
+        boolean applicable;
         try {
-            rule = (DocumentRule) SpringContextSingleton.getModuleBean(beanId);
-        } catch (NoSuchBeanDefinitionException e) {
-            // rule bean not found
-            logger.warn("Unable to lookup Spring bean with ID {}."
-                    + " Skip execution of rule on document node {}", beanId, documentNode.getPath());
-            return;
+            applicable = rule.isApplicable(documentNode);
+        } catch (Exception e) {
+            stats.recordFailure(beanId);
+            throw e;
         }
+        long applicableTime = System.nanoTime() - start;
 
-        if (rule.isApplicable(documentNode)) {
-            rule.execute(documentNode);
+        if (applicable) {
+            start = System.nanoTime();
+            try {
+                rule.execute(documentNode);
+            } catch (Exception e) {
+                stats.recordFailure(beanId);
+                throw e;
+            } finally {
+                stats.recordInvocation(beanId, applicableTime, true, System.nanoTime() - start);
+            }
+            return fingerprint;
         } else {
+            stats.recordInvocation(beanId, applicableTime, false, 0);
             if (logger.isDebugEnabled()) {
                 logger.debug("Rule {} is not applicable on document {}. Skipping", beanId,
                         documentNode.getPath());
             }
+            return null;
         }
     }
 
-    @Override
-    public void executeJahiaJob(JobExecutionContext jobExecutionContext) throws Exception {
-        JobDataMap data = jobExecutionContext.getJobDetail().getJobDataMap();
-        final String ruleBeanId = (String) data.get(JOB_RULE_BEAN_ID);
-        final String uuid = (String) data.get(JOB_UUID);
-        String workspace = StringUtils.defaultIfEmpty((String) data.get(JOB_WORKSPACE),
-                Constants.EDIT_WORKSPACE);
-        JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+    /**
+     * Does the execution of the rule on the provided document node. If the rule was already executed on the same document
+     * content with the same folder settings (see {@link DocumentRuleFingerprints}), the execution is skipped. The session is
+     * saved by the caller; the fingerprint of the execution is stored once the document state is persisted.
+     * 
+     * @param documentNode
+     *            the document node to execute the rule on
+     * @param beanId
+     *            the rule bean ID
+     * @throws Exception
+     *             in case of a rule error
+     */
+    public static void executeRule(JCRNodeWrapper documentNode, String beanId) throws Exception {
+        DocumentRuleFingerprints.getInstance().record(documentNode, beanId,
+                execute(documentNode, beanId));
+    }
+
+    /**
+     * Does the execution of the rule on the specified document node, using a system session for the provided workspace. The
+     * execution is marked as completed in the {@link PendingRuleJournal}, if any.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void executeRule(String workspace, final String uuid, final String ruleBeanId)
+            throws RepositoryException {
+        String ws = StringUtils.defaultIfEmpty(workspace, Constants.EDIT_WORKSPACE);
+        List<String> uuids = Collections.singletonList(uuid);
+        long[] generations = getGenerations(ws, uuids, ruleBeanId);
+        executeInSystemSession(ws, uuid, ruleBeanId);
+        // rule errors are logged; a repository failure leaves the item pending in the journal
+        completed(ws, uuids, ruleBeanId, generations);
+    }
+
+    /**
+     * Does the execution of the rule on the specified document nodes, using a single system session for the provided workspace.
+     * The documents are processed in chunks of <code>commitInterval</code> documents, which are completed in the
+     * {@link PendingRuleJournal} together. The changes of a document are saved before the next document is executed, so that
+     * a document, on which the rule fails, is retried separately, discarding only its own changes: the work done on the other
+     * documents of the chunk is kept and not executed again.
+     * Rules, implementing {@link BatchDocumentRule}, are executed on all documents of a chunk at once.
+     * 
+     * @param workspace
+     *            the workspace of the document nodes
+     * @param uuids
+     *            the identifiers of the document nodes
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param commitInterval
+     *            the number of documents per chunk; <code>0</code> means all documents at once
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static void executeRule(String workspace, final List<String> uuids,
+            final String ruleBeanId, final int commitInterval) throws RepositoryException {
+        if (uuids.size() == 1) {
+            executeRule(workspace, uuids.get(0), ruleBeanId);
+            return;
+        }
+        final String ws = StringUtils.defaultIfEmpty(workspace, Constants.EDIT_WORKSPACE);
+        JCRTemplate.getInstance().doExecuteWithSystemSession(null, ws,
                 new JCRCallback<Boolean>() {
                     public Boolean doInJCR(JCRSessionWrapper session) throws RepositoryException {
-
-                        JCRNodeWrapper node = session.getNodeByIdentifier(uuid);
-                        try {
-                            executeRule(node, ruleBeanId);
-                            session.save();
-                        } catch (Exception e) {
-                            logger.error("Error executing rule " + ruleBeanId
-                                    + " on the document node " + node.getPath(), e);
+                        int step = commitInterval > 0 ? commitInterval : uuids.size();
+                        for (int i = 0; i < uuids.size(); i += step) {
+                            List<String> chunk = uuids.subList(i,
+                                    Math.min(i + step, uuids.size()));
+                            long[] generations = getGenerations(ws, chunk, ruleBeanId);
+                            executeChunk(session, chunk, ruleBeanId);
+                            completed(ws, chunk, ruleBeanId, generations);
                         }
 
                         return Boolean.TRUE;
@@ -126,4 +364,138 @@ public class DocumentRuleJob extends BackgroundJob {
                 });
     }
 
+    private static void executeSingle(JCRSessionWrapper session, String uuid, String ruleBeanId)
+            throws RepositoryException {
+        try {
+            JCRNodeWrapper document = session.getNodeByIdentifier(uuid);
+            String fingerprint = execute(document, ruleBeanId);
+            save(session, ruleBeanId);
+            DocumentRuleFingerprints.getInstance().record(document, ruleBeanId, fingerprint);
+        } catch (ItemNotFoundException e) {
+            logger.info("Document node {} no longer exists. Skip execution of rule {} on it.",
+                    uuid, ruleBeanId);
+        } catch (Exception e) {
+            logger.error("Error executing rule " + ruleBeanId + " on the document node " + uuid, e);
+            session.refresh(false);
+        }
+    }
+
+    /**
+     * Reads the journal generations of the executions before they start, so that the executions, appended again meanwhile, stay
+     * pending.
+     */
+    private static long[] getGenerations(String workspace, List<String> uuids, String ruleBeanId) {
+        long[] generations = new long[uuids.size()];
+        PendingRuleJournal journal = PendingRuleJournal.getInstance();
+        if (journal != null) {
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = journal.getGeneration(workspace, uuids.get(i), ruleBeanId);
+            }
+        }
+        return generations;
+    }
+
+    private static DocumentRule getRule(String beanId) {
+        DocumentRuleRegistry registry = DocumentRuleRegistry.getInstance();
+        if (registry != null) {
+            // unknown rules are reported by the registry
+            return registry.getRule(beanId);
+        }
+
+        // module context is not started yet
+        try {
+            return (DocumentRule) SpringContextSingleton.getModuleBean(beanId);
+        } catch (NoSuchBeanDefinitionException e) {
+            // rule bean not found
+            logger.warn("Unable to lookup Spring bean with ID {}. Skip execution of the rule.",
+                    beanId);
+            return null;
+        }
+    }
+
+    private static void save(JCRSessionWrapper session, String ruleBeanId)
+            throws RepositoryException {
+        long start = System.nanoTime();
+        try {
+            session.save();
+        } finally {
+            DocumentRuleStatistics.getInstance().recordSave(ruleBeanId, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Creates a background job for executing the rule on the specified document nodes in a single batch.
+     * 
+     * @param workspace
+     *            the workspace of the document nodes
+     * @param uuids
+     *            the identifiers of the document nodes
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param commitInterval
+     *            the number of documents, after which the changes are saved
+     * @return the job details for scheduling
+     */
+    public static JobDetail createJob(String workspace, List<String> uuids, String ruleBeanId,
+            int commitInterval) {
+        JobDetail jobDetail = BackgroundJob.createJahiaJob("Document rule " + ruleBeanId
+                + " for " + uuids.size() + " document(s)", DocumentRuleJob.class);
+        JobDataMap jobDataMap = jobDetail.getJobDataMap();
+        jobDataMap.put(JOB_RULE_BEAN_ID, ruleBeanId);
+        jobDataMap.put(JOB_UUIDS, StringUtils.join(uuids, ","));
+        jobDataMap.put(JOB_WORKSPACE, workspace);
+        jobDataMap.put(JOB_SCHEDULED, String.valueOf(System.currentTimeMillis()));
+        jobDataMap.put(JOB_COMMIT_INTERVAL, String.valueOf(commitInterval));
+
+        return jobDetail;
+    }
+
+    /**
+     * Creates a background job for executing the rule on the specified document node.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param documentName
+     *            the document name, used in the job description
+     * @return the job details for scheduling
+     */
+    public static JobDetail createJob(String workspace, String uuid, String ruleBeanId,
+            String documentName) {
+        JobDetail jobDetail = BackgroundJob.createJahiaJob("Document rule " + ruleBeanId
+                + " for " + documentName, DocumentRuleJob.class);
+        JobDataMap jobDataMap = jobDetail.getJobDataMap();
+        jobDataMap.put(JOB_RULE_BEAN_ID, ruleBeanId);
+        jobDataMap.put(JOB_UUID, uuid);
+        jobDataMap.put(JOB_WORKSPACE, workspace);
+        jobDataMap.put(JOB_SCHEDULED, String.valueOf(System.currentTimeMillis()));
+
+        return jobDetail;
+    }
+
+    @Override
+    public void executeJahiaJob(JobExecutionContext jobExecutionContext) throws Exception {
+        JobDataMap data = jobExecutionContext.getJobDetail().getJobDataMap();
+        String scheduled = (String) data.get(JOB_SCHEDULED);
+        if (scheduled != null) {
+            DocumentRuleStatistics.getInstance().recordSchedulingDelay(
+                    (String) data.get(JOB_RULE_BEAN_ID),
+                    System.currentTimeMillis() - Long.parseLong(scheduled));
+        }
+        String uuids = (String) data.get(JOB_UUIDS);
+        if (uuids != null) {
+            executeRule((String) data.get(JOB_WORKSPACE),
+                    Arrays.asList(StringUtils.split(uuids, ",")),
+                    (String) data.get(JOB_RULE_BEAN_ID),
+                    Integer.parseInt(StringUtils.defaultIfEmpty(
+                            (String) data.get(JOB_COMMIT_INTERVAL), "0")));
+        } else {
+            executeRule((String) data.get(JOB_WORKSPACE), (String) data.get(JOB_UUID),
+                    (String) data.get(JOB_RULE_BEAN_ID));
+        }
+    }
+
 }
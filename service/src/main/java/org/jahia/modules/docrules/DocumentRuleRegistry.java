@@ -0,0 +1,182 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+import javax.jcr.nodetype.NodeTypeIterator;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.services.content.nodetypes.NodeTypeRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * Registry of the document rules, populated once the module context is started (or refreshed on module redeployment). Maps the
+ * rule bean IDs and the corresponding rule mixin names (<code>jmix:&lt;beanId&gt;</code>) to the rule instances, so the rule
+ * resolution during the execution is a simple map lookup. The mixins, which have no corresponding rule bean, are reported once
+ * at startup.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentRuleRegistry implements ApplicationListener<ApplicationEvent> {
+
+    private static final String APPLY_DOCUMENT_RULES = "jmix:applyDocumentRules";
+
+    private static volatile DocumentRuleRegistry instance;
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRuleRegistry.class);
+
+    /**
+     * Returns the registry of the currently started module context or <code>null</code> if the module context is not started yet.
+     * 
+     * @return the registry of the currently started module context or <code>null</code> if the module context is not started yet
+     */
+    public static DocumentRuleRegistry getInstance() {
+        return instance;
+    }
+
+    private static String getMixinName(String beanId) {
+        return "jmix:" + beanId;
+    }
+
+    private volatile Map<String, DocumentRule> rules = Collections.emptyMap();
+
+    private final Set<String> unknown = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Returns the rule with the specified bean ID or <code>null</code> if there is no such rule. An unknown ID is reported only
+     * once.
+     * 
+     * @param beanId
+     *            the rule bean ID
+     * @return the rule with the specified bean ID or <code>null</code> if there is no such rule
+     */
+    public DocumentRule getRule(String beanId) {
+        DocumentRule rule = rules.get(beanId);
+        if (rule == null && unknown.add(beanId)) {
+            logger.warn("No document rule bean with ID {} is registered."
+                    + " Skipping execution of this rule.", beanId);
+        }
+        return rule;
+    }
+
+    /**
+     * Returns the rule for the specified rule mixin (e.g. <code>jmix:documentRuleEmail</code>) or <code>null</code> if there is
+     * no such rule.
+     * 
+     * @param mixinName
+     *            the name of the rule mixin
+     * @return the rule for the specified rule mixin or <code>null</code> if there is no such rule
+     */
+    public DocumentRule getRuleForMixin(String mixinName) {
+        return getRule(StringUtils.substringAfter(mixinName, ":"));
+    }
+
+    /**
+     * Returns an unmodifiable map of the registered rules, keyed by their bean IDs.
+     * 
+     * @return an unmodifiable map of the registered rules, keyed by their bean IDs
+     */
+    public Map<String, DocumentRule> getRules() {
+        return rules;
+    }
+
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent) {
+            register(((ContextRefreshedEvent) event).getApplicationContext().getBeansOfType(
+                    DocumentRule.class));
+            instance = this;
+        } else if (event instanceof ContextClosedEvent) {
+            if (instance == this) {
+                instance = null;
+            }
+            rules = Collections.emptyMap();
+        }
+    }
+
+    private void register(Map<String, DocumentRule> beans) {
+        rules = Collections.unmodifiableMap(new HashMap<String, DocumentRule>(beans));
+        unknown.clear();
+        logger.info("Registered {} document rule(s): {}", rules.size(), new TreeSet<String>(
+                rules.keySet()));
+        validate();
+    }
+
+    private void validate() {
+        Set<String> mixins = new TreeSet<String>();
+        try {
+            NodeTypeIterator subtypes = NodeTypeRegistry.getInstance()
+                    .getNodeType(APPLY_DOCUMENT_RULES).getSubtypes();
+            while (subtypes.hasNext()) {
+                mixins.add(subtypes.nextNodeType().getName());
+            }
+        } catch (NoSuchNodeTypeException e) {
+            logger.warn("Node type " + APPLY_DOCUMENT_RULES + " is not registered."
+                    + " Unable to validate the document rule mixins.", e);
+            return;
+        }
+
+        for (String mixin : mixins) {
+            String beanId = StringUtils.substringAfter(mixin, ":");
+            if (!rules.containsKey(beanId)) {
+                unknown.add(beanId);
+                logger.warn("Document rule mixin {} has no corresponding rule bean with ID {}."
+                        + " The rule will not be executed.", mixin, beanId);
+            }
+        }
+        for (String beanId : rules.keySet()) {
+            if (!mixins.contains(getMixinName(beanId))) {
+                logger.info("Document rule bean {} has no corresponding mixin {}", beanId,
+                        getMixinName(beanId));
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.cluster;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent hash ring over the cluster members. Each member is placed on the ring with a number of virtual nodes
+ * proportional to its weight (capacity), so that it owns the corresponding share of the keys. When a member joins or leaves, only
+ * the keys of the affected ring arcs change their owner.
+ * <p>
+ * The hash function depends only on the characters of the keys and member names, so all cluster nodes with the same view of
+ * the members compute the same owners.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class ConsistentHashRing {
+
+    private static final double TWO_TO_64 = 18446744073709551616.0;
+
+    /**
+     * Returns a 64 bit hash of the provided string (FNV-1a with a final avalanche step).
+     * 
+     * @param value
+     *            the string to hash
+     * @return a 64 bit hash of the provided string
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private final Map<String, Integer> members;
+
+    private final String[] owners;
+
+    private final long[] points;
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param members
+     *            the members with their weights; members with a weight below <code>1</code> are not placed on the ring
+     * @param virtualNodes
+     *            the number of virtual nodes per weight unit
+     */
+    public ConsistentHashRing(Map<String, Integer> members, int virtualNodes) {
+        super();
+        TreeMap<Long, String> ring = new TreeMap<Long, String>();
+        for (Map.Entry<String, Integer> member : new TreeMap<String, Integer>(members).entrySet()) {
+            int count = member.getValue() * virtualNodes;
+            for (int i = 0; i < count; i++) {
+                Long point = Long.valueOf(hash(member.getKey() + "#" + i));
+                String other = ring.get(point);
+                // resolve (very unlikely) collisions independently of the insertion order
+                if (other == null || other.compareTo(member.getKey()) > 0) {
+                    ring.put(point, member.getKey());
+                }
+            }
+        }
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i] = point.getValue();
+            i++;
+        }
+        this.members = Collections.unmodifiableMap(new TreeMap<String, Integer>(members));
+    }
+
+    /**
+     * Returns the members with their weights, this ring was built for.
+     * 
+     * @return the members with their weights, this ring was built for
+     */
+    public Map<String, Integer> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the member, owning the provided key, i.e. the member of the first virtual node clockwise from the key hash, or
+     * <code>null</code> if the ring is empty.
+     * 
+     * @param key
+     *            the key to find the owner for
+     * @return the member, owning the provided key or <code>null</code> if the ring is empty
+     */
+    public String getOwner(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int idx = Arrays.binarySearch(points, hash(key));
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return owners[idx < points.length ? idx : 0];
+    }
+
+    /**
+     * Returns the share of the hash space (between <code>0</code> and <code>1</code>), owned by the specified member.
+     * 
+     * @param member
+     *            the member name
+     * @return the share of the hash space, owned by the specified member
+     */
+    public double getShare(String member) {
+        if (points.length == 0) {
+            return 0;
+        }
+        double share = 0;
+        for (int i = 0; i < points.length; i++) {
+            if (owners[i].equals(member)) {
+                // the arc from the previous point (exclusive) up to this one, as unsigned distance
+                double arc = points[i] - (i > 0 ? points[i - 1] : points[points.length - 1]);
+                share += arc < 0 ? arc + TWO_TO_64 : arc;
+            }
+        }
+        return points.length == 1 ? 1 : share / TWO_TO_64;
+    }
+
+    public boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return members.toString();
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.cluster;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Assigns each background rule execution, identified by the document node identifier and the rule bean ID, to exactly one owner
+ * among the live cluster members, using a {@link ConsistentHashRing} weighted by the members' capacity. The member, which
+ * receives the document event, executes the rules it owns and hands the other executions over to their owners via a shared
+ * {@link ClusterWorkQueue}, so that the work is spread over the cluster. The ring is rebuilt as soon as the membership changes;
+ * only the executions of the affected ring arcs move to another member. While the views of the members differ after a
+ * membership change, an execution may be handed over to a member, which is not its owner anymore, or twice to its owner; the
+ * queue takes the items of the members, which are no longer live, and drops the items, which are already pending at the
+ * member, so that the work is neither lost nor executed twice.
+ * <p>
+ * The execution stays local only if no queue is configured or if the hand-over fails.
+ * <p>
+ * The partitioner does not depend on the Jahia services, so several instances with a {@link StaticClusterMembership} and an
+ * in-memory queue can be used in the same process to simulate a cluster.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=DocumentRulePartitioner",
+        description = "Partitioning of the background document rule executions between the cluster members")
+public class DocumentRulePartitioner {
+
+    private static final class Snapshot {
+
+        private final Map<String, Integer> members;
+
+        private final ConsistentHashRing ring;
+
+        Snapshot(Map<String, Integer> members, ConsistentHashRing ring) {
+            super();
+            this.members = members;
+            this.ring = ring;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRulePartitioner.class);
+
+    static String getKey(String uuid, String ruleBeanId) {
+        return uuid + "/" + ruleBeanId;
+    }
+
+    private final AtomicLong delegated = new AtomicLong();
+
+    private ClusterMembership membership = new StaticClusterMembership();
+
+    private final AtomicLong owned = new AtomicLong();
+
+    private final AtomicLong rebalances = new AtomicLong();
+
+    private volatile Snapshot snapshot;
+
+    private final AtomicLong uncertain = new AtomicLong();
+
+    private int virtualNodes = 64;
+
+    private ClusterWorkQueue workQueue;
+
+    /**
+     * Initializes an instance of this class.
+     */
+    public DocumentRulePartitioner() {
+        super();
+    }
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param membership
+     *            the view of the live cluster members
+     */
+    public DocumentRulePartitioner(ClusterMembership membership) {
+        this();
+        setMembership(membership);
+    }
+
+    @ManagedAttribute(description = "Number of executions handed over to other cluster members")
+    public long getDelegated() {
+        return delegated.get();
+    }
+
+    @ManagedAttribute(description = "Share of the executions (in percent) owned by the local member")
+    public double getLocalShare() {
+        return Math.round(getRing().getShare(membership.getLocalMember()) * 10000) / 100.0;
+    }
+
+    @ManagedAttribute(description = "Live cluster members with their weights")
+    public String getMembers() {
+        return getRing().toString();
+    }
+
+    /**
+     * Returns the cluster member, owning the execution of the rule on the specified document node or <code>null</code> if there
+     * is no member with a positive weight.
+     * 
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the cluster member, owning the execution of the rule on the specified document node
+     */
+    @ManagedOperation(description = "Returns the cluster member, owning the execution of the rule on the document node")
+    public String getOwner(String uuid, String ruleBeanId) {
+        return getRing().getOwner(getKey(uuid, ruleBeanId));
+    }
+
+    @ManagedAttribute(description = "Number of executions owned by the local member")
+    public long getOwned() {
+        return owned.get();
+    }
+
+    @ManagedAttribute(description = "Number of ring rebuilds due to membership changes")
+    public long getRebalances() {
+        return rebalances.get();
+    }
+
+    private ConsistentHashRing getRing() {
+        return getSnapshot().ring;
+    }
+
+    private Snapshot getSnapshot() {
+        Map<String, Integer> members = membership.getMembers();
+        Snapshot current = snapshot;
+        if (current != null
+                && (current.members == members || current.members.equals(members))) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = snapshot;
+            if (current == null || !current.members.equals(members)) {
+                ConsistentHashRing ring = new ConsistentHashRing(members, virtualNodes);
+                if (current != null) {
+                    rebalances.incrementAndGet();
+                }
+                logger.info("Partitioning document rule executions between cluster members {}."
+                        + " Local member {} owns {}% of them.", new Object[] { members,
+                        membership.getLocalMember(),
+                        Math.round(ring.getShare(membership.getLocalMember()) * 10000) / 100.0 });
+                current = new Snapshot(members, ring);
+                snapshot = current;
+            }
+        }
+
+        return current;
+    }
+
+    @ManagedAttribute(description = "Number of executions kept local as they could not be handed over")
+    public long getUncertain() {
+        return uncertain.get();
+    }
+
+    /**
+     * Hands the execution of the rule on the specified document node over to its owner, if it is owned by another member.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return <code>true</code> if the execution was handed over to another member; <code>false</code> if it has to be executed
+     *         locally
+     */
+    public boolean handOver(String workspace, String uuid, String ruleBeanId) {
+        String owner = getRing().getOwner(getKey(uuid, ruleBeanId));
+        if (owner == null || owner.equals(membership.getLocalMember())) {
+            owned.incrementAndGet();
+            return false;
+        }
+        if (workQueue == null || !workQueue.offer(owner, workspace, uuid, ruleBeanId)) {
+            uncertain.incrementAndGet();
+            return false;
+        }
+
+        delegated.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Checks if the local cluster member owns the execution of the rule on the specified document node according to the current
+     * ring. If no member has a positive weight, every member is considered the owner, so that the work is not lost.
+     * 
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return <code>true</code> if the local cluster member owns the execution of the rule on the specified document node
+     */
+    public boolean isOwner(String uuid, String ruleBeanId) {
+        String owner = getRing().getOwner(getKey(uuid, ruleBeanId));
+        return owner == null || owner.equals(membership.getLocalMember());
+    }
+
+    public void setMembership(ClusterMembership membership) {
+        this.membership = membership;
+    }
+
+    /**
+     * Sets the number of virtual nodes per weight unit of a member. More virtual nodes spread the executions more evenly at the
+     * cost of a larger ring.
+     * 
+     * @param virtualNodes
+     *            the number of virtual nodes per weight unit of a member
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Sets the shared queue for handing executions over to their owners. Without a queue all executions are kept local.
+     * 
+     * @param workQueue
+     *            the shared queue for handing executions over to their owners
+     */
+    public void setWorkQueue(ClusterWorkQueue workQueue) {
+        this.workQueue = workQueue;
+    }
+
+}
@@ -0,0 +1,352 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.cluster;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.util.Text;
+import org.jahia.api.Constants;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Cluster membership, based on heartbeats, which each cluster node writes periodically into a shared JCR node. A member is
+ * considered live as long as its heartbeat value keeps changing within the configured timeout, measured by the local clock, so
+ * the clocks of the cluster nodes do not need to be synchronized. A member leaving the cluster in a regular way (module or
+ * server shutdown) removes its heartbeat node, so its share is taken over by the other members immediately.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=ClusterMembership",
+        description = "Live cluster members, processing background document rules")
+public class JCRClusterMembership implements ClusterMembership, InitializingBean,
+        DisposableBean {
+
+    private static class Heartbeat {
+
+        private long seen;
+
+        private long value;
+
+        Heartbeat(long value, long seen) {
+            super();
+            this.value = value;
+            this.seen = seen;
+        }
+    }
+
+    private static final String HEARTBEAT_PROPERTY = "j:heartbeat";
+
+    private static final Logger logger = LoggerFactory.getLogger(JCRClusterMembership.class);
+
+    private static final String MEMBER_TYPE = "jnt:documentRuleClusterMember";
+
+    private static final String WEIGHT_PROPERTY = "j:weight";
+
+    private String containerPath = "/settings/documentRuleCluster";
+
+    private long expiration = 24L * 60 * 60 * 1000;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private long heartbeatInterval = 10000;
+
+    private final Map<String, Heartbeat> heartbeats = new HashMap<String, Heartbeat>();
+
+    private final AtomicLong heartbeatsWritten = new AtomicLong();
+
+    private String localMember;
+
+    private volatile Map<String, Integer> members;
+
+    private ScheduledExecutorService scheduler;
+
+    private long timeout = 30000;
+
+    private int weight = 1;
+
+    public void afterPropertiesSet() throws Exception {
+        if (StringUtils.isEmpty(localMember)) {
+            // process name, e.g. 1234@host; should be configured to a stable name (e.g. cluster.node.serverId) in a cluster
+            localMember = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        members = Collections.singletonMap(localMember, Integer.valueOf(weight));
+        // the first heartbeat is written synchronously, so that the other members are known from the start
+        try {
+            heartbeat();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            logger.error("Error writing heartbeat of the cluster member " + localMember, e);
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-cluster-heartbeat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    heartbeat();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    logger.error("Error writing heartbeat of the cluster member " + localMember, e);
+                }
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        try {
+            JCRTemplate.getInstance().doExecuteWithSystemSession(null, Constants.EDIT_WORKSPACE,
+                    new JCRCallback<Boolean>() {
+                        public Boolean doInJCR(JCRSessionWrapper session)
+                                throws RepositoryException {
+                            String path = containerPath + "/"
+                                    + Text.escapeIllegalJcrChars(localMember);
+                            if (session.nodeExists(path)) {
+                                session.getNode(path).remove();
+                                session.save();
+                            }
+                            return Boolean.TRUE;
+                        }
+                    });
+        } catch (RepositoryException e) {
+            logger.warn("Unable to remove heartbeat of the cluster member " + localMember, e);
+        }
+    }
+
+    private JCRNodeWrapper getContainer(JCRSessionWrapper session) throws RepositoryException {
+        if (session.nodeExists(containerPath)) {
+            return session.getNode(containerPath);
+        }
+        JCRNodeWrapper container = session.getNode(StringUtils.defaultIfEmpty(
+                StringUtils.substringBeforeLast(containerPath, "/"), "/"));
+        return container.addNode(StringUtils.substringAfterLast(containerPath, "/"),
+                "jnt:documentRuleCluster");
+    }
+
+    @ManagedAttribute(description = "Number of failed heartbeats")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @ManagedAttribute(description = "Number of written heartbeats")
+    public long getHeartbeats() {
+        return heartbeatsWritten.get();
+    }
+
+    @ManagedAttribute(description = "Name of the local cluster member")
+    public String getLocalMember() {
+        return localMember;
+    }
+
+    public Map<String, Integer> getMembers() {
+        return members;
+    }
+
+    @ManagedAttribute(description = "Live cluster members with their weights")
+    public String getMembersAsString() {
+        return members.toString();
+    }
+
+    /**
+     * Writes the heartbeat of the local member and reads the heartbeats of all members to update the view of the live members.
+     * 
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    protected void heartbeat() throws RepositoryException {
+        Map<String, Integer> live = JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                Constants.EDIT_WORKSPACE, new JCRCallback<Map<String, Integer>>() {
+                    public Map<String, Integer> doInJCR(JCRSessionWrapper session)
+                            throws RepositoryException {
+                        JCRNodeWrapper container = getContainer(session);
+                        String name = Text.escapeIllegalJcrChars(localMember);
+                        JCRNodeWrapper self = container.hasNode(name) ? container.getNode(name)
+                                : container.addNode(name, MEMBER_TYPE);
+                        self.setProperty(HEARTBEAT_PROPERTY, System.currentTimeMillis());
+                        self.setProperty(WEIGHT_PROPERTY, weight);
+                        session.save();
+                        heartbeatsWritten.incrementAndGet();
+
+                        return readMembers(session, container);
+                    }
+                });
+
+        if (!live.equals(members)) {
+            logger.info("Live cluster members changed from {} to {}", members, live);
+            members = Collections.unmodifiableMap(live);
+        }
+    }
+
+    private Map<String, Integer> readMembers(JCRSessionWrapper session, JCRNodeWrapper container)
+            throws RepositoryException {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> live = new TreeMap<String, Integer>();
+        Set<String> seen = new HashSet<String>();
+        boolean expired = false;
+        synchronized (heartbeats) {
+            for (JCRNodeWrapper memberNode : container.getNodes()) {
+                if (!memberNode.hasProperty(HEARTBEAT_PROPERTY)) {
+                    continue;
+                }
+                String member = Text.unescapeIllegalJcrChars(memberNode.getName());
+                seen.add(member);
+                long value = memberNode.getProperty(HEARTBEAT_PROPERTY).getLong();
+                Heartbeat heartbeat = heartbeats.get(member);
+                if (heartbeat == null) {
+                    // first seen: rely on the writer's clock only once
+                    heartbeat = new Heartbeat(value, now - value <= timeout ? now : 0);
+                    heartbeats.put(member, heartbeat);
+                } else if (heartbeat.value != value) {
+                    heartbeat.value = value;
+                    heartbeat.seen = now;
+                }
+                if (member.equals(localMember) || now - heartbeat.seen <= timeout) {
+                    live.put(member, Integer.valueOf(memberNode.hasProperty(WEIGHT_PROPERTY)
+                            ? (int) memberNode.getProperty(WEIGHT_PROPERTY).getLong() : 1));
+                } else if (expiration > 0 && now - value > expiration) {
+                    // member did not come back for a long time
+                    memberNode.remove();
+                    expired = true;
+                }
+            }
+            heartbeats.keySet().retainAll(seen);
+        }
+        if (expired) {
+            try {
+                session.save();
+            } catch (RepositoryException e) {
+                // concurrently removed by another member
+                logger.debug("Unable to remove expired cluster members", e);
+                session.refresh(false);
+            }
+        }
+
+        return live;
+    }
+
+    /**
+     * Sets the path of the JCR node, holding the heartbeats of the cluster members. The node is created if it does not exist.
+     * 
+     * @param containerPath
+     *            the path of the JCR node, holding the heartbeats of the cluster members
+     */
+    public void setContainerPath(String containerPath) {
+        this.containerPath = containerPath;
+    }
+
+    /**
+     * Sets the time in milliseconds after which the heartbeat node of a member, which is no longer live, is removed.
+     * 
+     * @param expiration
+     *            the time in milliseconds after which the heartbeat node of a dead member is removed; <code>0</code> to keep it
+     */
+    public void setExpiration(long expiration) {
+        this.expiration = expiration;
+    }
+
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Sets the name of the local cluster member, which has to be unique in the cluster and should stay the same over restarts.
+     * Defaults to the name of the JVM process (<code>pid@host</code>).
+     * 
+     * @param localMember
+     *            the name of the local cluster member
+     */
+    public void setLocalMember(String localMember) {
+        this.localMember = localMember;
+    }
+
+    /**
+     * Sets the time in milliseconds, after which a member, which heartbeat has not changed, is considered dead. Should be a
+     * multiple of the heartbeat interval.
+     * 
+     * @param timeout
+     *            the time in milliseconds, after which a member without heartbeat is considered dead
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the weight (relative processing capacity) of the local member. A member with the weight 2 gets twice as many rule
+     * executions as a member with the weight 1. A member with the weight 0 takes part in the cluster without getting any work.
+     * 
+     * @param weight
+     *            the weight of the local member
+     */
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+}
@@ -0,0 +1,320 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.cluster;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.jackrabbit.util.Text;
+import org.jahia.api.Constants;
+import org.jahia.modules.docrules.DocumentRuleJob;
+import org.jahia.modules.docrules.execution.DocumentRuleExecutor;
+import org.jahia.modules.docrules.execution.PendingRuleJournal;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.jahia.services.scheduler.SchedulerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Cluster work queue in the shared JCR repository: an execution is handed over by creating an item node under the folder of the
+ * owning member (<code>root/member/workspace/uuid_ruleBeanId</code>), which is idempotent for the same execution. Each member
+ * polls its own folder and the folders of the members, which are no longer live, and removes the taken items. If two members take
+ * the same items, only the one, which succeeds to save the removal, executes them: it appends them to its
+ * {@link PendingRuleJournal} and submits them to the local executor. Items, which execution is already pending in the journal,
+ * e.g. as the member received the document event itself, are dropped as duplicates.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=ClusterWorkQueue",
+        description = "Queue for handing document rule executions over to the owning cluster member")
+public class JCRClusterWorkQueue implements ClusterWorkQueue, InitializingBean, DisposableBean {
+
+    private static final String FOLDER_TYPE = "jnt:documentRuleQueue";
+
+    private static final String ITEM_TYPE = "jnt:documentRuleQueueItem";
+
+    private static final Logger logger = LoggerFactory.getLogger(JCRClusterWorkQueue.class);
+
+    private int batchSize = 100;
+
+    private DocumentRuleExecutor executor;
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong handedOver = new AtomicLong();
+
+    private ClusterMembership membership;
+
+    private long pollInterval = 2000;
+
+    private ScheduledExecutorService poller;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private String rootPath = "/settings/documentRuleQueue";
+
+    private SchedulerService schedulerService;
+
+    public void afterPropertiesSet() throws Exception {
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-cluster-queue");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    logger.error("Error polling the cluster queue of document rule executions", e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() throws Exception {
+        if (poller != null) {
+            poller.shutdown();
+            poller.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @ManagedAttribute(description = "Number of taken executions, dropped as they were already pending locally")
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    @ManagedAttribute(description = "Number of failed hand-overs and polls")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @ManagedAttribute(description = "Number of executions handed over to other cluster members")
+    public long getHandedOver() {
+        return handedOver.get();
+    }
+
+    private JCRNodeWrapper getOrAdd(JCRNodeWrapper parent, String name, String type)
+            throws RepositoryException {
+        return parent.hasNode(name) ? parent.getNode(name) : parent.addNode(name, type);
+    }
+
+    @ManagedAttribute(description = "Number of executions taken from the queue")
+    public long getReceived() {
+        return received.get();
+    }
+
+    public boolean offer(final String member, final String workspace, final String uuid,
+            final String ruleBeanId) {
+        try {
+            JCRTemplate.getInstance().doExecuteWithSystemSession(null, Constants.EDIT_WORKSPACE,
+                    new JCRCallback<Boolean>() {
+                        public Boolean doInJCR(JCRSessionWrapper session)
+                                throws RepositoryException {
+                            String parent = StringUtils.defaultIfEmpty(
+                                    StringUtils.substringBeforeLast(rootPath, "/"), "/");
+                            JCRNodeWrapper node = getOrAdd(session.getNode(parent),
+                                    StringUtils.substringAfterLast(rootPath, "/"), FOLDER_TYPE);
+                            node = getOrAdd(node, Text.escapeIllegalJcrChars(member), FOLDER_TYPE);
+                            node = getOrAdd(node, workspace, FOLDER_TYPE);
+                            getOrAdd(node, uuid + "_" + ruleBeanId, ITEM_TYPE);
+                            session.save();
+                            return Boolean.TRUE;
+                        }
+                    });
+            handedOver.incrementAndGet();
+            return true;
+        } catch (RepositoryException e) {
+            failures.incrementAndGet();
+            logger.warn("Unable to hand the execution of rule " + ruleBeanId + " on node " + uuid
+                    + " over to cluster member " + member + ". Executing it locally.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Takes the items of the local member and of the members, which are no longer live, and submits them for execution.
+     * 
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    protected void poll() throws RepositoryException {
+        final Map<String, Integer> live = membership.getMembers();
+        final String local = membership.getLocalMember();
+        final Map<String, List<String>> batches = JCRTemplate.getInstance()
+                .doExecuteWithSystemSession(null, Constants.EDIT_WORKSPACE,
+                        new JCRCallback<Map<String, List<String>>>() {
+                            public Map<String, List<String>> doInJCR(JCRSessionWrapper session)
+                                    throws RepositoryException {
+                                Map<String, List<String>> taken = new LinkedHashMap<String, List<String>>();
+                                if (!session.nodeExists(rootPath)) {
+                                    return taken;
+                                }
+                                for (JCRNodeWrapper memberFolder : session.getNode(rootPath)
+                                        .getNodes()) {
+                                    String member = Text.unescapeIllegalJcrChars(memberFolder
+                                            .getName());
+                                    if (member.equals(local) || !live.containsKey(member)) {
+                                        take(session, memberFolder, taken);
+                                    }
+                                }
+                                return taken;
+                            }
+                        });
+
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            String workspace = StringUtils.substringBefore(batch.getKey(), "/");
+            String ruleBeanId = StringUtils.substringAfter(batch.getKey(), "/");
+            received.addAndGet(batch.getValue().size());
+            try {
+                if (executor != null) {
+                    executor.executeBatch(workspace, batch.getValue(), ruleBeanId);
+                } else {
+                    schedulerService.scheduleJobNow(DocumentRuleJob.createJob(workspace,
+                            batch.getValue(), ruleBeanId, 0));
+                }
+            } catch (Exception e) {
+                // the items are pending in the journal and are submitted again on restart
+                failures.incrementAndGet();
+                logger.error("Unable to submit " + batch.getValue().size()
+                        + " execution(s) of rule " + ruleBeanId + " from the cluster queue", e);
+            }
+        }
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setExecutor(DocumentRuleExecutor executor) {
+        this.executor = executor;
+    }
+
+    public void setMembership(ClusterMembership membership) {
+        this.membership = membership;
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Sets the path of the queue root node in the default workspace. The parent node has to exist.
+     * 
+     * @param rootPath
+     *            the path of the queue root node
+     */
+    public void setRootPath(String rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    public void setSchedulerService(SchedulerService schedulerService) {
+        this.schedulerService = schedulerService;
+    }
+
+    private void take(JCRSessionWrapper session, JCRNodeWrapper memberFolder,
+            Map<String, List<String>> taken) throws RepositoryException {
+        List<String[]> items = new ArrayList<String[]>();
+        for (JCRNodeWrapper workspaceFolder : memberFolder.getNodes()) {
+            for (JCRNodeWrapper item : workspaceFolder.getNodes()) {
+                if (items.size() >= batchSize) {
+                    break;
+                }
+                String uuid = StringUtils.substringBefore(item.getName(), "_");
+                String ruleBeanId = StringUtils.substringAfter(item.getName(), "_");
+                items.add(new String[] { workspaceFolder.getName(), uuid, ruleBeanId });
+                item.remove();
+            }
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+
+        try {
+            session.save();
+        } catch (RepositoryException e) {
+            // taken concurrently by another member
+            logger.debug("Items of the cluster queue " + memberFolder.getPath()
+                    + " were taken concurrently", e);
+            session.refresh(false);
+            return;
+        }
+        PendingRuleJournal journal = PendingRuleJournal.getInstance();
+        for (String[] item : items) {
+            if (journal != null) {
+                if (journal.isPending(item[0], item[1], item[2])) {
+                    duplicates.incrementAndGet();
+                    continue;
+                }
+                journal.append(item[0], item[1], item[2]);
+            }
+            String key = item[0] + "/" + item[2];
+            List<String> uuids = taken.get(key);
+            if (uuids == null) {
+                uuids = new ArrayList<String>();
+                taken.put(key, uuids);
+            }
+            uuids.add(item[1]);
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.execution;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Coalesces duplicate executions of background rules on the same document node. An execution is held back for the configured
+ * debounce window. Further requests for the same workspace, node identifier and rule bean ID, which arrive during that window,
+ * are merged into the pending one, so the rule is executed only once on the latest state of the document. Executions, which
+ * window is over at the same time, are submitted to the executor in batches per workspace and rule. The number of pending
+ * executions is bounded: when it is reached, the oldest executions are submitted before their window is over.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=DocumentRuleCoalescer",
+        description = "Coalescer of the background document rule executions")
+public class DocumentRuleCoalescer implements InitializingBean, DisposableBean {
+
+    private static class Pending {
+
+        private long cost;
+
+        private final String documentName;
+
+        private final long due;
+
+        private final String ruleBeanId;
+
+        private final String uuid;
+
+        private final String workspace;
+
+        Pending(String workspace, String uuid, String ruleBeanId, String documentName, long cost,
+                long due) {
+            super();
+            this.workspace = workspace;
+            this.uuid = uuid;
+            this.ruleBeanId = ruleBeanId;
+            this.documentName = documentName;
+            this.cost = cost;
+            this.due = due;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRuleCoalescer.class);
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong dispatched = new AtomicLong();
+
+    private final AtomicLong earlyFlushes = new AtomicLong();
+
+    private DocumentRuleExecutor executor;
+
+    private int maxBatchSize = 100;
+
+    private int maxPending = 10000;
+
+    private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+
+    private final AtomicLong received = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private long window = 2000;
+
+    public void afterPropertiesSet() throws Exception {
+        if (window <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-coalescer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(window / 4, 50);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush(false);
+                } catch (Exception e) {
+                    logger.error("Error dispatching pending document rule executions", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        flush(true);
+    }
+
+    private void dispatch(List<Pending> due) {
+        // group the executions by workspace, rule and lane to submit them as batches
+        Map<String, List<Pending>> groups = new LinkedHashMap<String, List<Pending>>();
+        for (Pending p : due) {
+            String key = p.workspace + "/" + p.ruleBeanId + "/" + executor.isHeavy(p.cost);
+            List<Pending> batch = groups.get(key);
+            if (batch == null || batch.size() >= maxBatchSize) {
+                if (batch != null) {
+                    dispatchBatch(batch);
+                }
+                batch = new ArrayList<Pending>();
+                groups.put(key, batch);
+            }
+            batch.add(p);
+        }
+        for (List<Pending> batch : groups.values()) {
+            dispatchBatch(batch);
+        }
+    }
+
+    private void dispatch(Pending p) {
+        dispatched.incrementAndGet();
+        executor.execute(p.workspace, p.uuid, p.ruleBeanId, p.documentName, p.cost);
+    }
+
+    private void dispatchBatch(List<Pending> batch) {
+        if (batch.size() == 1) {
+            dispatch(batch.get(0));
+            return;
+        }
+        List<String> uuids = new ArrayList<String>(batch.size());
+        long cost = 0;
+        for (Pending p : batch) {
+            uuids.add(p.uuid);
+            cost = Math.max(cost, p.cost);
+        }
+        Pending first = batch.get(0);
+        dispatched.addAndGet(batch.size());
+        batches.incrementAndGet();
+        executor.executeBatch(first.workspace, uuids, first.ruleBeanId, cost);
+    }
+
+    /**
+     * Dispatches pending executions, which debounce window is over.
+     * 
+     * @param all
+     *            if <code>true</code>, all pending executions are dispatched, regardless of their debounce window
+     */
+    public void flush(boolean all) {
+        List<Pending> due = new ArrayList<Pending>();
+        long now = System.currentTimeMillis();
+        synchronized (pending) {
+            for (Iterator<Pending> it = pending.values().iterator(); it.hasNext();) {
+                Pending p = it.next();
+                if (!all && p.due > now) {
+                    // entries are ordered by their due time
+                    break;
+                }
+                it.remove();
+                due.add(p);
+            }
+        }
+        if (!due.isEmpty()) {
+            dispatch(due);
+        }
+    }
+
+    @ManagedAttribute
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @ManagedAttribute
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @ManagedAttribute
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    @ManagedAttribute
+    public long getEarlyFlushes() {
+        return earlyFlushes.get();
+    }
+
+    @ManagedAttribute
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    @ManagedAttribute
+    public long getReceived() {
+        return received.get();
+    }
+
+    public void setExecutor(DocumentRuleExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the maximum number of documents, submitted for the same rule in a single batch.
+     * 
+     * @param maxBatchSize
+     *            the maximum number of documents, submitted for the same rule in a single batch
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of pending executions. When it is reached, the oldest executions (up to the maximum batch size)
+     * are submitted before their debounce window is over. A value <code>&lt;= 0</code> disables the limit.
+     * 
+     * @param maxPending
+     *            the maximum number of pending executions
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Sets the debounce window in milliseconds. A value <code>&lt;= 0</code> disables the coalescing.
+     * 
+     * @param window
+     *            the debounce window in milliseconds
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Submits the execution of the rule on the specified document node. If an execution of the same rule on this node is already
+     * pending, the request is merged into it.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param documentName
+     *            the document name
+     */
+    public void submit(String workspace, String uuid, String ruleBeanId, String documentName) {
+        submit(workspace, uuid, ruleBeanId, documentName, 0);
+    }
+
+    /**
+     * Submits the execution of the rule on the specified document node with the specified expected cost. If an execution of the
+     * same rule on this node is already pending, the request is merged into it and the pending execution takes over the
+     * expected cost of the latest request.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param documentName
+     *            the document name
+     * @param cost
+     *            the expected cost (execution time in milliseconds) of the rule on the document
+     */
+    public void submit(String workspace, String uuid, String ruleBeanId, String documentName,
+            long cost) {
+        received.incrementAndGet();
+        if (scheduler == null) {
+            dispatch(new Pending(workspace, uuid, ruleBeanId, documentName, cost, 0));
+            return;
+        }
+        String key = workspace + "/" + uuid + "/" + ruleBeanId;
+        List<Pending> oldest = null;
+        synchronized (pending) {
+            Pending existing = pending.get(key);
+            if (existing != null) {
+                existing.cost = cost;
+                coalesced.incrementAndGet();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Coalesced execution of rule {} on node {}", ruleBeanId, uuid);
+                }
+                return;
+            }
+            if (maxPending > 0 && pending.size() >= maxPending) {
+                // entries are ordered by their due time
+                oldest = new ArrayList<Pending>(maxBatchSize);
+                for (Iterator<Pending> it = pending.values().iterator(); it.hasNext()
+                        && oldest.size() < maxBatchSize;) {
+                    oldest.add(it.next());
+                    it.remove();
+                }
+            }
+            pending.put(key, new Pending(workspace, uuid, ruleBeanId, documentName, cost,
+                    System.currentTimeMillis() + window));
+        }
+        if (oldest != null) {
+            earlyFlushes.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} pending executions reached. Dispatching the oldest {} early",
+                        maxPending, oldest.size());
+            }
+            dispatch(oldest);
+        }
+    }
+}
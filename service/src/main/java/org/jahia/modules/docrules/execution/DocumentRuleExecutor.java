@@ -0,0 +1,654 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.execution;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jahia.modules.docrules.DocumentRuleJob;
+import org.jahia.modules.docrules.stats.DocumentRuleStatistics;
+import org.jahia.services.scheduler.SchedulerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Dedicated executor for background document rules. Each rule type gets its own thread pool with a configurable concurrency
+ * and a bounded queue. If the queue of a rule is full, the configured {@link RejectionPolicy} is applied. Independent synchronous
+ * rules are executed concurrently in a separate pool without a queue (see {@link #executeParallel(String, String, String)}).
+ * <p>
+ * Executions are scheduled by their expected cost (estimated execution time in milliseconds): executions with a cost above the
+ * heavy threshold run in a separate heavy lane of the rule with its own threads, so that a large conversion does not block the
+ * small documents behind it. Within a lane, cheaper executions are started first, but an execution is never overtaken by
+ * executions submitted more than <code>min(cost, maxAging)</code> milliseconds after it, so that expensive executions do not
+ * starve.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=DocumentRuleExecutor",
+        description = "Executor of the background document rules")
+public class DocumentRuleExecutor implements DisposableBean {
+
+    /**
+     * Policy, applied when the queue of a rule is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * The rule is executed synchronously in the caller thread.
+         */
+        CALLER_RUNS,
+        /**
+         * The rule execution is deferred to a Jahia background job.
+         */
+        DEFER,
+        /**
+         * The rule execution is rejected and logged.
+         */
+        REJECT;
+    }
+
+    private class RejectionHandler implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+            RuleTask task = (RuleTask) r;
+            if (pool.isShutdown()) {
+                defer(task);
+                return;
+            }
+            switch (rejectionPolicy) {
+                case CALLER_RUNS:
+                    callerRuns.incrementAndGet();
+                    task.run();
+                    break;
+                case DEFER:
+                    defer(task);
+                    break;
+                default:
+                    rejected.incrementAndGet();
+                    logger.warn("Queue for document rule {} is full. Rejecting execution on node(s) {}",
+                            task.ruleBeanId, task.uuids);
+                    task.reject();
+            }
+        }
+    }
+
+    private class RuleTask extends FutureTask<Object> {
+
+        private final long cost;
+
+        private final String documentName;
+
+        private final long enqueued = System.currentTimeMillis();
+
+        private final long priority;
+
+        private final String ruleBeanId;
+
+        private final long sequence = taskSequence.incrementAndGet();
+
+        private final List<String> uuids;
+
+        private final String workspace;
+
+        RuleTask(final String workspace, final List<String> uuids, final String ruleBeanId,
+                String documentName, long cost) {
+            super(new Runnable() {
+                public void run() {
+                    try {
+                        DocumentRuleJob.executeRule(workspace, uuids, ruleBeanId, commitInterval);
+                    } catch (Exception e) {
+                        logger.error("Error executing rule " + ruleBeanId + " on the document node(s) "
+                                + uuids, e);
+                    }
+                }
+            }, null);
+            this.workspace = workspace;
+            this.uuids = uuids;
+            this.ruleBeanId = ruleBeanId;
+            this.documentName = documentName;
+            this.cost = cost;
+            this.priority = enqueued + Math.min(Math.max(cost, 0), maxAging);
+        }
+
+        void deferred() {
+            set(null);
+        }
+
+        void reject() {
+            setException(new RejectedExecutionException("Queue for document rule " + ruleBeanId
+                    + " is full"));
+        }
+
+        @Override
+        public void run() {
+            long wait = System.currentTimeMillis() - enqueued;
+            waitTime.addAndGet(wait);
+            long max = maxWaitTime.get();
+            while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+                max = maxWaitTime.get();
+            }
+            DocumentRuleStatistics.getInstance().recordSchedulingDelay(ruleBeanId, wait);
+            started.incrementAndGet();
+            super.run();
+        }
+    }
+
+    /**
+     * Priority queue for the rule executions of a lane, which accepts at most the configured number of elements.
+     */
+    private static class TaskQueue extends PriorityBlockingQueue<Runnable> {
+
+        private static final long serialVersionUID = -2413577146712530126L;
+
+        private final int capacity;
+
+        TaskQueue(int capacity) {
+            super(11, TASK_ORDER);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            synchronized (this) {
+                return size() < capacity && super.offer(task);
+            }
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(capacity - size(), 0);
+        }
+    }
+
+    private static final String HEAVY_LANE = "/heavy";
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRuleExecutor.class);
+
+    private static final Comparator<Runnable> TASK_ORDER = new Comparator<Runnable>() {
+        public int compare(Runnable r1, Runnable r2) {
+            RuleTask t1 = (RuleTask) r1;
+            RuleTask t2 = (RuleTask) r2;
+            if (t1.priority != t2.priority) {
+                return t1.priority < t2.priority ? -1 : 1;
+            }
+            return t1.sequence < t2.sequence ? -1 : (t1.sequence == t2.sequence ? 0 : 1);
+        }
+    };
+
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    private int commitInterval = 20;
+
+    private Map<String, Integer> concurrency = Collections.emptyMap();
+
+    private int defaultConcurrency = 4;
+
+    private int defaultHeavyConcurrency = 1;
+
+    private final AtomicLong deferred = new AtomicLong();
+
+    private Map<String, Integer> heavyConcurrency = Collections.emptyMap();
+
+    private final AtomicLong heavySubmitted = new AtomicLong();
+
+    private long heavyThreshold = 30000;
+
+    private long maxAging = 300000;
+
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    private final ConcurrentMap<String, ThreadPoolExecutor> pools = new ConcurrentHashMap<String, ThreadPoolExecutor>();
+
+    private int parallelConcurrency = 16;
+
+    private ThreadPoolExecutor parallelPool;
+
+    private final AtomicLong parallelSubmitted = new AtomicLong();
+
+    private int queueCapacity = 1000;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private RejectionPolicy rejectionPolicy = RejectionPolicy.DEFER;
+
+    private SchedulerService schedulerService;
+
+    private final AtomicLong started = new AtomicLong();
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong taskSequence = new AtomicLong();
+
+    private final AtomicLong waitTime = new AtomicLong();
+
+    private void defer(RuleTask task) {
+        try {
+            schedulerService.scheduleJobNow(task.uuids.size() == 1 ? DocumentRuleJob.createJob(
+                    task.workspace, task.uuids.get(0), task.ruleBeanId, task.documentName)
+                    : DocumentRuleJob.createJob(task.workspace, task.uuids, task.ruleBeanId,
+                            commitInterval));
+            deferred.incrementAndGet();
+            task.deferred();
+        } catch (Exception e) {
+            logger.error("Unable to schedule background job for rule " + task.ruleBeanId
+                    + " on the document node(s) " + task.uuids, e);
+            task.reject();
+        }
+    }
+
+    public void destroy() throws Exception {
+        synchronized (this) {
+            if (parallelPool != null) {
+                parallelPool.shutdown();
+                parallelPool = null;
+            }
+        }
+        for (ThreadPoolExecutor pool : pools.values()) {
+            pool.shutdown();
+        }
+        for (Map.Entry<String, ThreadPoolExecutor> pool : pools.entrySet()) {
+            if (!pool.getValue().awaitTermination(10, TimeUnit.SECONDS)) {
+                List<Runnable> pending = pool.getValue().shutdownNow();
+                logger.info("Deferring {} pending execution(s) of document rule {}"
+                        + " to background jobs", pending.size(), pool.getKey());
+                for (Runnable task : pending) {
+                    defer((RuleTask) task);
+                }
+            }
+        }
+        pools.clear();
+    }
+
+    /**
+     * Submits the execution of the rule on the specified document node.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param documentName
+     *            the document name
+     * @return the future for the rule execution
+     */
+    public Future<?> execute(String workspace, String uuid, String ruleBeanId, String documentName) {
+        return execute(workspace, uuid, ruleBeanId, documentName, 0);
+    }
+
+    /**
+     * Submits the execution of the rule on the specified document node with the specified expected cost.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param documentName
+     *            the document name
+     * @param cost
+     *            the expected cost (execution time in milliseconds) of the rule on the document
+     * @return the future for the rule execution
+     */
+    public Future<?> execute(String workspace, String uuid, String ruleBeanId,
+            String documentName, long cost) {
+        return submit(new RuleTask(workspace, Collections.singletonList(uuid), ruleBeanId,
+                documentName, cost));
+    }
+
+    /**
+     * Submits the execution of the rule on the specified document nodes as a single batch.
+     * 
+     * @param workspace
+     *            the workspace of the document nodes
+     * @param uuids
+     *            the identifiers of the document nodes
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the future for the batch execution
+     * @see DocumentRuleJob#executeRule(String, List, String, int)
+     */
+    public Future<?> executeBatch(String workspace, List<String> uuids, String ruleBeanId) {
+        return executeBatch(workspace, uuids, ruleBeanId, 0);
+    }
+
+    /**
+     * Submits the execution of the rule on the specified document nodes as a single batch with the specified expected cost.
+     * 
+     * @param workspace
+     *            the workspace of the document nodes
+     * @param uuids
+     *            the identifiers of the document nodes
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param cost
+     *            the expected cost (execution time in milliseconds) of the most expensive document of the batch
+     * @return the future for the batch execution
+     * @see DocumentRuleJob#executeRule(String, List, String, int)
+     */
+    public Future<?> executeBatch(String workspace, List<String> uuids, String ruleBeanId,
+            long cost) {
+        return submit(new RuleTask(workspace, uuids, ruleBeanId, null, cost));
+    }
+
+    /**
+     * Executes the rule on the specified document node in a separate thread, using a dedicated system session, and returns
+     * immediately. Is used for running independent synchronous rules of a document concurrently, the caller is expected to wait
+     * for the returned future. If all threads of the parallel pool are busy, the rule is executed in the caller thread.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the future for the rule execution
+     * @see DocumentRuleJob#executeRule(String, String, String)
+     */
+    public Future<?> executeParallel(final String workspace, final String uuid,
+            final String ruleBeanId) {
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws Exception {
+                DocumentRuleJob.executeRule(workspace, uuid, ruleBeanId);
+                return null;
+            }
+        });
+        parallelSubmitted.incrementAndGet();
+        getParallelPool().execute(task);
+        return task;
+    }
+
+    /**
+     * Returns the average time in milliseconds the rule executions waited in the queue.
+     * 
+     * @return the average time in milliseconds the rule executions waited in the queue
+     */
+    @ManagedAttribute
+    public long getAverageWaitTime() {
+        long count = started.get();
+        return count > 0 ? waitTime.get() / count : 0;
+    }
+
+    @ManagedAttribute
+    public long getCallerRuns() {
+        return callerRuns.get();
+    }
+
+    @ManagedAttribute
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    @ManagedAttribute(description = "Number of executions submitted to the heavy lanes")
+    public long getHeavySubmitted() {
+        return heavySubmitted.get();
+    }
+
+    /**
+     * Returns the maximum time in milliseconds a rule execution waited in the queue.
+     * 
+     * @return the maximum time in milliseconds a rule execution waited in the queue
+     */
+    @ManagedAttribute
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    private synchronized ThreadPoolExecutor getParallelPool() {
+        if (parallelPool == null) {
+            parallelPool = new ThreadPoolExecutor(parallelConcurrency, parallelConcurrency, 60,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "doc-rules-parallel-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            parallelPool.allowCoreThreadTimeOut(true);
+        }
+        return parallelPool;
+    }
+
+    @ManagedAttribute
+    public long getParallelSubmitted() {
+        return parallelSubmitted.get();
+    }
+
+    private ThreadPoolExecutor getPool(String ruleBeanId, boolean heavy) {
+        final String lane = heavy ? ruleBeanId + HEAVY_LANE : ruleBeanId;
+        ThreadPoolExecutor pool = pools.get(lane);
+        if (pool == null) {
+            Integer threads = (heavy ? heavyConcurrency : concurrency).get(ruleBeanId);
+            int size = threads != null && threads.intValue() > 0 ? threads.intValue()
+                    : (heavy ? defaultHeavyConcurrency : defaultConcurrency);
+            pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new TaskQueue(
+                    queueCapacity), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "doc-rules-" + lane.replace('/', '-') + "-"
+                            + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new RejectionHandler());
+            pool.allowCoreThreadTimeOut(true);
+            ThreadPoolExecutor existing = pools.putIfAbsent(lane, pool);
+            if (existing != null) {
+                pool.shutdown();
+                pool = existing;
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Returns the total number of rule executions, waiting in the queues.
+     * 
+     * @return the total number of rule executions, waiting in the queues
+     */
+    @ManagedAttribute
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor pool : pools.values()) {
+            depth += pool.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of rule executions, waiting in the queue, per rule. The heavy lane of a rule is reported with the
+     * <code>/heavy</code> suffix.
+     * 
+     * @return the number of rule executions, waiting in the queue, per rule
+     */
+    @ManagedAttribute
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        for (Map.Entry<String, ThreadPoolExecutor> pool : pools.entrySet()) {
+            depths.put(pool.getKey(), pool.getValue().getQueue().size());
+        }
+        return depths;
+    }
+
+    @ManagedAttribute
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @ManagedAttribute
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * Checks if an execution with the specified expected cost is executed in the heavy lane of its rule.
+     * 
+     * @param cost
+     *            the expected cost (execution time in milliseconds)
+     * @return <code>true</code> if an execution with the specified expected cost is executed in the heavy lane of its rule
+     */
+    public boolean isHeavy(long cost) {
+        return heavyThreshold > 0 && cost >= heavyThreshold;
+    }
+
+    private Future<?> submit(RuleTask task) {
+        submitted.incrementAndGet();
+        boolean heavy = isHeavy(task.cost);
+        if (heavy) {
+            heavySubmitted.incrementAndGet();
+        }
+        getPool(task.ruleBeanId, heavy).execute(task);
+        return task;
+    }
+
+    /**
+     * Sets the number of documents of a batch, after which the changes are saved.
+     * 
+     * @param commitInterval
+     *            the number of documents of a batch, after which the changes are saved
+     */
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Sets the number of concurrent executions per rule bean ID. Rules, not mentioned here, use the default concurrency.
+     * 
+     * @param concurrency
+     *            the number of concurrent executions per rule bean ID
+     */
+    public void setConcurrency(Map<String, Integer> concurrency) {
+        this.concurrency = concurrency != null ? concurrency : Collections
+                .<String, Integer> emptyMap();
+    }
+
+    public void setDefaultConcurrency(int defaultConcurrency) {
+        this.defaultConcurrency = defaultConcurrency;
+    }
+
+    public void setDefaultHeavyConcurrency(int defaultHeavyConcurrency) {
+        this.defaultHeavyConcurrency = defaultHeavyConcurrency;
+    }
+
+    /**
+     * Sets the number of concurrent executions in the heavy lane per rule bean ID. Rules, not mentioned here, use the default
+     * heavy concurrency.
+     * 
+     * @param heavyConcurrency
+     *            the number of concurrent executions in the heavy lane per rule bean ID
+     */
+    public void setHeavyConcurrency(Map<String, Integer> heavyConcurrency) {
+        this.heavyConcurrency = heavyConcurrency != null ? heavyConcurrency : Collections
+                .<String, Integer> emptyMap();
+    }
+
+    /**
+     * Sets the expected cost (execution time in milliseconds), starting from which an execution is considered heavy and runs in
+     * the heavy lane of its rule. A value <code>&lt;= 0</code> disables the heavy lanes.
+     * 
+     * @param heavyThreshold
+     *            the expected cost, starting from which an execution is considered heavy
+     */
+    public void setHeavyThreshold(long heavyThreshold) {
+        this.heavyThreshold = heavyThreshold;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds, an execution can be overtaken by cheaper executions, submitted after it.
+     * 
+     * @param maxAging
+     *            the maximum time in milliseconds, an execution can be overtaken by cheaper executions
+     */
+    public void setMaxAging(long maxAging) {
+        this.maxAging = maxAging;
+    }
+
+    /**
+     * Sets the maximum number of independent synchronous rules, executed concurrently.
+     * 
+     * @param parallelConcurrency
+     *            the maximum number of independent synchronous rules, executed concurrently
+     */
+    public void setParallelConcurrency(int parallelConcurrency) {
+        this.parallelConcurrency = parallelConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of pending executions per rule.
+     * 
+     * @param queueCapacity
+     *            the maximum number of pending executions per rule
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setRejectionPolicy(RejectionPolicy rejectionPolicy) {
+        this.rejectionPolicy = rejectionPolicy;
+    }
+
+    public void setSchedulerService(SchedulerService schedulerService) {
+        this.schedulerService = schedulerService;
+    }
+}
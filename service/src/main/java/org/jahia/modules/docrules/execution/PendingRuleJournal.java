@@ -0,0 +1,742 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.execution;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jahia.modules.docrules.DocumentRuleJob;
+import org.jahia.services.scheduler.SchedulerService;
+import org.jahia.settings.SettingsBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Durable local journal of the pending background rule executions (workspace, node identifier, rule bean ID), which survives
+ * restarts also with a RAM job store. Work items are appended to memory-mapped segment files when the rule is handed over for
+ * background execution and are marked as completed by the {@link DocumentRuleJob}, once the rule was executed on the document.
+ * On startup the unfinished items are submitted again.
+ * <p>
+ * Each record is written as <code>[length][CRC32][type, id, data]</code>, the length being written last, so that a torn record
+ * ends the replay of its segment. The mapped pages are forced to disk periodically outside of the journal lock, so neither an
+ * append nor a completion waits for the disk.
+ * Segments are only deleted in order, starting with the oldest one, when all its items are completed; the oldest segment with
+ * only a few unfinished items left is compacted by re-appending these items to the current segment. The journal itself depends
+ * on the local file system only.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=PendingRuleJournal",
+        description = "Journal of pending background document rule executions")
+public class PendingRuleJournal implements InitializingBean, DisposableBean,
+        ApplicationListener<ContextRefreshedEvent> {
+
+    /**
+     * Pending work item of the journal.
+     */
+    public static final class Entry {
+
+        private long generation = 1;
+
+        private final long id;
+
+        private final String ruleBeanId;
+
+        private Segment segment;
+
+        private final String uuid;
+
+        private final String workspace;
+
+        Entry(long id, String workspace, String uuid, String ruleBeanId) {
+            super();
+            this.id = id;
+            this.workspace = workspace;
+            this.uuid = uuid;
+            this.ruleBeanId = ruleBeanId;
+        }
+
+        public String getRuleBeanId() {
+            return ruleBeanId;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public String getWorkspace() {
+            return workspace;
+        }
+
+        @Override
+        public String toString() {
+            return workspace + "/" + uuid + "/" + ruleBeanId;
+        }
+    }
+
+    private static class Segment {
+
+        private int added;
+
+        private MappedByteBuffer buffer;
+
+        private boolean dirty;
+
+        private final File file;
+
+        private int live;
+
+        private int position;
+
+        private RandomAccessFile raf;
+
+        Segment(File file) {
+            super();
+            this.file = file;
+        }
+    }
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final Logger logger = LoggerFactory.getLogger(PendingRuleJournal.class);
+
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    private static final String SUFFIX = ".journal";
+
+    private static final byte TYPE_ADD = 1;
+
+    private static final byte TYPE_DONE = 2;
+
+    private static volatile PendingRuleJournal instance;
+
+    /**
+     * Returns the journal of the currently started module context or <code>null</code> if the journal is not configured or not
+     * opened yet.
+     * 
+     * @return the journal of the currently started module context or <code>null</code>
+     */
+    public static PendingRuleJournal getInstance() {
+        return instance;
+    }
+
+    private static String getKey(String workspace, String uuid, String ruleBeanId) {
+        return workspace + "/" + uuid + "/" + ruleBeanId;
+    }
+
+    private final AtomicLong appended = new AtomicLong();
+
+    private double compactionRatio = 0.25;
+
+    private final AtomicLong compactions = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private Segment current;
+
+    private File directory;
+
+    private DocumentRuleExecutor executor;
+
+    private long nextId = 1;
+
+    private final Map<String, Entry> pending = new HashMap<String, Entry>();
+
+    private boolean replayed;
+
+    private int replayBatchSize = 100;
+
+    private final AtomicLong replayedItems = new AtomicLong();
+
+    private SchedulerService schedulerService;
+
+    private int segmentSize = 8 * 1024 * 1024;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private long sequence;
+
+    private ScheduledExecutorService syncer;
+
+    private long syncInterval = 1000;
+
+    public void afterPropertiesSet() throws Exception {
+        if (directory == null) {
+            directory = new File(SettingsBean.getInstance().getJahiaVarDiskPath(),
+                    "doc-rules-journal");
+        }
+        open();
+        sync();
+        syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-journal");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (syncInterval > 0) {
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        sync();
+                    } catch (Exception e) {
+                        logger.error("Error flushing the journal of pending document rules", e);
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        instance = this;
+    }
+
+    /**
+     * Appends a pending execution of the rule on the specified document node. If the same execution is already pending, nothing
+     * is written, but the generation of the pending entry is increased, so that an execution, which started before, does not
+     * complete it (see {@link #complete(String, String, String, long)}). Errors are logged, but not propagated, so the journal
+     * never prevents the scheduling of a rule.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the generation of the pending entry or <code>0</code> if the execution could not be journaled
+     */
+    public long append(String workspace, String uuid, String ruleBeanId) {
+        String key = getKey(workspace, uuid, ruleBeanId);
+        synchronized (this) {
+            if (current == null) {
+                return 0;
+            }
+            Entry entry = pending.get(key);
+            if (entry != null) {
+                return ++entry.generation;
+            }
+            entry = new Entry(nextId++, workspace, uuid, ruleBeanId);
+            try {
+                write(TYPE_ADD, entry);
+            } catch (IOException e) {
+                logger.error("Unable to append pending execution " + key + " to the journal", e);
+                return 0;
+            }
+            pending.put(key, entry);
+        }
+        appended.incrementAndGet();
+        return 1;
+    }
+
+    /**
+     * Moves the unfinished items of the oldest segments forward and removes the segments, which have no unfinished items anymore,
+     * from the journal. The removed segments are returned to be deleted, once the moved items are forced to disk.
+     * 
+     * @return the removed segments
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    private List<Segment> compact() throws IOException {
+        List<Segment> removed = new LinkedList<Segment>();
+        while (segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            if (oldest.live > 0 && oldest.live > oldest.added * compactionRatio) {
+                break;
+            }
+            if (oldest.live > 0) {
+                List<Entry> moved = new ArrayList<Entry>(oldest.live);
+                for (Entry entry : pending.values()) {
+                    if (entry.segment == oldest) {
+                        moved.add(entry);
+                    }
+                }
+                for (Entry entry : moved) {
+                    oldest.live--;
+                    write(TYPE_ADD, entry);
+                }
+            }
+            removed.add(segments.removeFirst());
+        }
+        return removed;
+    }
+
+    /**
+     * Marks the execution of the rule on the specified document node as completed, regardless of its generation. Does nothing if
+     * the execution is not pending.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     */
+    public void complete(String workspace, String uuid, String ruleBeanId) {
+        complete(workspace, uuid, ruleBeanId, Long.MAX_VALUE);
+    }
+
+    /**
+     * Marks the execution of the rule on the specified document node as completed, if it was not appended again after the
+     * provided generation was read, i.e. after the completing execution was started. Otherwise the entry stays pending for the
+     * newer execution. Does nothing if the execution is not pending.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param generation
+     *            the generation of the entry, covered by the completing execution (see
+     *            {@link #getGeneration(String, String, String)})
+     */
+    public void complete(String workspace, String uuid, String ruleBeanId, long generation) {
+        String key = getKey(workspace, uuid, ruleBeanId);
+        synchronized (this) {
+            Entry entry = pending.get(key);
+            if (entry == null || entry.generation > generation) {
+                return;
+            }
+            pending.remove(key);
+            entry.segment.live--;
+            try {
+                write(TYPE_DONE, entry);
+            } catch (IOException e) {
+                logger.error("Unable to mark execution " + key + " as completed in the journal", e);
+                return;
+            }
+        }
+        completed.incrementAndGet();
+    }
+
+    private void close(Segment segment) {
+        if (segment.buffer != null) {
+            segment.buffer.force();
+            segment.buffer = null;
+        }
+        IOUtils.closeQuietly(segment.raf);
+    }
+
+    private void delete(Segment segment) {
+        segment.buffer = null;
+        IOUtils.closeQuietly(segment.raf);
+        if (!segment.file.delete() && segment.file.exists()) {
+            logger.warn("Unable to delete journal segment {}", segment.file);
+        }
+        compactions.incrementAndGet();
+    }
+
+    public void destroy() throws Exception {
+        instance = null;
+        if (syncer != null) {
+            syncer.shutdown();
+            syncer.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                close(segment);
+            }
+            segments.clear();
+            current = null;
+        }
+    }
+
+    private byte[] encode(byte type, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(type == TYPE_ADD ? 96 : 9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(entry.id);
+        if (type == TYPE_ADD) {
+            out.writeUTF(entry.workspace);
+            out.writeUTF(entry.uuid);
+            out.writeUTF(entry.ruleBeanId);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @ManagedAttribute(description = "Number of appended pending executions")
+    public long getAppended() {
+        return appended.get();
+    }
+
+    @ManagedAttribute(description = "Number of deleted or compacted journal segments")
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    @ManagedAttribute(description = "Number of completed executions")
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    @ManagedAttribute
+    public String getDirectory() {
+        return directory.getPath();
+    }
+
+    /**
+     * Returns the current generation of the pending execution of the rule on the specified document node, which is increased by
+     * each {@link #append(String, String, String)} of the same execution. An execution reads it before it starts and passes it to
+     * {@link #complete(String, String, String, long)} once it is done.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the current generation of the pending execution or <code>0</code> if it is not pending
+     */
+    public synchronized long getGeneration(String workspace, String uuid, String ruleBeanId) {
+        Entry entry = pending.get(getKey(workspace, uuid, ruleBeanId));
+        return entry != null ? entry.generation : 0;
+    }
+
+    /**
+     * Returns a snapshot of the pending executions.
+     * 
+     * @return a snapshot of the pending executions
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<Entry>(pending.values());
+    }
+
+    @ManagedAttribute(description = "Number of pending executions")
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    @ManagedAttribute(description = "Number of executions, submitted again on startup")
+    public long getReplayed() {
+        return replayedItems.get();
+    }
+
+    @ManagedAttribute(description = "Number of journal segment files")
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Checks if the execution of the rule on the specified document node is pending.
+     * 
+     * @param workspace
+     *            the workspace of the document node
+     * @param uuid
+     *            the identifier of the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return <code>true</code> if the execution of the rule on the specified document node is pending
+     */
+    public synchronized boolean isPending(String workspace, String uuid, String ruleBeanId) {
+        return pending.containsKey(getKey(workspace, uuid, ruleBeanId));
+    }
+
+    private Segment map(File file, boolean create) throws IOException {
+        Segment segment = new Segment(file);
+        segment.raf = new RandomAccessFile(file, "rw");
+        try {
+            if (create) {
+                segment.raf.setLength(segmentSize);
+            }
+            segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    segment.raf.length());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(segment.raf);
+            throw e;
+        }
+        return segment;
+    }
+
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        // replay the unfinished items as soon as the rule beans are available
+        if (!replayed) {
+            replayed = true;
+            replay();
+        }
+    }
+
+    private synchronized void open() throws IOException {
+        FileUtils.forceMkdir(directory);
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        Map<Long, Entry> entries = new HashMap<Long, Entry>();
+        for (File file : files) {
+            Segment segment = map(file, false);
+            read(segment, entries);
+            segments.add(segment);
+            String name = file.getName();
+            sequence = Math.max(sequence,
+                    Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16));
+        }
+        roll();
+        if (!pending.isEmpty()) {
+            logger.info("Found {} pending document rule execution(s) in the journal {}",
+                    pending.size(), directory);
+        }
+    }
+
+    private void read(Segment segment, Map<Long, Entry> entries) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.limit()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(body);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                logger.warn("Journal segment {} has a torn record at position {}."
+                        + " Ignoring the rest of the segment.", segment.file, position);
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            long id = in.readLong();
+            nextId = Math.max(nextId, id + 1);
+            if (type == TYPE_ADD) {
+                Entry entry = new Entry(id, in.readUTF(), in.readUTF(), in.readUTF());
+                pending.put(entry.toString(), entry);
+                Entry previous = entries.put(id, entry);
+                if (previous != null) {
+                    // the item was moved forward by a compaction
+                    previous.segment.live--;
+                }
+                entry.segment = segment;
+                segment.added++;
+                segment.live++;
+            } else {
+                Entry entry = entries.remove(id);
+                if (entry != null) {
+                    pending.remove(entry.toString());
+                    entry.segment.live--;
+                }
+            }
+            position += HEADER_SIZE + length;
+        }
+        segment.position = position;
+    }
+
+    /**
+     * Submits the pending executions again, in batches per workspace and rule, to the executor or as background jobs, if no
+     * executor is configured. The items remain in the journal until they are completed.
+     */
+    @ManagedOperation(description = "Submits all pending executions again")
+    public void replay() {
+        Map<String, List<String>> batches = new LinkedHashMap<String, List<String>>();
+        for (Entry entry : getPending()) {
+            String key = entry.workspace + "/" + entry.ruleBeanId;
+            List<String> uuids = batches.get(key);
+            if (uuids == null || uuids.size() >= replayBatchSize) {
+                if (uuids != null) {
+                    submit(key, uuids);
+                }
+                uuids = new ArrayList<String>();
+                batches.put(key, uuids);
+            }
+            uuids.add(entry.uuid);
+        }
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            submit(batch.getKey(), batch.getValue());
+        }
+    }
+
+    private void roll() throws IOException {
+        File file = new File(directory, String.format("%016x", ++sequence) + SUFFIX);
+        current = map(file, true);
+        segments.add(current);
+    }
+
+    public void setCompactionRatio(double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+    }
+
+    /**
+     * Sets the directory for the journal segments. Defaults to <code>doc-rules-journal</code> in the Jahia var directory.
+     * 
+     * @param directory
+     *            the directory for the journal segments
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public void setExecutor(DocumentRuleExecutor executor) {
+        this.executor = executor;
+    }
+
+    public void setReplayBatchSize(int replayBatchSize) {
+        this.replayBatchSize = replayBatchSize;
+    }
+
+    public void setSchedulerService(SchedulerService schedulerService) {
+        this.schedulerService = schedulerService;
+    }
+
+    /**
+     * Sets the size of a journal segment file in bytes.
+     * 
+     * @param segmentSize
+     *            the size of a journal segment file in bytes
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * Sets the interval in milliseconds, in which the appended records are forced to disk. A value <code>&lt;= 0</code> leaves
+     * it to the operating system.
+     * 
+     * @param syncInterval
+     *            the interval in milliseconds, in which the appended records are forced to disk
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    private void submit(String key, List<String> uuids) {
+        String workspace = key.substring(0, key.indexOf('/'));
+        String ruleBeanId = key.substring(key.indexOf('/') + 1);
+        replayedItems.addAndGet(uuids.size());
+        try {
+            if (executor != null) {
+                executor.executeBatch(workspace, uuids, ruleBeanId);
+            } else {
+                schedulerService.scheduleJobNow(DocumentRuleJob.createJob(workspace, uuids,
+                        ruleBeanId, 0));
+            }
+        } catch (Exception e) {
+            logger.error("Unable to submit " + uuids.size() + " pending execution(s) of rule "
+                    + ruleBeanId + " from the journal", e);
+        }
+    }
+
+    /**
+     * Forces the appended records to disk and deletes or compacts the segments, which are no longer needed. Only the compaction
+     * is done under the journal lock; the pages are forced and the old segments are deleted outside of it.
+     * 
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    public void sync() throws IOException {
+        List<Segment> removed;
+        List<MappedByteBuffer> dirty = new LinkedList<MappedByteBuffer>();
+        synchronized (this) {
+            if (current == null) {
+                return;
+            }
+            removed = compact();
+            for (Segment segment : segments) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment.buffer);
+                }
+            }
+        }
+
+        for (MappedByteBuffer buffer : dirty) {
+            buffer.force();
+        }
+        // moved items are on disk now
+        for (Segment segment : removed) {
+            delete(segment);
+        }
+    }
+
+    private void write(byte type, Entry entry) throws IOException {
+        byte[] body = encode(type, entry);
+        if (current.position + HEADER_SIZE + body.length > current.buffer.capacity()) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buffer = current.buffer.duplicate();
+        buffer.position(current.position + HEADER_SIZE);
+        buffer.put(body);
+        current.buffer.putInt(current.position + 4, (int) crc.getValue());
+        // the length is written last: a torn record has no length and ends the replay of the segment
+        current.buffer.putInt(current.position, body.length);
+        current.position += HEADER_SIZE + body.length;
+        current.dirty = true;
+        if (type == TYPE_ADD) {
+            entry.segment = current;
+            current.added++;
+            current.live++;
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.stats;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.MBeanExportOperations;
+
+/**
+ * Holder of the execution statistics of document rules. The statistics of each rule are exposed as JMX MBeans under the
+ * <code>org.jahia.modules.docrules</code> domain as soon as the rule is executed for the first time.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentRuleStatistics {
+
+    private static final DocumentRuleStatistics INSTANCE = new DocumentRuleStatistics();
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRuleStatistics.class);
+
+    /**
+     * Returns the singleton instance of this class.
+     * 
+     * @return the singleton instance of this class
+     */
+    public static DocumentRuleStatistics getInstance() {
+        return INSTANCE;
+    }
+
+    private MBeanExportOperations exporter;
+
+    private final ConcurrentMap<String, RuleStatistics> rules = new ConcurrentHashMap<String, RuleStatistics>();
+
+    private DocumentRuleStatistics() {
+        super();
+    }
+
+    private void export(RuleStatistics stats) {
+        if (exporter == null) {
+            return;
+        }
+        String prefix = "org.jahia.modules.docrules:type=RuleStatistics,rule="
+                + ObjectName.quote(stats.getRuleBeanId());
+        try {
+            exporter.registerManagedResource(stats, new ObjectName(prefix));
+            for (LatencyHistogram histogram : new LatencyHistogram[] { stats.getApplicableTime(),
+                    stats.getExecuteTime(), stats.getSaveTime(), stats.getSchedulingDelay() }) {
+                exporter.registerManagedResource(histogram, new ObjectName(prefix + ",histogram="
+                        + histogram.getName()));
+            }
+        } catch (MalformedObjectNameException e) {
+            logger.warn("Unable to register MBean for rule statistics " + stats.getRuleBeanId(), e);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to register MBean for rule statistics " + stats.getRuleBeanId(), e);
+        }
+    }
+
+    /**
+     * Returns the statistics of the specified rule.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the statistics of the specified rule
+     */
+    public RuleStatistics getRule(String ruleBeanId) {
+        RuleStatistics stats = rules.get(ruleBeanId);
+        if (stats == null) {
+            stats = new RuleStatistics(ruleBeanId);
+            RuleStatistics existing = rules.putIfAbsent(ruleBeanId, stats);
+            if (existing != null) {
+                stats = existing;
+            } else {
+                export(stats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Records a rule execution, deferred by the rate limiter.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     */
+    public void recordDeferred(String ruleBeanId) {
+        getRule(ruleBeanId).deferred();
+    }
+
+    /**
+     * Records a rule execution, replaced by its degraded variant by the rate limiter.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     */
+    public void recordDegraded(String ruleBeanId) {
+        getRule(ruleBeanId).degraded();
+    }
+
+    /**
+     * Records a rule execution, dropped by the rate limiter.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     */
+    public void recordDropped(String ruleBeanId) {
+        getRule(ruleBeanId).dropped();
+    }
+
+    /**
+     * Records a failed rule execution.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     */
+    public void recordFailure(String ruleBeanId) {
+        getRule(ruleBeanId).failed();
+    }
+
+    /**
+     * Records a document, rejected by the pre-filter condition of the rule before the rule was scheduled.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     */
+    public void recordFiltered(String ruleBeanId) {
+        getRule(ruleBeanId).filtered();
+    }
+
+    /**
+     * Records a rule execution.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param applicableNanos
+     *            duration of the applicability check in nanoseconds
+     * @param applicable
+     *            the result of the applicability check
+     * @param executeNanos
+     *            duration of the rule execution in nanoseconds; ignored if the rule was not applicable
+     */
+    public void recordInvocation(String ruleBeanId, long applicableNanos, boolean applicable,
+            long executeNanos) {
+        RuleStatistics stats = getRule(ruleBeanId);
+        stats.invoked();
+        stats.getApplicableTime().record(applicableNanos);
+        if (applicable) {
+            stats.getExecuteTime().record(executeNanos);
+        } else {
+            stats.rejected();
+        }
+    }
+
+    /**
+     * Records the duration of the session save after the rule execution.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param nanos
+     *            duration of the session save in nanoseconds
+     */
+    public void recordSave(String ruleBeanId, long nanos) {
+        getRule(ruleBeanId).getSaveTime().record(nanos);
+    }
+
+    /**
+     * Records the delay between the scheduling of a background rule execution and its start.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param millis
+     *            the delay in milliseconds
+     */
+    public void recordSchedulingDelay(String ruleBeanId, long millis) {
+        getRule(ruleBeanId).getSchedulingDelay().recordMicros(millis * 1000L);
+    }
+
+    /**
+     * Records a rule execution, skipped because the document was not changed since the last execution.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     */
+    public void recordUnchanged(String ruleBeanId) {
+        getRule(ruleBeanId).skipped();
+    }
+
+    /**
+     * Sets the exporter for registering the JMX MBeans of the rule statistics. Statistics, which were already created, are
+     * registered immediately.
+     * 
+     * @param exporter
+     *            the MBean exporter
+     */
+    public void setExporter(MBeanExportOperations exporter) {
+        this.exporter = exporter;
+        for (RuleStatistics stats : rules.values()) {
+            export(stats);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Lock-free latency histogram with exponential (power of two) buckets in microseconds. Recording a value costs a few atomic
+ * increments, so it can be used on hot paths.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(description = "Latency histogram (values in microseconds)")
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    private final String name;
+
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param name
+     *            the histogram name
+     */
+    public LatencyHistogram(String name) {
+        super();
+        this.name = name;
+    }
+
+    @ManagedAttribute(description = "Number of recorded values")
+    public long getCount() {
+        return count.get();
+    }
+
+    @ManagedAttribute(description = "Number of recorded values per bucket, bucket N containing values below 2^(N+1) microseconds")
+    public String getDistribution() {
+        StringBuilder out = new StringBuilder(128);
+        for (int i = 0; i < BUCKETS; i++) {
+            long value = buckets.get(i);
+            if (value > 0) {
+                if (out.length() > 0) {
+                    out.append(", ");
+                }
+                out.append("<").append(1L << (i + 1)).append(": ").append(value);
+            }
+        }
+        return out.toString();
+    }
+
+    @ManagedAttribute(description = "Maximum value in microseconds")
+    public long getMax() {
+        return max.get();
+    }
+
+    @ManagedAttribute(description = "Mean value in microseconds")
+    public long getMean() {
+        long c = count.get();
+        return c > 0 ? sum.get() / c : 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @ManagedAttribute(description = "Median (upper bucket bound) in microseconds")
+    public long getPercentile50() {
+        return getPercentile(50);
+    }
+
+    @ManagedAttribute(description = "95th percentile (upper bucket bound) in microseconds")
+    public long getPercentile95() {
+        return getPercentile(95);
+    }
+
+    @ManagedAttribute(description = "99th percentile (upper bucket bound) in microseconds")
+    public long getPercentile99() {
+        return getPercentile(99);
+    }
+
+    /**
+     * Returns the upper bound of the bucket, containing the specified percentile of the recorded values.
+     * 
+     * @param percentile
+     *            the percentile (1-100)
+     * @return the upper bound of the bucket in microseconds, containing the specified percentile of the recorded values
+     */
+    public long getPercentile(int percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (total * percentile + 99) / 100;
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= threshold) {
+                return Math.min(1L << (i + 1), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Records the specified duration.
+     * 
+     * @param nanos
+     *            the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        recordMicros(nanos / 1000L);
+    }
+
+    /**
+     * Records the specified duration.
+     * 
+     * @param micros
+     *            the duration in microseconds
+     */
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        int bucket = micros > 0 ? 63 - Long.numberOfLeadingZeros(micros) : 0;
+        buckets.incrementAndGet(bucket < BUCKETS ? bucket : BUCKETS - 1);
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    @ManagedOperation(description = "Resets the recorded values")
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[count=" + getCount() + ", mean=" + getMean() + "us, p95="
+                + getPercentile95() + "us, max=" + getMax() + "us]";
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Execution statistics of a single document rule.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(description = "Execution statistics of a document rule")
+public class RuleStatistics {
+
+    private final LatencyHistogram applicableTime;
+
+    private final LatencyHistogram executeTime;
+
+    private final AtomicLong deferred = new AtomicLong();
+
+    private final AtomicLong degraded = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong filtered = new AtomicLong();
+
+    private final AtomicLong invocations = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final String ruleBeanId;
+
+    private final LatencyHistogram saveTime;
+
+    private final LatencyHistogram schedulingDelay;
+
+    private final AtomicLong unchanged = new AtomicLong();
+
+    RuleStatistics(String ruleBeanId) {
+        super();
+        this.ruleBeanId = ruleBeanId;
+        applicableTime = new LatencyHistogram("isApplicable");
+        executeTime = new LatencyHistogram("execute");
+        saveTime = new LatencyHistogram("save");
+        schedulingDelay = new LatencyHistogram("schedulingDelay");
+    }
+
+    /**
+     * Returns the histogram of the {@link org.jahia.modules.docrules.DocumentRule#isApplicable} call duration.
+     * 
+     * @return the histogram of the {@link org.jahia.modules.docrules.DocumentRule#isApplicable} call duration
+     */
+    public LatencyHistogram getApplicableTime() {
+        return applicableTime;
+    }
+
+    @ManagedAttribute(description = "Number of executions deferred by the rate limiter")
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    @ManagedAttribute(description = "Number of executions degraded by the rate limiter")
+    public long getDegraded() {
+        return degraded.get();
+    }
+
+    @ManagedAttribute(description = "Number of executions dropped by the rate limiter")
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the histogram of the {@link org.jahia.modules.docrules.DocumentRule#execute} call duration.
+     * 
+     * @return the histogram of the {@link org.jahia.modules.docrules.DocumentRule#execute} call duration
+     */
+    public LatencyHistogram getExecuteTime() {
+        return executeTime;
+    }
+
+    @ManagedAttribute(description = "Number of failed rule executions")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @ManagedAttribute(description = "Number of documents rejected by the rule condition before scheduling")
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    @ManagedAttribute(description = "Number of rule invocations")
+    public long getInvocations() {
+        return invocations.get();
+    }
+
+    @ManagedAttribute(description = "Number of documents the rule was not applicable on")
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @ManagedAttribute(description = "Rule bean ID")
+    public String getRuleBeanId() {
+        return ruleBeanId;
+    }
+
+    /**
+     * Returns the histogram of the session save duration after the rule execution in a background job.
+     * 
+     * @return the histogram of the session save duration after the rule execution in a background job
+     */
+    public LatencyHistogram getSaveTime() {
+        return saveTime;
+    }
+
+    /**
+     * Returns the histogram of the delay between the scheduling of a background rule execution and its start.
+     * 
+     * @return the histogram of the delay between the scheduling of a background rule execution and its start
+     */
+    public LatencyHistogram getSchedulingDelay() {
+        return schedulingDelay;
+    }
+
+    @ManagedAttribute(description = "Number of executions skipped as the document was not changed")
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    void deferred() {
+        deferred.incrementAndGet();
+    }
+
+    void degraded() {
+        degraded.incrementAndGet();
+    }
+
+    void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    void filtered() {
+        filtered.incrementAndGet();
+    }
+
+    void invoked() {
+        invocations.incrementAndGet();
+    }
+
+    void rejected() {
+        rejections.incrementAndGet();
+    }
+
+    void skipped() {
+        unchanged.incrementAndGet();
+    }
+
+    @ManagedOperation(description = "Resets the statistics")
+    public void reset() {
+        invocations.set(0);
+        rejections.set(0);
+        failures.set(0);
+        filtered.set(0);
+        unchanged.set(0);
+        deferred.set(0);
+        dropped.set(0);
+        degraded.set(0);
+        applicableTime.reset();
+        executeTime.reset();
+        saveTime.reset();
+        schedulingDelay.reset();
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link DocumentRulePartitioner}, simulating a cluster of three members with several partitioners over
+ * {@link StaticClusterMembership} instances in the same process.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentRulePartitionerTest {
+
+    /**
+     * In-memory work queue, collecting the handed over executions per target member.
+     */
+    private static class MemoryWorkQueue implements ClusterWorkQueue {
+
+        private boolean available = true;
+
+        private final Map<String, List<String>> items = new HashMap<String, List<String>>();
+
+        List<String> get(String member) {
+            List<String> memberItems = items.get(member);
+            return memberItems != null ? memberItems : new ArrayList<String>();
+        }
+
+        public synchronized boolean offer(String member, String workspace, String uuid,
+                String ruleBeanId) {
+            if (!available) {
+                return false;
+            }
+            List<String> memberItems = items.get(member);
+            if (memberItems == null) {
+                memberItems = new ArrayList<String>();
+                items.put(member, memberItems);
+            }
+            memberItems.add(uuid);
+            return true;
+        }
+
+        int size() {
+            int size = 0;
+            for (List<String> memberItems : items.values()) {
+                size += memberItems.size();
+            }
+            return size;
+        }
+    }
+
+    private static final int KEYS = 10000;
+
+    private static final String[] MEMBERS = { "node1", "node2", "node3" };
+
+    private static final String RULE = "documentRuleCreatePdf";
+
+    private static String uuid(int i) {
+        return "0c1f4f2e-7b1d-4c3a-9a51-" + String.format("%012d", i);
+    }
+
+    private Map<String, StaticClusterMembership> memberships;
+
+    private Map<String, DocumentRulePartitioner> partitioners;
+
+    private MemoryWorkQueue queue;
+
+    private void changeMembers(Map<String, Integer> members) {
+        for (StaticClusterMembership membership : memberships.values()) {
+            membership.setMembers(members);
+        }
+    }
+
+    private Map<String, String> getOwners() {
+        Map<String, String> owners = new HashMap<String, String>();
+        for (int i = 0; i < KEYS; i++) {
+            owners.put(uuid(i), partitioners.get("node1").getOwner(uuid(i), RULE));
+        }
+        return owners;
+    }
+
+    @Before
+    public void setUp() {
+        Map<String, Integer> members = new LinkedHashMap<String, Integer>();
+        members.put("node1", Integer.valueOf(2));
+        members.put("node2", Integer.valueOf(1));
+        members.put("node3", Integer.valueOf(1));
+
+        queue = new MemoryWorkQueue();
+        memberships = new HashMap<String, StaticClusterMembership>();
+        partitioners = new HashMap<String, DocumentRulePartitioner>();
+        for (String member : MEMBERS) {
+            StaticClusterMembership membership = new StaticClusterMembership(member, members);
+            DocumentRulePartitioner partitioner = new DocumentRulePartitioner(membership);
+            partitioner.setWorkQueue(queue);
+            memberships.put(member, membership);
+            partitioners.put(member, partitioner);
+        }
+    }
+
+    @Test
+    public void testExactlyOneOwner() {
+        for (int i = 0; i < KEYS; i++) {
+            int owners = 0;
+            for (DocumentRulePartitioner partitioner : partitioners.values()) {
+                if (partitioner.isOwner(uuid(i), RULE)) {
+                    owners++;
+                }
+            }
+            assertEquals("Execution " + uuid(i) + " must have exactly one owner", 1, owners);
+        }
+    }
+
+    @Test
+    public void testHandOverToOwner() {
+        DocumentRulePartitioner partitioner = partitioners.get("node2");
+        int local = 0;
+        for (int i = 0; i < KEYS; i++) {
+            boolean handedOver = partitioner.handOver("default", uuid(i), RULE);
+            assertEquals(!partitioner.isOwner(uuid(i), RULE), handedOver);
+            if (!handedOver) {
+                local++;
+            }
+        }
+        assertEquals(KEYS - local, queue.size());
+        assertEquals(0, queue.get("node2").size());
+        for (String member : new String[] { "node1", "node3" }) {
+            for (String uuid : queue.get(member)) {
+                assertEquals(member, partitioner.getOwner(uuid, RULE));
+            }
+        }
+        assertEquals(local, partitioner.getOwned());
+        assertEquals(KEYS - local, partitioner.getDelegated());
+        assertEquals(0, partitioner.getUncertain());
+    }
+
+    @Test
+    public void testHandOverAfterMembershipChange() {
+        Map<String, Integer> members = new LinkedHashMap<String, Integer>();
+        members.put("node1", Integer.valueOf(2));
+        members.put("node2", Integer.valueOf(1));
+        changeMembers(members);
+
+        DocumentRulePartitioner partitioner = partitioners.get("node1");
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(!partitioner.isOwner(uuid(i), RULE),
+                    partitioner.handOver("default", uuid(i), RULE));
+        }
+        assertEquals(0, queue.get("node3").size());
+        assertEquals(KEYS - partitioner.getOwned(), queue.get("node2").size());
+        assertEquals(0, partitioner.getUncertain());
+    }
+
+    @Test
+    public void testLocalIfHandOverFails() {
+        queue.available = false;
+        DocumentRulePartitioner partitioner = partitioners.get("node1");
+        for (int i = 0; i < KEYS; i++) {
+            assertFalse(partitioner.handOver("default", uuid(i), RULE));
+        }
+        assertEquals(KEYS, partitioner.getOwned() + partitioner.getUncertain());
+        assertTrue(partitioner.getUncertain() > 0);
+    }
+
+    @Test
+    public void testLocalWithoutQueue() {
+        DocumentRulePartitioner partitioner = partitioners.get("node3");
+        partitioner.setWorkQueue(null);
+        for (int i = 0; i < KEYS; i++) {
+            assertFalse(partitioner.handOver("default", uuid(i), RULE));
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testMinimalMovementOnLeave() {
+        Map<String, String> before = getOwners();
+
+        Map<String, Integer> members = new LinkedHashMap<String, Integer>();
+        members.put("node1", Integer.valueOf(2));
+        members.put("node2", Integer.valueOf(1));
+        changeMembers(members);
+        Map<String, String> after = getOwners();
+
+        for (Map.Entry<String, String> owner : before.entrySet()) {
+            String newOwner = after.get(owner.getKey());
+            if ("node3".equals(owner.getValue())) {
+                assertFalse("node3".equals(newOwner));
+            } else {
+                assertEquals("Execution " + owner.getKey() + " must not move", owner.getValue(),
+                        newOwner);
+            }
+        }
+        assertEquals(1, partitioners.get("node1").getRebalances());
+    }
+
+    @Test
+    public void testWeightedShares() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String owner : getOwners().values()) {
+            Integer count = counts.get(owner);
+            counts.put(owner, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+        }
+        assertEquals(0.5, counts.get("node1").doubleValue() / KEYS, 0.1);
+        assertEquals(0.25, counts.get("node2").doubleValue() / KEYS, 0.1);
+        assertEquals(0.25, counts.get("node3").doubleValue() / KEYS, 0.1);
+    }
+
+}
@@ -0,0 +1,259 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link PendingRuleJournal}, using a temporary directory for the journal segments.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class PendingRuleJournalTest {
+
+    private static final String RULE = "documentRuleCreatePdf";
+
+    private static final String WORKSPACE = "default";
+
+    private static String uuid(int i) {
+        return "0c1f4f2e-7b1d-4c3a-9a51-" + String.format("%012d", i);
+    }
+
+    private File directory;
+
+    private PendingRuleJournal journal;
+
+    private Set<String> getPendingUuids() {
+        Set<String> uuids = new HashSet<String>();
+        for (PendingRuleJournal.Entry entry : journal.getPending()) {
+            assertEquals(WORKSPACE, entry.getWorkspace());
+            assertEquals(RULE, entry.getRuleBeanId());
+            uuids.add(entry.getUuid());
+        }
+        return uuids;
+    }
+
+    private File[] getSegmentFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".journal");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private PendingRuleJournal open() throws Exception {
+        PendingRuleJournal opened = new PendingRuleJournal();
+        opened.setDirectory(directory);
+        opened.setSegmentSize(0);
+        opened.setSyncInterval(0);
+        opened.afterPropertiesSet();
+        return opened;
+    }
+
+    private void reopen() throws Exception {
+        journal.destroy();
+        journal = open();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("doc-rules-journal", "");
+        directory.delete();
+        journal = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.destroy();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testAppendAndComplete() throws Exception {
+        journal.append(WORKSPACE, uuid(1), RULE);
+        journal.append(WORKSPACE, uuid(2), RULE);
+        journal.append(WORKSPACE, uuid(3), RULE);
+        journal.append(WORKSPACE, uuid(2), RULE);
+        journal.complete(WORKSPACE, uuid(2), RULE);
+        journal.complete(WORKSPACE, uuid(4), RULE);
+        assertEquals(3, journal.getAppended());
+        assertEquals(1, journal.getCompleted());
+        assertEquals(new HashSet<String>(Arrays.asList(uuid(1), uuid(3))), getPendingUuids());
+
+        reopen();
+        assertEquals(new HashSet<String>(Arrays.asList(uuid(1), uuid(3))), getPendingUuids());
+
+        // appended again after the restart
+        journal.append(WORKSPACE, uuid(2), RULE);
+        journal.complete(WORKSPACE, uuid(1), RULE);
+        reopen();
+        assertEquals(new HashSet<String>(Arrays.asList(uuid(2), uuid(3))), getPendingUuids());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // fills more than three segments of the minimum size
+        int count = 3000;
+        for (int i = 0; i < count; i++) {
+            journal.append(WORKSPACE, uuid(i), RULE);
+        }
+        int segments = journal.getSegments();
+        assertTrue("Expected several segments, but got " + segments, segments >= 4);
+
+        // keeps a few items of the oldest segment and completes the others
+        Set<String> kept = new HashSet<String>();
+        for (int i = 0; i < count; i++) {
+            if (i % 100 == 0) {
+                kept.add(uuid(i));
+            } else {
+                journal.complete(WORKSPACE, uuid(i), RULE);
+            }
+        }
+        journal.sync();
+        assertEquals(1, journal.getSegments());
+        assertEquals(1, getSegmentFiles().length);
+        assertTrue(journal.getCompactions() >= segments - 1);
+        assertEquals(kept, getPendingUuids());
+
+        reopen();
+        assertEquals(kept, getPendingUuids());
+    }
+
+    @Test
+    public void testCompleteKeepsNewerAppend() throws Exception {
+        assertEquals(1, journal.append(WORKSPACE, uuid(1), RULE));
+        // the execution starts
+        long generation = journal.getGeneration(WORKSPACE, uuid(1), RULE);
+        // the document changes again while it is running
+        assertEquals(2, journal.append(WORKSPACE, uuid(1), RULE));
+        journal.complete(WORKSPACE, uuid(1), RULE, generation);
+        assertTrue(journal.isPending(WORKSPACE, uuid(1), RULE));
+        assertEquals(0, journal.getCompleted());
+
+        // the newer execution completes the entry
+        generation = journal.getGeneration(WORKSPACE, uuid(1), RULE);
+        journal.complete(WORKSPACE, uuid(1), RULE, generation);
+        assertFalse(journal.isPending(WORKSPACE, uuid(1), RULE));
+        assertEquals(0, journal.getGeneration(WORKSPACE, uuid(1), RULE));
+        assertEquals(1, journal.getCompleted());
+    }
+
+    @Test
+    public void testNoCompactionOfLiveSegments() throws Exception {
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            journal.append(WORKSPACE, uuid(i), RULE);
+        }
+        int segments = journal.getSegments();
+        journal.sync();
+        assertEquals(segments, journal.getSegments());
+        assertEquals(0, journal.getCompactions());
+
+        reopen();
+        assertEquals(count, journal.getPendingCount());
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        journal.append(WORKSPACE, uuid(1), RULE);
+        journal.append(WORKSPACE, uuid(2), RULE);
+        journal.append(WORKSPACE, uuid(3), RULE);
+        journal.destroy();
+
+        // corrupts the body of the second record, as if it was only partially written
+        File segment = getSegmentFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            int second = 8 + raf.readInt();
+            raf.seek(second + 8 + 10);
+            byte b = raf.readByte();
+            raf.seek(second + 8 + 10);
+            raf.writeByte(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        journal = open();
+        assertEquals(new HashSet<String>(Arrays.asList(uuid(1))), getPendingUuids());
+
+        // the journal continues in a new segment
+        journal.append(WORKSPACE, uuid(4), RULE);
+        reopen();
+        assertEquals(new HashSet<String>(Arrays.asList(uuid(1), uuid(4))), getPendingUuids());
+    }
+
+    @Test
+    public void testUnwrittenLength() throws Exception {
+        journal.append(WORKSPACE, uuid(1), RULE);
+        journal.append(WORKSPACE, uuid(2), RULE);
+        journal.destroy();
+
+        // the length of a record is written last: without it the record is ignored
+        File segment = getSegmentFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            int second = 8 + raf.readInt();
+            raf.seek(second);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+
+        journal = open();
+        assertEquals(new HashSet<String>(Arrays.asList(uuid(1))), getPendingUuids());
+    }
+
+}
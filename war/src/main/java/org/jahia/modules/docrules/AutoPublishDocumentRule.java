@@ -39,25 +39,51 @@
  */
 package org.jahia.modules.docrules;
 
+import java.util.List;
+
 import javax.jcr.RepositoryException;
 
+import org.jahia.modules.docrules.publication.BatchPublisher;
 import org.jahia.services.content.JCRNodeWrapper;
 
 /**
- * Document rule that automatically publishes the node to live workspace on creation or on update.
+ * Document rule that automatically publishes the node to live workspace on creation or on update. If a {@link BatchPublisher} is
+ * configured, the documents are collected and published in batches per folder; otherwise the node is marked for the immediate
+ * automatic publication.
  * 
  * @author Sergiy Shyrkov
  */
-public class AutoPublishDocumentRule implements DocumentRule {
+public class AutoPublishDocumentRule implements BatchDocumentRule {
+
+    private BatchPublisher publisher;
 
     public void execute(JCRNodeWrapper document) throws RepositoryException {
-        if (!document.isNodeType("jmix:autoPublish")) {
+        if (publisher != null) {
+            JCRNodeWrapper folder = document.getParent();
+            publisher.add(folder.getIdentifier(), folder.getPath(), document.getIdentifier());
+        } else if (!document.isNodeType("jmix:autoPublish")) {
             document.addMixin("jmix:autoPublish");
         }
     }
 
+    public void execute(List<JCRNodeWrapper> documents) throws RepositoryException {
+        for (JCRNodeWrapper document : documents) {
+            execute(document);
+        }
+    }
+
     public boolean isApplicable(JCRNodeWrapper document) {
         return true;
     }
 
+    /**
+     * Sets the publisher for batched publication of documents. If not set, each document is published separately.
+     * 
+     * @param publisher
+     *            the publisher for batched publication of documents
+     */
+    public void setPublisher(BatchPublisher publisher) {
+        this.publisher = publisher;
+    }
+
 }
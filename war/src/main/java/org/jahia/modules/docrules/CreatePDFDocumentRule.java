@@ -39,13 +39,13 @@
  */
 package org.jahia.modules.docrules;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
@@ -53,28 +53,38 @@ import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.ValueFormatException;
 import javax.jcr.lock.LockException;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.artofsolving.jodconverter.office.OfficeException;
+import org.jahia.modules.docrules.conversion.ConversionCache;
+import org.jahia.modules.docrules.conversion.ConversionSpool;
 import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRFileContent;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.transform.DocumentConverterService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 /**
  * Document rule that does the conversion of the document to a PDF file.
  * 
  * @author Sergiy Shyrkov
  */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=CreatePDFDocumentRule",
+        description = "PDF conversion document rule")
 public class CreatePDFDocumentRule implements DocumentRule {
 
     private static final Logger logger = LoggerFactory.getLogger(CreatePDFDocumentRule.class);
 
+    private static final String PDF_MIME_TYPE = "application/pdf";
+
+    static final String SOURCE_DIGEST_PROPERTY = "j:documentRuleSourceDigest";
+
     private boolean overwriteIfExists = true;
 
-    private static JCRNodeWrapper getTargetFolder(JCRNodeWrapper document)
+    static JCRNodeWrapper getTargetFolder(JCRNodeWrapper document)
             throws ValueFormatException, PathNotFoundException, RepositoryException {
         JCRNodeWrapper folder = document.getParent();
 
@@ -90,6 +100,14 @@ public class CreatePDFDocumentRule implements DocumentRule {
         return folder;
     }
 
+    private static String getTargetName(JCRNodeWrapper document) {
+        return getTargetName(document, "pdf");
+    }
+
+    static String getTargetName(JCRNodeWrapper document, String extension) {
+        return StringUtils.substringBeforeLast(document.getName(), ".") + "." + extension;
+    }
+
     /**
      * Checks if the specified mime type belongs to one of the specified groups (like pdf,word,openoffice, etc.).
      * 
@@ -100,83 +118,133 @@ public class CreatePDFDocumentRule implements DocumentRule {
      * @return if the specified mime type belongs to one of the specified groups (like pdf,word,openoffice, etc.)
      */
     public static boolean isMimeTypeGroup(String mimeType, String... mimeTypeGroups) {
-        if (mimeType == null) {
-            return false;
-        }
-
-        boolean found = false;
-        for (String grp : mimeTypeGroups) {
-            List<String> mimeTypes = null;
-            if (grp.contains("/")) {
-                mimeTypes = new LinkedList<String>();
-                mimeTypes.add(grp);
-            } else {
-                mimeTypes = JCRContentUtils.getInstance().getMimeTypes().get(grp);
-            }
+        return mimeType != null && MimeTypeMatcher.forGroups(mimeTypeGroups).matches(mimeType);
+    }
 
-            if (mimeTypes == null) {
-                continue;
-            }
-            for (String mime : mimeTypes) {
-                if (mime.contains("*")) {
-                    found = Pattern.matches(
-                            StringUtils.replace(StringUtils.replace(mime, ".", "\\."), "*", ".*"),
-                            mimeType);
-                } else {
-                    found = mime.equals(mimeType);
-                }
-                if (found) {
-                    break;
-                }
-            }
-            if (found) {
-                break;
-            }
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-
-        return found;
     }
 
+    private ConversionCache conversionCache;
+
+    private final AtomicLong derivedNodesKept = new AtomicLong();
+
     private DocumentConverterService documentConverterService;
 
+    private volatile MimeTypeMatcher mimeTypeMatcher;
+
+    private ConversionSpool spool;
+
     private String[] supportedDocumentFormats;
 
     public void execute(JCRNodeWrapper document) throws OfficeException, IOException,
             UnsupportedRepositoryOperationException, LockException, RepositoryException {
+        JCRFileContent content = document.getFileContent();
+        InputStream source = content.downloadFile();
+        if (source == null) {
+            logger.warn("Document node {} has no content. Skip converting it.", document.getPath());
+            return;
+        }
+
         File inFile = null;
         File outFile = null;
         try {
-            inFile = File.createTempFile("doc-rules", null);
-            JCRContentUtils.downloadFileContent(document, inFile);
-            outFile = documentConverterService.convert(inFile, document.getFileContent()
-                    .getContentType(), "application/pdf");
-            if (outFile != null) {
-                JCRNodeWrapper folder = getTargetFolder(document);
-                folder.getSession().checkout(folder);
-                String newName = StringUtils.substringBeforeLast(document.getName(), ".") + ".pdf";
-                if (overwriteIfExists) {
-                    if (folder.hasNode(newName)) {
-                        folder.getNode(newName).remove();
-                    }
-                } else {
-                    newName = JCRContentUtils.findAvailableNodeName(folder, newName);
+            MessageDigest digest = conversionCache != null ? newDigest() : null;
+            try {
+                inFile = spool.spool(source, "doc-rules-in", digest);
+            } finally {
+                IOUtils.closeQuietly(source);
+            }
+
+            String cacheKey = null;
+            if (digest != null) {
+                cacheKey = ConversionCache.getKey(digest.digest(), content.getContentType(),
+                        PDF_MIME_TYPE);
+                if (reuse(document, cacheKey)) {
+                    return;
                 }
-                BufferedInputStream convertedStream = null;
+            }
+
+            outFile = documentConverterService.convert(inFile, content.getContentType(),
+                    PDF_MIME_TYPE);
+            if (outFile != null) {
+                spool.track(outFile);
+                InputStream convertedStream = new FileInputStream(outFile);
                 try {
-                    convertedStream = new BufferedInputStream(new FileInputStream(outFile));
-                    JCRNodeWrapper pdf = folder.uploadFile(newName, convertedStream,
-                            "application/pdf");
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Converted document {} to PDF document at {}",
-                                document.getPath(), pdf.getPath());
-                    }
+                    store(document, convertedStream, cacheKey);
                 } finally {
                     IOUtils.closeQuietly(convertedStream);
                 }
+                // the stored result is moved into the cache for the next conversion of the same content
+                if (cacheKey != null && conversionCache.put(cacheKey, outFile)) {
+                    spool.untrack(outFile);
+                    outFile = null;
+                }
             }
         } finally {
-            FileUtils.deleteQuietly(inFile);
-            FileUtils.deleteQuietly(outFile);
+            spool.release(inFile);
+            spool.release(outFile);
+        }
+    }
+
+    /**
+     * Tries to reuse the previous conversion result for the document: either the existing PDF node, derived from the same source
+     * content, is kept or the cached conversion result is stored.
+     */
+    private boolean reuse(JCRNodeWrapper document, String cacheKey) throws RepositoryException {
+        // checked regardless of the overwrite setting, so that no copy with a new name is created for an unchanged document
+        JCRNodeWrapper folder = getTargetFolder(document);
+        String name = getTargetName(document);
+        if (folder.hasNode(name)) {
+            JCRNodeWrapper existing = folder.getNode(name);
+            if (existing.hasProperty(SOURCE_DIGEST_PROPERTY)
+                    && cacheKey.equals(existing.getProperty(SOURCE_DIGEST_PROPERTY).getString())) {
+                derivedNodesKept.incrementAndGet();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("PDF document {} is up-to-date with the document {}."
+                            + " Skip converting it.", existing.getPath(), document.getPath());
+                }
+                return true;
+            }
+        }
+
+        InputStream cached = conversionCache.open(cacheKey);
+        if (cached == null) {
+            return false;
+        }
+        try {
+            store(document, cached, cacheKey);
+        } finally {
+            IOUtils.closeQuietly(cached);
+        }
+
+        return true;
+    }
+
+    private void store(JCRNodeWrapper document, InputStream pdfStream, String cacheKey)
+            throws RepositoryException {
+        JCRNodeWrapper folder = getTargetFolder(document);
+        folder.getSession().checkout(folder);
+        String newName = getTargetName(document);
+        if (overwriteIfExists) {
+            if (folder.hasNode(newName)) {
+                folder.getNode(newName).remove();
+            }
+        } else {
+            newName = JCRContentUtils.findAvailableNodeName(folder, newName);
+        }
+        JCRNodeWrapper pdf = folder.uploadFile(newName, pdfStream, PDF_MIME_TYPE);
+        if (cacheKey != null) {
+            pdf.addMixin("jmix:documentRuleDerived");
+            pdf.setProperty(SOURCE_DIGEST_PROPERTY, cacheKey);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Converted document {} to PDF document at {}", document.getPath(),
+                    pdf.getPath());
         }
     }
 
@@ -195,7 +263,43 @@ public class CreatePDFDocumentRule implements DocumentRule {
             return false;
         }
 
-        return isMimeTypeGroup(mimeType, supportedDocumentFormats);
+        MimeTypeMatcher matcher = mimeTypeMatcher;
+        if (matcher == null
+                || !matcher.isCompiledFrom(JCRContentUtils.getInstance().getMimeTypes())) {
+            // MIME type group definitions were changed
+            matcher = refreshMimeTypeMatcher();
+        }
+
+        return matcher.matches(mimeType);
+    }
+
+    /**
+     * (Re)compiles the matcher for the supported document formats. Should be called if the MIME type group configuration is
+     * changed.
+     * 
+     * @return the newly compiled matcher
+     */
+    public MimeTypeMatcher refreshMimeTypeMatcher() {
+        MimeTypeMatcher matcher = MimeTypeMatcher.compile(supportedDocumentFormats);
+        mimeTypeMatcher = matcher;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Compiled supported document formats {}", matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * Returns the number of conversions, skipped because the existing PDF document was derived from the same source content.
+     * 
+     * @return the number of conversions, skipped because the existing PDF document was derived from the same source content
+     */
+    @ManagedAttribute
+    public long getDerivedNodesKept() {
+        return derivedNodesKept.get();
+    }
+
+    public void setConversionCache(ConversionCache conversionCache) {
+        this.conversionCache = conversionCache;
     }
 
     public void setDocumentConverterService(DocumentConverterService converterService) {
@@ -205,6 +309,11 @@ public class CreatePDFDocumentRule implements DocumentRule {
     public void setSupportedDocumentFormats(String[] supportedDocumentFormats) {
         this.supportedDocumentFormats = supportedDocumentFormats != null
                 && supportedDocumentFormats.length > 0 ? supportedDocumentFormats : null;
+        refreshMimeTypeMatcher();
+    }
+
+    public void setSpool(ConversionSpool spool) {
+        this.spool = spool;
     }
 
     public void setOverwriteIfExists(boolean overwriteIfExists) {
@@ -0,0 +1,524 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jahia.modules.docrules.conversion.ConversionCache;
+import org.jahia.modules.docrules.conversion.ConversionSpool;
+import org.jahia.modules.docrules.derivation.DerivativeGenerator;
+import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRFileContent;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Document rule that produces several outputs (derivatives) of the document, like its PDF version, the extracted text and a
+ * preview image, from a single read of the document content. The content is spooled once and all configured
+ * {@link DerivativeGenerator}s work on the spooled file. Each output is produced with a time limit and is stored next to the
+ * PDF version of the document, i.e. in the <code>j:documentRuleSubfolder</code> of the folder, if configured. At most the
+ * configured number of outputs is generated at the same time. A generation, which exceeded its time limit and does not stop on
+ * interruption, keeps its slot until it ends and removes its output file itself.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=DerivativesDocumentRule",
+        description = "Multi-output derivation document rule")
+public class DerivativesDocumentRule implements DocumentRule, InitializingBean, DisposableBean {
+
+    /**
+     * The generation of a single output. If the caller gives up on a running generation, the output file is deleted by the
+     * generation, when it ends, as it may still be written until then.
+     */
+    private class Generation implements Callable<Boolean> {
+
+        private static final int ABANDONED = 3;
+
+        private static final int DONE = 2;
+
+        private static final int NEW = 0;
+
+        private static final int RUNNING = 1;
+
+        private final DerivativeGenerator generator;
+
+        private final File output;
+
+        private final File source;
+
+        private final String sourceMimeType;
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private volatile long startTime;
+
+        private final AtomicInteger state = new AtomicInteger(NEW);
+
+        Generation(DerivativeGenerator generator, File source, String sourceMimeType, File output) {
+            super();
+            this.generator = generator;
+            this.source = source;
+            this.sourceMimeType = sourceMimeType;
+            this.output = output;
+        }
+
+        /**
+         * Gives up on the generation. The output file is deleted right away, unless the generation is still running.
+         */
+        void abandon() {
+            if (state.compareAndSet(NEW, ABANDONED)) {
+                // was not started and will not be
+                generatorSlots.release();
+                FileUtils.deleteQuietly(output);
+            } else if (state.compareAndSet(RUNNING, ABANDONED)) {
+                hungGenerations.incrementAndGet();
+            } else {
+                FileUtils.deleteQuietly(output);
+            }
+        }
+
+        /**
+         * Waits for the result of the generation at most for the specified time, counted from the start of the generation.
+         */
+        boolean await(Future<Boolean> result, long timeout) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            if (!started.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException();
+            }
+            return result.get(Math.max(startTime + timeout - System.currentTimeMillis(), 0),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        public Boolean call() throws Exception {
+            if (!state.compareAndSet(NEW, RUNNING)) {
+                return Boolean.FALSE;
+            }
+            startTime = System.currentTimeMillis();
+            started.countDown();
+            try {
+                return generator.derive(source, sourceMimeType, output);
+            } finally {
+                generatorSlots.release();
+                if (!state.compareAndSet(RUNNING, DONE)) {
+                    hungGenerations.decrementAndGet();
+                    FileUtils.deleteQuietly(output);
+                    logger.info("Abandoned generation of the {} output {} ended after {} ms",
+                            new Object[] { generator.getName(), output,
+                                    System.currentTimeMillis() - startTime });
+                }
+            }
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DerivativesDocumentRule.class);
+
+    private static final String OUTPUTS_PROPERTY = "j:documentRuleOutputs";
+
+    private static String getTargetName(JCRNodeWrapper document, DerivativeGenerator generator) {
+        return CreatePDFDocumentRule.getTargetName(document, generator.getExtension());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final AtomicLong derivedNodesKept = new AtomicLong();
+
+    private ExecutorService generatorPool;
+
+    private List<DerivativeGenerator> generators = Collections.emptyList();
+
+    private Semaphore generatorSlots;
+
+    private final AtomicInteger hungGenerations = new AtomicInteger();
+
+    private long outputTimeout = 120000;
+
+    private boolean overwriteIfExists = true;
+
+    private ConversionSpool spool;
+
+    private int threads = 2;
+
+    public void afterPropertiesSet() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        generatorSlots = new Semaphore(threads);
+        // the number of threads is bounded by the slots, so that a generation starts as soon as it gets a slot
+        generatorPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "doc-rules-derivation-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public void destroy() throws Exception {
+        if (generatorPool != null) {
+            generatorPool.shutdownNow();
+        }
+    }
+
+    public void execute(JCRNodeWrapper document) throws Exception {
+        JCRFileContent content = document.getFileContent();
+        String mimeType = content.getContentType();
+        List<DerivativeGenerator> requested = getRequestedGenerators(document.getParent(),
+                mimeType);
+        if (requested.isEmpty()) {
+            return;
+        }
+
+        InputStream source = content.downloadFile();
+        if (source == null) {
+            logger.warn("Document node {} has no content. Skip deriving outputs for it.",
+                    document.getPath());
+            return;
+        }
+
+        File inFile = null;
+        Map<String, File> outputs = new HashMap<String, File>();
+        try {
+            MessageDigest digest = newDigest();
+            try {
+                inFile = spool.spool(source, "doc-rules-in", digest);
+            } finally {
+                IOUtils.closeQuietly(source);
+            }
+            byte[] sourceDigest = digest.digest();
+
+            JCRNodeWrapper folder = CreatePDFDocumentRule.getTargetFolder(document);
+            Map<DerivativeGenerator, String> stale = new HashMap<DerivativeGenerator, String>();
+            Set<String> inputs = new HashSet<String>();
+            for (DerivativeGenerator generator : requested) {
+                String key = ConversionCache.getKey(sourceDigest, mimeType,
+                        generator.getMimeType());
+                if (isUpToDate(document, folder, generator, key)) {
+                    derivedNodesKept.incrementAndGet();
+                } else {
+                    stale.put(generator, key);
+                    if (generator.getInput(mimeType) != null) {
+                        inputs.add(generator.getInput(mimeType));
+                    }
+                }
+            }
+
+            // generators are invoked in the configured order, so that intermediate outputs are available to the later ones
+            for (DerivativeGenerator generator : generators) {
+                String key = stale.get(generator);
+                if (key == null && !inputs.contains(generator.getName())) {
+                    continue;
+                }
+                String input = generator.getInput(mimeType);
+                File output = null;
+                if (input == null) {
+                    output = generate(document, generator, inFile, mimeType);
+                } else if (outputs.containsKey(input)) {
+                    output = generate(document, generator, outputs.get(input),
+                            getGenerator(input).getMimeType());
+                }
+                if (output == null) {
+                    continue;
+                }
+                outputs.put(generator.getName(), output);
+                if (key != null) {
+                    store(document, folder, generator, output, key);
+                }
+            }
+        } finally {
+            spool.release(inFile);
+            for (File output : outputs.values()) {
+                spool.release(output);
+            }
+        }
+    }
+
+    /**
+     * Produces the output of the specified generator on the generator thread pool. The generation waits for a free slot and then
+     * for the result, each at most for the configured output timeout.
+     */
+    private File generate(JCRNodeWrapper document, DerivativeGenerator generator, File source,
+            String sourceMimeType) {
+        File output;
+        try {
+            output = spool.create("doc-rules-" + generator.getName());
+        } catch (Exception e) {
+            logger.error("Unable to create spool file for the " + generator.getName()
+                    + " output of the document " + document.getPath(), e);
+            return null;
+        }
+
+        boolean done = false;
+        Generation generation = new Generation(generator, source, sourceMimeType, output);
+        Future<Boolean> result = null;
+        try {
+            if (!generatorSlots.tryAcquire(outputTimeout, TimeUnit.MILLISECONDS)) {
+                logger.warn("No slot to generate the {} output for document {} within {} ms"
+                        + " ({} hung generation(s)). Skip it.", new Object[] { generator.getName(),
+                        document.getPath(), outputTimeout, hungGenerations.get() });
+                FileUtils.deleteQuietly(output);
+                return null;
+            }
+            result = generatorPool.submit(generation);
+            done = generation.await(result, outputTimeout);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            generation.abandon();
+            generator.timedOut();
+            logger.warn("Generation of the {} output for document {} exceeded {} ms. Skip it.",
+                    new Object[] { generator.getName(), document.getPath(), outputTimeout });
+            return null;
+        } catch (ExecutionException e) {
+            logger.error("Error generating " + generator.getName() + " output for the document "
+                    + document.getPath(), e.getCause());
+        } catch (InterruptedException e) {
+            if (result != null) {
+                result.cancel(true);
+                generation.abandon();
+            } else {
+                FileUtils.deleteQuietly(output);
+            }
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        if (!done) {
+            FileUtils.deleteQuietly(output);
+            return null;
+        }
+        spool.track(output);
+
+        return output;
+    }
+
+    private DerivativeGenerator getGenerator(String name) {
+        for (DerivativeGenerator generator : generators) {
+            if (generator.getName().equals(name)) {
+                return generator;
+            }
+        }
+        return null;
+    }
+
+    @ManagedAttribute(description = "Number of outputs, which were up-to-date with the document content")
+    public long getDerivedNodesKept() {
+        return derivedNodesKept.get();
+    }
+
+    @ManagedAttribute(description = "Number of generations, which exceeded the timeout and are still running")
+    public int getHungGenerations() {
+        return hungGenerations.get();
+    }
+
+    /**
+     * Returns the generators of the outputs, configured on the folder, which support the specified MIME type. If the folder does
+     * not restrict the outputs, all generators are considered.
+     */
+    private List<DerivativeGenerator> getRequestedGenerators(JCRNodeWrapper folder, String mimeType)
+            throws RepositoryException {
+        Set<String> names = null;
+        if (folder.hasProperty(OUTPUTS_PROPERTY)) {
+            names = new LinkedHashSet<String>();
+            for (Value value : folder.getProperty(OUTPUTS_PROPERTY).getValues()) {
+                names.add(value.getString());
+            }
+        }
+        List<DerivativeGenerator> requested = new ArrayList<DerivativeGenerator>(
+                generators.size());
+        for (DerivativeGenerator generator : generators) {
+            if ((names == null || names.contains(generator.getName()))
+                    && generator.isSupported(mimeType)) {
+                String input = generator.getInput(mimeType);
+                if (input == null || getGenerator(input) != null
+                        && getGenerator(input).isSupported(mimeType)) {
+                    requested.add(generator);
+                }
+            }
+        }
+
+        return requested;
+    }
+
+    public boolean isApplicable(JCRNodeWrapper document) {
+        try {
+            if (document.isNodeType("jmix:documentRuleDerived")) {
+                // do not derive outputs from outputs
+                return false;
+            }
+        } catch (RepositoryException e) {
+            logger.warn("Unable to check node type of the document " + document.getPath(), e);
+            return false;
+        }
+        String mimeType = document.getFileContent().getContentType();
+        if (null == mimeType) {
+            logger.warn("Document has no MIME type defined. Skip deriving outputs for node {}",
+                    document.getPath());
+            return false;
+        }
+        for (DerivativeGenerator generator : generators) {
+            if (generator.isSupported(mimeType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if the existing output node was derived from the same source content, regardless of the overwrite setting, so that
+     * no copy with a new name is created for an unchanged document.
+     */
+    private boolean isUpToDate(JCRNodeWrapper document, JCRNodeWrapper folder,
+            DerivativeGenerator generator, String key) throws RepositoryException {
+        String name = getTargetName(document, generator);
+        if (!folder.hasNode(name)) {
+            return false;
+        }
+        JCRNodeWrapper existing = folder.getNode(name);
+        return existing.hasProperty(CreatePDFDocumentRule.SOURCE_DIGEST_PROPERTY)
+                && key.equals(existing.getProperty(CreatePDFDocumentRule.SOURCE_DIGEST_PROPERTY)
+                        .getString());
+    }
+
+    public void setGenerators(List<DerivativeGenerator> generators) {
+        this.generators = generators;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a single output may take to be generated, counted from the start of the generation.
+     * The generation is cancelled after it and the output is skipped. The same time is waited at most for a free slot.
+     * 
+     * @param outputTimeout
+     *            the maximum time in milliseconds a single output may take to be generated
+     */
+    public void setOutputTimeout(long outputTimeout) {
+        this.outputTimeout = outputTimeout;
+    }
+
+    public void setOverwriteIfExists(boolean overwriteIfExists) {
+        this.overwriteIfExists = overwriteIfExists;
+    }
+
+    public void setSpool(ConversionSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Sets the maximum number of outputs, generated at the same time. A generation, which exceeded the timeout, keeps its slot
+     * until it actually ends.
+     * 
+     * @param threads
+     *            the maximum number of outputs, generated at the same time
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    private void store(JCRNodeWrapper document, JCRNodeWrapper folder,
+            DerivativeGenerator generator, File output, String key) throws Exception {
+        String name = getTargetName(document, generator);
+        if (folder.getPath().equals(document.getParent().getPath())
+                && name.equals(document.getName())) {
+            logger.warn("The {} output of the document {} would replace the document itself."
+                    + " Skip storing it.", generator.getName(), document.getPath());
+            return;
+        }
+        folder.getSession().checkout(folder);
+        if (folder.hasNode(name)) {
+            if (overwriteIfExists) {
+                folder.getNode(name).remove();
+            } else {
+                name = JCRContentUtils.findAvailableNodeName(folder, name);
+            }
+        }
+        InputStream in = new FileInputStream(output);
+        try {
+            JCRNodeWrapper derived = folder.uploadFile(name, in, generator.getMimeType());
+            derived.addMixin("jmix:documentRuleDerived");
+            derived.setProperty(CreatePDFDocumentRule.SOURCE_DIGEST_PROPERTY, key);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Stored {} output of the document {} at {}", new Object[] {
+                        generator.getName(), document.getPath(), derived.getPath() });
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+}
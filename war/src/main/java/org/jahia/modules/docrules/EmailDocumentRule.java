@@ -39,84 +39,98 @@
  */
 package org.jahia.modules.docrules;
 
-import java.io.StringWriter;
-import java.security.Principal;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
 
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.ValueFormatException;
-import javax.script.Bindings;
-import javax.script.ScriptContext;
-import javax.script.ScriptEngine;
-import javax.script.ScriptException;
 
 import org.apache.commons.lang.StringUtils;
+import org.jahia.modules.docrules.mail.DigestDocument;
+import org.jahia.modules.docrules.mail.EmailDigestBuffer;
+import org.jahia.modules.docrules.mail.MailSender;
+import org.jahia.modules.docrules.mail.RecipientResolver;
+import org.jahia.modules.docrules.mail.TemplateRenderer;
 import org.jahia.services.content.JCRNodeWrapper;
 import org.jahia.services.content.decorator.JCRSiteNode;
 import org.jahia.services.mail.MailService;
-import org.jahia.services.preferences.user.UserPreferencesHelper;
-import org.jahia.services.usermanager.JahiaGroup;
-import org.jahia.services.usermanager.JahiaGroupManagerService;
-import org.jahia.services.usermanager.JahiaUser;
-import org.jahia.utils.ScriptEngineUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Document rule that sends a notification e-mail to specified group of users.
+ * Document rule that sends a notification e-mail to specified group of users. When rate limited, the notification is collected
+ * into the digest e-mail of the folder instead (see {@link #executeDegraded(JCRNodeWrapper)}).
  * 
  * @author Sergiy Shyrkov
  */
-public class EmailDocumentRule implements DocumentRule {
+public class EmailDocumentRule implements DegradableDocumentRule {
 
     private static final Logger logger = LoggerFactory.getLogger(EmailDocumentRule.class);
 
     private String body;
 
-    private JahiaGroupManagerService groupManagerService;
+    private EmailDigestBuffer digestBuffer;
+
+    private MailSender mailSender;
 
     private MailService mailService;
 
+    private RecipientResolver recipientResolver;
+
     private String subject;
 
-    private String evaluate(String subject, JCRNodeWrapper document) {
-        if (subject.contains("${")) {
-            try {
-                ScriptEngine byName = ScriptEngineUtils.getInstance().getEngineByName("velocity");
-                ScriptContext scriptContext = byName.getContext();
-                final Bindings bindings = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
-                bindings.put("document", document);
-                scriptContext.setWriter(new StringWriter());
-                scriptContext.setErrorWriter(new StringWriter());
-                byName.eval(subject, bindings);
-                return scriptContext.getWriter().toString().trim();
-            } catch (ScriptException e) {
-                logger.error("Error while evaluating value [" + subject + "]", e);
-            }
+    private TemplateRenderer templateRenderer;
+
+    private String evaluate(String template, JCRNodeWrapper document) {
+        try {
+            return templateRenderer.render(template,
+                    Collections.<String, Object> singletonMap("document", document));
+        } catch (Exception e) {
+            logger.error("Error while evaluating value [" + template + "]", e);
         }
 
         return null;
     }
 
     public void execute(JCRNodeWrapper document) throws RepositoryException {
+        execute(document, false);
+    }
+
+    private void execute(JCRNodeWrapper document, boolean forceDigest) throws RepositoryException {
         JCRNodeWrapper folder = document.getParent();
-        List<String> receivers = getReceivers(document, folder);
+        String[] receivers = getReceivers(document, folder);
 
-        if (receivers.isEmpty()) {
+        if (receivers == null || receivers.length == 0) {
             logger.info("No receivers are found for the e-mail notification of the document rule."
                     + " Skip executing rules on node {}", document.getPath());
             return;
         }
 
+        String to = StringUtils.join(receivers, ",");
+
+        if (digestBuffer != null && (forceDigest || isDigest(folder))) {
+            digestBuffer.add(folder.getSession().getWorkspace().getName() + "/"
+                    + folder.getIdentifier(), folder.getPath(), to, new DigestDocument(document));
+            return;
+        }
+
         String subject = getSubject(document, folder);
         String body = getBody(document, folder);
 
-        mailService.sendHtmlMessage(null, StringUtils.join(receivers, ","), null, null, subject,
-                body);
+        mailSender.sendHtmlMessage(to, subject, body);
+    }
+
+    /**
+     * Adds the document to the digest e-mail of its folder, even if the digest is not enabled on the folder. If no digest buffer
+     * is configured, the notification is sent as usual.
+     * 
+     * @param document
+     *            the file node to execute the rule on
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public void executeDegraded(JCRNodeWrapper document) throws RepositoryException {
+        execute(document, true);
     }
 
     private String getBody(JCRNodeWrapper document, JCRNodeWrapper folder)
@@ -130,41 +144,23 @@ public class EmailDocumentRule implements DocumentRule {
         return evaluate(body, document);
     }
 
-    private List<String> getReceivers(JCRNodeWrapper document, JCRNodeWrapper folder)
+    private String[] getReceivers(JCRNodeWrapper document, JCRNodeWrapper folder)
             throws RepositoryException {
-        JahiaGroup group = null;
+        String[] receivers = null;
 
         if (folder.hasProperty("j:documentRuleTo")) {
             JCRNodeWrapper groupNode = (JCRNodeWrapper) folder.getProperty("j:documentRuleTo")
                     .getNode();
             if (groupNode != null) {
                 JCRSiteNode resolveSite = groupNode.getResolveSite();
-                group = groupManagerService.lookupGroup(resolveSite != null ? resolveSite.getID()
+                receivers = recipientResolver.resolve(resolveSite != null ? resolveSite.getID()
                         : 0, groupNode.getName());
             }
         }
 
-        if (group == null) {
+        if (receivers == null) {
             logger.info("No target group specified for the document rule on the parent folder {}."
                     + " Skip executing rules on node {}", folder.getPath(), document.getPath());
-            return Collections.emptyList();
-        }
-
-        List<String> receivers = new LinkedList<String>();
-
-        Collection<Principal> members = group.getMembers();
-        for (Principal principal : members) {
-            if (!(principal instanceof JahiaUser)) {
-                continue;
-            }
-
-            JahiaUser user = (JahiaUser) principal;
-            String email = !UserPreferencesHelper.areEmailNotificationsDisabled(user) ? UserPreferencesHelper
-                    .getPersonalizedEmailAddress(user) : null;
-
-            if (StringUtils.isNotEmpty(email)) {
-                receivers.add(email);
-            }
         }
 
         return receivers;
@@ -181,6 +177,11 @@ public class EmailDocumentRule implements DocumentRule {
         return evaluate(subject, document);
     }
 
+    private boolean isDigest(JCRNodeWrapper folder) throws RepositoryException {
+        return folder.hasProperty("j:documentRuleDigest")
+                && folder.getProperty("j:documentRuleDigest").getBoolean();
+    }
+
     public boolean isApplicable(JCRNodeWrapper document) {
         return mailService.isEnabled();
     }
@@ -189,15 +190,27 @@ public class EmailDocumentRule implements DocumentRule {
         this.body = body;
     }
 
-    public void setGroupManagerService(JahiaGroupManagerService groupManagerService) {
-        this.groupManagerService = groupManagerService;
+    public void setDigestBuffer(EmailDigestBuffer digestBuffer) {
+        this.digestBuffer = digestBuffer;
+    }
+
+    public void setMailSender(MailSender mailSender) {
+        this.mailSender = mailSender;
     }
 
     public void setMailService(MailService mailService) {
         this.mailService = mailService;
     }
 
+    public void setRecipientResolver(RecipientResolver recipientResolver) {
+        this.recipientResolver = recipientResolver;
+    }
+
     public void setSubject(String subject) {
         this.subject = subject;
     }
+
+    public void setTemplateRenderer(TemplateRenderer templateRenderer) {
+        this.templateRenderer = templateRenderer;
+    }
 }
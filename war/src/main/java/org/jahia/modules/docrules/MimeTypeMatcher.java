@@ -0,0 +1,226 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.services.content.JCRContentUtils;
+
+/**
+ * Immutable matcher for a set of MIME types and MIME type groups (like pdf,word,openoffice, etc.), which is compiled once and
+ * can be used concurrently. Exact MIME types are looked up in a hash set, wildcards in the form <code>text/*</code> are checked
+ * as prefixes and only other wildcard forms fall back to a precompiled regular expression. Matchers for ad-hoc group sets are
+ * cached (see {@link #forGroups(String...)}).
+ * 
+ * @author Sergiy Shyrkov
+ */
+public final class MimeTypeMatcher {
+
+    private static final String[] EMPTY_PREFIXES = new String[0];
+
+    private static final Pattern[] EMPTY_PATTERNS = new Pattern[0];
+
+    private static final int MAX_CACHED = 100;
+
+    private static final MimeTypeMatcher NONE = new MimeTypeMatcher(null,
+            Collections.<String> emptySet(), EMPTY_PREFIXES, EMPTY_PATTERNS);
+
+    private static final ConcurrentMap<List<String>, MimeTypeMatcher> cache =
+            new ConcurrentHashMap<List<String>, MimeTypeMatcher>();
+
+    /**
+     * Compiles a matcher for the specified MIME types or MIME type groups, using the group definitions of the
+     * {@link JCRContentUtils}.
+     * 
+     * @param mimeTypeGroups
+     *            the MIME types or MIME type groups to match
+     * @return the compiled matcher
+     */
+    public static MimeTypeMatcher compile(String... mimeTypeGroups) {
+        return compile(JCRContentUtils.getInstance().getMimeTypes(), mimeTypeGroups);
+    }
+
+    /**
+     * Compiles a matcher for the specified MIME types or MIME type groups, using the provided group definitions.
+     * 
+     * @param groupDefinitions
+     *            the MIME type group definitions (group name to a list of MIME types)
+     * @param mimeTypeGroups
+     *            the MIME types or MIME type groups to match
+     * @return the compiled matcher
+     */
+    public static MimeTypeMatcher compile(Map<String, List<String>> groupDefinitions,
+            String... mimeTypeGroups) {
+        Set<String> exact = new HashSet<String>();
+        List<String> prefixes = new LinkedList<String>();
+        List<Pattern> patterns = new LinkedList<Pattern>();
+        if (mimeTypeGroups != null) {
+            for (String grp : mimeTypeGroups) {
+                List<String> mimeTypes = null;
+                if (grp.contains("/")) {
+                    mimeTypes = Collections.singletonList(grp);
+                } else if (groupDefinitions != null) {
+                    mimeTypes = groupDefinitions.get(grp);
+                }
+                if (mimeTypes == null) {
+                    continue;
+                }
+                for (String mime : mimeTypes) {
+                    int wildcard = mime.indexOf('*');
+                    if (wildcard == -1) {
+                        exact.add(mime);
+                    } else if (wildcard == mime.length() - 1) {
+                        prefixes.add(mime.substring(0, wildcard));
+                    } else {
+                        patterns.add(Pattern.compile(StringUtils.replace(
+                                StringUtils.replace(mime, ".", "\\."), "*", ".*")));
+                    }
+                }
+            }
+        }
+
+        return new MimeTypeMatcher(groupDefinitions, exact, prefixes.toArray(EMPTY_PREFIXES),
+                patterns.toArray(EMPTY_PATTERNS));
+    }
+
+    /**
+     * Returns the matcher for the specified MIME types or MIME type groups, using the group definitions of the
+     * {@link JCRContentUtils}. The matchers are cached per group set and are compiled again, if the group definitions are
+     * changed. Beyond {@value #MAX_CACHED} distinct group sets the matchers are compiled on each call. If no groups are
+     * specified, a shared matcher is returned, which matches nothing.
+     * 
+     * @param mimeTypeGroups
+     *            the MIME types or MIME type groups to match
+     * @return the compiled matcher
+     */
+    public static MimeTypeMatcher forGroups(String... mimeTypeGroups) {
+        if (mimeTypeGroups == null || mimeTypeGroups.length == 0) {
+            return NONE;
+        }
+        Map<String, List<String>> groupDefinitions = JCRContentUtils.getInstance().getMimeTypes();
+        List<String> key = Arrays.asList(mimeTypeGroups);
+        MimeTypeMatcher matcher = cache.get(key);
+        if (matcher == null || !matcher.isCompiledFrom(groupDefinitions)) {
+            matcher = compile(groupDefinitions, mimeTypeGroups);
+            if (cache.size() < MAX_CACHED || cache.containsKey(key)) {
+                // the key must not share the caller's array
+                cache.put(new ArrayList<String>(key), matcher);
+            }
+        }
+
+        return matcher;
+    }
+
+    private final Set<String> exact;
+
+    private final Map<String, List<String>> groupDefinitions;
+
+    private final Pattern[] patterns;
+
+    private final String[] prefixes;
+
+    private MimeTypeMatcher(Map<String, List<String>> groupDefinitions, Set<String> exact,
+            String[] prefixes, Pattern[] patterns) {
+        super();
+        this.groupDefinitions = groupDefinitions;
+        this.exact = exact;
+        this.prefixes = prefixes;
+        this.patterns = patterns;
+    }
+
+    /**
+     * Checks if this matcher was compiled using the provided MIME type group definitions.
+     * 
+     * @param groupDefinitions
+     *            the MIME type group definitions to check
+     * @return <code>true</code> if this matcher was compiled using the provided MIME type group definitions
+     */
+    public boolean isCompiledFrom(Map<String, List<String>> groupDefinitions) {
+        return this.groupDefinitions == groupDefinitions;
+    }
+
+    /**
+     * Checks if the specified MIME type is matched by this matcher.
+     * 
+     * @param mimeType
+     *            the MIME type to be checked
+     * @return <code>true</code> if the specified MIME type is matched by this matcher
+     */
+    public boolean matches(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        if (exact.contains(mimeType)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (mimeType.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(mimeType).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(64);
+        out.append("MimeTypeMatcher[exact=").append(exact).append(", prefixes=")
+                .append(StringUtils.join(prefixes, ',')).append(", patterns=")
+                .append(StringUtils.join(patterns, ',')).append("]");
+        return out.toString();
+    }
+}
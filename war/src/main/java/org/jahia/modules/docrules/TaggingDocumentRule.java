@@ -39,53 +39,231 @@
  */
 package org.jahia.modules.docrules;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 
 import org.apache.commons.lang.StringUtils;
 import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
 import org.jahia.services.content.decorator.JCRSiteNode;
 import org.jahia.services.tags.TaggingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Document rule that does the tagging of the document with provided tags.
+ * Document rule that does the tagging of the document with provided tags. The parsed tag list of a folder is cached until the
+ * document rule settings of the folder are changed or the entry expires. The least recently used folders are evicted, when the
+ * cache is full. In batch mode each tag node is resolved (or created) once and is applied to
+ * all documents of the batch.
  * 
  * @author Sergiy Shyrkov
  */
-public class TaggingDocumentRule implements DocumentRule {
+public class TaggingDocumentRule implements BatchDocumentRule, CachingDocumentRule {
+
+    private static class CachedTags {
+
+        private final long created = System.currentTimeMillis();
+
+        private final String[] tags;
+
+        CachedTags(String[] tags) {
+            super();
+            this.tags = tags;
+        }
+    }
+
+    private static final String[] NO_TAGS = new String[0];
 
     private static final Logger logger = LoggerFactory.getLogger(TaggingDocumentRule.class);
 
+    private static String getKey(String workspace, String folderIdentifier) {
+        return workspace + "/" + folderIdentifier;
+    }
+
+    private int maxCachedFolders = 10000;
+
+    private final Map<String, CachedTags> tagCache = new LinkedHashMap<String, CachedTags>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = -2470245178305447153L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedTags> eldest) {
+            return size() > maxCachedFolders;
+        }
+    };
+
     private TaggingService taggingService;
 
+    private long timeToLive = 5 * 60 * 1000L;
+
     public void execute(JCRNodeWrapper document) throws RepositoryException {
         JCRNodeWrapper folder = document.getParent();
-        String[] tags = null;
-        if (folder.hasProperty("j:documentRuleTags")) {
-            tags = StringUtils.split(folder.getProperty("j:documentRuleTags").getString(), " ,;");
-        }
+        String[] tags = getTags(folder);
 
-        if (tags == null || tags.length == 0) {
+        if (tags.length == 0) {
             logger.info("No tags specifed for the document rule on the parent folder {}."
                     + " Skip executing rules on node {}", folder.getPath(), document.getPath());
             return;
         }
 
-        JCRSiteNode resolveSite = document.getResolveSite();
+        taggingService.tag(document.getPath(), StringUtils.join(tags, ","), getSiteKey(document),
+                true, document.getSession());
+
+    }
+
+    public void execute(List<JCRNodeWrapper> documents) throws RepositoryException {
+        // group documents by folder, as the tags are defined per folder
+        Map<String, List<JCRNodeWrapper>> byFolder = new LinkedHashMap<String, List<JCRNodeWrapper>>();
+        Map<String, JCRNodeWrapper> folders = new HashMap<String, JCRNodeWrapper>();
+        for (JCRNodeWrapper document : documents) {
+            JCRNodeWrapper folder = document.getParent();
+            List<JCRNodeWrapper> folderDocuments = byFolder.get(folder.getIdentifier());
+            if (folderDocuments == null) {
+                folderDocuments = new ArrayList<JCRNodeWrapper>();
+                byFolder.put(folder.getIdentifier(), folderDocuments);
+                folders.put(folder.getIdentifier(), folder);
+            }
+            folderDocuments.add(document);
+        }
+
+        Map<String, JCRNodeWrapper> tagNodes = new HashMap<String, JCRNodeWrapper>();
+        for (Map.Entry<String, List<JCRNodeWrapper>> folderDocuments : byFolder.entrySet()) {
+            JCRNodeWrapper folder = folders.get(folderDocuments.getKey());
+            String[] tags = getTags(folder);
+            if (tags.length == 0) {
+                logger.info("No tags specifed for the document rule on the parent folder {}."
+                        + " Skip executing rules on {} node(s)", folder.getPath(),
+                        folderDocuments.getValue().size());
+                continue;
+            }
 
-        taggingService.tag(document.getPath(), StringUtils.join(tags, ","),
-                resolveSite != null ? resolveSite.getName() : "systemsite", true,
-                document.getSession());
+            JCRSessionWrapper session = folder.getSession();
+            String siteKey = getSiteKey(folder);
+            List<JCRNodeWrapper> folderTags = new ArrayList<JCRNodeWrapper>(tags.length);
+            for (String tag : tags) {
+                String key = siteKey + "/" + tag;
+                JCRNodeWrapper tagNode = tagNodes.get(key);
+                if (tagNode == null) {
+                    tagNode = taggingService.getTag(tag, siteKey, session);
+                    if (tagNode == null) {
+                        tagNode = taggingService.createTag(tag, siteKey, session);
+                    }
+                    tagNodes.put(key, tagNode);
+                }
+                folderTags.add(tagNode);
+            }
+
+            for (JCRNodeWrapper document : folderDocuments.getValue()) {
+                tag(document, folderTags);
+            }
+        }
+    }
 
+    private String getSiteKey(JCRNodeWrapper node) throws RepositoryException {
+        JCRSiteNode resolveSite = node.getResolveSite();
+        return resolveSite != null ? resolveSite.getName() : "systemsite";
+    }
+
+    private String[] getTags(JCRNodeWrapper folder) throws RepositoryException {
+        String key = getKey(folder.getSession().getWorkspace().getName(), folder.getIdentifier());
+        CachedTags cached;
+        synchronized (tagCache) {
+            cached = tagCache.get(key);
+        }
+        if (cached != null
+                && (timeToLive <= 0 || System.currentTimeMillis() - cached.created < timeToLive)) {
+            return cached.tags;
+        }
+
+        String[] tags = NO_TAGS;
+        if (folder.hasProperty("j:documentRuleTags")) {
+            Set<String> parsed = new LinkedHashSet<String>();
+            Collections.addAll(parsed, StringUtils.split(folder.getProperty("j:documentRuleTags")
+                    .getString(), " ,;"));
+            tags = parsed.toArray(NO_TAGS);
+        }
+        synchronized (tagCache) {
+            tagCache.put(key, new CachedTags(tags));
+        }
+
+        return tags;
+    }
+
+    public void invalidate(String workspace, String folderIdentifier) {
+        synchronized (tagCache) {
+            tagCache.remove(getKey(workspace, folderIdentifier));
+        }
     }
 
     public boolean isApplicable(JCRNodeWrapper document) {
         return true;
     }
 
+    /**
+     * Sets the maximum number of folders, whose tags are cached. The least recently used folders are evicted first.
+     * 
+     * @param maxCachedFolders
+     *            the maximum number of folders, whose tags are cached
+     */
+    public void setMaxCachedFolders(int maxCachedFolders) {
+        this.maxCachedFolders = maxCachedFolders;
+    }
+
     public void setTaggingService(TaggingService taggingService) {
         this.taggingService = taggingService;
     }
 
+    /**
+     * Sets the maximum time in milliseconds the tags of a folder are cached. It is a safety net for changes, not covered by the
+     * explicit invalidation (e.g. modifications done on another cluster node). A value <code>&lt;= 0</code> disables the
+     * expiration.
+     * 
+     * @param timeToLive
+     *            the maximum time in milliseconds the tags of a folder are cached
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    private void tag(JCRNodeWrapper document, List<JCRNodeWrapper> tagNodes)
+            throws RepositoryException {
+        boolean tagged = document.isNodeType("jmix:tagged");
+        List<Value> values = new ArrayList<Value>();
+        Set<String> existing = new HashSet<String>();
+        if (tagged && document.hasProperty("j:tags")) {
+            for (Value value : document.getProperty("j:tags").getValues()) {
+                values.add(value);
+                existing.add(value.getString());
+            }
+        }
+
+        JCRSessionWrapper session = document.getSession();
+        boolean changed = false;
+        for (JCRNodeWrapper tagNode : tagNodes) {
+            if (existing.add(tagNode.getIdentifier())) {
+                values.add(session.getValueFactory().createValue(tagNode, true));
+                changed = true;
+            }
+        }
+        if (!changed) {
+            // all tags are already applied
+            return;
+        }
+
+        session.checkout(document);
+        if (!tagged) {
+            document.addMixin("jmix:tagged");
+        }
+        document.setProperty("j:tags", values.toArray(new Value[values.size()]));
+    }
 }
@@ -0,0 +1,289 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.conversion;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Content-addressed, size-bounded local store of conversion results. The entries are keyed by the digest of the source content
+ * and the source MIME type and are evicted in LRU order when the maximum store size is exceeded.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=ConversionCache",
+        description = "Cache of the document conversion results")
+public class ConversionCache implements InitializingBean {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionCache.class);
+
+    /**
+     * Builds the cache key for the specified source content digest, source and target MIME types.
+     * 
+     * @param digest
+     *            the digest of the source content
+     * @param sourceMimeType
+     *            the MIME type of the source content
+     * @param targetMimeType
+     *            the MIME type of the conversion result
+     * @return the cache key
+     */
+    public static String getKey(byte[] digest, String sourceMimeType, String targetMimeType) {
+        StringBuilder key = new StringBuilder(digest.length * 2 + 64);
+        for (byte b : digest) {
+            key.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        key.append('_').append(sourceMimeType).append('_').append(targetMimeType);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.'
+                    || c == '-' || c == '_')) {
+                key.setCharAt(i, '_');
+            }
+        }
+        return key.toString();
+    }
+
+    private File directory;
+
+    private final Map<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private long maxSize = 1024L * 1024L * 1024L;
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private long size;
+
+    public void afterPropertiesSet() throws Exception {
+        if (directory == null) {
+            directory = new File(System.getProperty("java.io.tmpdir"), "jahia-doc-rules-cache");
+        }
+        FileUtils.forceMkdir(directory);
+
+        // restore the index from the files in the store, oldest first
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long diff = f1.lastModified() - f2.lastModified();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            synchronized (entries) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        entries.put(file.getName(), file.length());
+                        size += file.length();
+                    }
+                }
+                evict();
+            }
+        }
+        logger.info("Using conversion cache directory {} with {} entries ({} bytes)",
+                new Object[] { directory, entries.size(), size });
+    }
+
+    /**
+     * Flushes all cache entries.
+     */
+    @ManagedOperation
+    public void clear() {
+        synchronized (entries) {
+            for (String key : entries.keySet()) {
+                FileUtils.deleteQuietly(new File(directory, key));
+            }
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            evictions.incrementAndGet();
+            if (!new File(directory, eldest.getKey()).delete()) {
+                logger.warn("Unable to delete evicted conversion cache entry {}", eldest.getKey());
+            }
+        }
+    }
+
+    @ManagedAttribute
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @ManagedAttribute
+    public int getEntries() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns the cache hit rate in percent.
+     * 
+     * @return the cache hit rate in percent
+     */
+    @ManagedAttribute
+    public int getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (int) (h * 100 / total) : 0;
+    }
+
+    @ManagedAttribute
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * Opens the cached conversion result for the specified key.
+     * 
+     * @param key
+     *            the cache key
+     * @return the stream of the cached conversion result or <code>null</code> if there is no cache entry for the specified key
+     */
+    public InputStream open(String key) {
+        synchronized (entries) {
+            if (entries.get(key) != null) {
+                try {
+                    InputStream in = new FileInputStream(new File(directory, key));
+                    hits.incrementAndGet();
+                    return in;
+                } catch (IOException e) {
+                    logger.warn("Unable to read conversion cache entry " + key
+                            + ". Removing it from the cache.", e);
+                    size -= entries.remove(key);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Moves the provided conversion result into the cache store.
+     * 
+     * @param key
+     *            the cache key
+     * @param result
+     *            the file with the conversion result
+     * @return <code>true</code> if the file was moved into the cache; <code>false</code> if it could not be cached (e.g. it is
+     *         larger than the maximum store size), in which case the provided file is left untouched
+     */
+    public boolean put(String key, File result) {
+        long length = result.length();
+        if (length > maxSize) {
+            return false;
+        }
+        synchronized (entries) {
+            File target = new File(directory, key);
+            Long previous = entries.remove(key);
+            if (previous != null) {
+                size -= previous;
+                target.delete();
+            }
+            if (!result.renameTo(target)) {
+                try {
+                    FileUtils.moveFile(result, target);
+                } catch (IOException e) {
+                    logger.warn("Unable to store conversion result " + key + " in the cache", e);
+                    return false;
+                }
+            }
+            entries.put(key, length);
+            size += length;
+            evict();
+        }
+
+        return true;
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the maximum size of the cache store in bytes.
+     * 
+     * @param maxSize
+     *            the maximum size of the cache store in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.conversion;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Dedicated spool directory for files, needed by the document converter. The content is transferred into the spool files using
+ * channel transfers, avoiding intermediate buffers on the Java heap where possible. The spool usage statistics account only
+ * the files, spooled or tracked by it, with the length they had at that time.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=ConversionSpool",
+        description = "Spool of the document content for conversions")
+public class ConversionSpool implements InitializingBean {
+
+    private static final long CHUNK_SIZE = 1024L * 1024L;
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionSpool.class);
+
+    private static long transfer(InputStream source, FileChannel target) throws IOException {
+        if (source instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) source).getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            return position;
+        }
+
+        ReadableByteChannel channel = Channels.newChannel(source);
+        long position = 0;
+        long count = 0;
+        while ((count = target.transferFrom(channel, position, CHUNK_SIZE)) > 0) {
+            position += count;
+        }
+        return position;
+    }
+
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    private File directory;
+
+    private final AtomicLong peakUsage = new AtomicLong();
+
+    private final ConcurrentMap<File, Long> tracked = new ConcurrentHashMap<File, Long>();
+
+    private final AtomicLong usage = new AtomicLong();
+
+    public void afterPropertiesSet() throws Exception {
+        if (directory == null) {
+            directory = new File(System.getProperty("java.io.tmpdir"), "jahia-doc-rules-spool");
+        }
+        FileUtils.forceMkdir(directory);
+        logger.info("Using spool directory {} for document conversions", directory);
+    }
+
+    /**
+     * Creates a new empty file in the spool directory, e.g. as a target of a conversion. The file is not accounted in the spool
+     * usage statistics until {@link #track(File)} is called for it.
+     * 
+     * @param prefix
+     *            the prefix for the spool file name
+     * @return the newly created empty spool file
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    public File create(String prefix) throws IOException {
+        return File.createTempFile(prefix, ".spool", directory);
+    }
+
+    @ManagedAttribute
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    @ManagedAttribute
+    public String getDirectory() {
+        return directory.getPath();
+    }
+
+    @ManagedAttribute
+    public long getFilesInUse() {
+        return tracked.size();
+    }
+
+    @ManagedAttribute
+    public long getPeakUsage() {
+        return peakUsage.get();
+    }
+
+    @ManagedAttribute
+    public long getUsage() {
+        return usage.get();
+    }
+
+    /**
+     * Deletes the specified spool file and updates the spool usage statistics, if the file is accounted in them.
+     * 
+     * @param file
+     *            the file to be released; <code>null</code> values are ignored
+     */
+    public void release(File file) {
+        if (file == null) {
+            return;
+        }
+        untrack(file);
+        if (!FileUtils.deleteQuietly(file) && file.exists()) {
+            logger.warn("Unable to delete spool file {}", file);
+        }
+    }
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Transfers the content of the provided stream into a new spool file. The stream is not closed by this method.
+     * 
+     * @param source
+     *            the source content
+     * @param prefix
+     *            the prefix for the spool file name
+     * @return the spool file with the transferred content
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    public File spool(InputStream source, String prefix) throws IOException {
+        return spool(source, prefix, null);
+    }
+
+    /**
+     * Transfers the content of the provided stream into a new spool file, optionally updating the provided message digest with
+     * the transferred content. The stream is not closed by this method.
+     * 
+     * @param source
+     *            the source content
+     * @param prefix
+     *            the prefix for the spool file name
+     * @param digest
+     *            the message digest to be updated with the content; <code>null</code> if no digest is needed
+     * @return the spool file with the transferred content
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    public File spool(InputStream source, String prefix, MessageDigest digest) throws IOException {
+        if (digest != null) {
+            source = new DigestInputStream(source, digest);
+        }
+        File file = File.createTempFile(prefix, ".spool", directory);
+        FileOutputStream out = null;
+        long length = 0;
+        try {
+            out = new FileOutputStream(file);
+            length = transfer(source, out.getChannel());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            release(file);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        bytesCopied.addAndGet(length);
+        track(file, length);
+
+        return file;
+    }
+
+    /**
+     * Accounts the specified file, created outside of the spool (e.g. by the converter), in the spool usage statistics. The file
+     * should be later released using {@link #release(File)}.
+     * 
+     * @param file
+     *            the file to be accounted
+     */
+    public void track(File file) {
+        track(file, file.length());
+    }
+
+    private void track(File file, long length) {
+        if (tracked.putIfAbsent(file, Long.valueOf(length)) != null) {
+            return;
+        }
+        long current = usage.addAndGet(length);
+        long peak = peakUsage.get();
+        while (current > peak && !peakUsage.compareAndSet(peak, current)) {
+            peak = peakUsage.get();
+        }
+    }
+
+    /**
+     * Removes the specified file from the spool usage statistics without deleting it, e.g. if it was moved out of the spool.
+     * Does nothing if the file is not accounted in the statistics.
+     * 
+     * @param file
+     *            the file to be removed from the statistics
+     */
+    public void untrack(File file) {
+        Long length = tracked.remove(file);
+        if (length != null) {
+            usage.addAndGet(-length.longValue());
+        }
+    }
+}
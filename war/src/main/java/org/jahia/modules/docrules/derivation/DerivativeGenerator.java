@@ -0,0 +1,261 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.derivation;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jahia.modules.docrules.MimeTypeMatcher;
+import org.jahia.modules.docrules.stats.LatencyHistogram;
+import org.jahia.services.content.JCRContentUtils;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+
+/**
+ * Base class for the producers of a single output (derivative) of a document, like its PDF version, the extracted text or a
+ * preview image. The generator works on the spooled source file and writes the output into the provided target file, so that
+ * the document content is read from the repository only once for all outputs.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public abstract class DerivativeGenerator {
+
+    private String extension;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong generated = new AtomicLong();
+
+    private long maxInputSize;
+
+    private volatile MimeTypeMatcher mimeTypeMatcher;
+
+    private String name;
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private String[] supportedDocumentFormats;
+
+    private LatencyHistogram time;
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Produces the output for the specified source file, checking the configured input size limit and recording the
+     * generation time.
+     * 
+     * @param source
+     *            the source file
+     * @param sourceMimeType
+     *            the MIME type of the source file
+     * @param target
+     *            the file to write the output into
+     * @return <code>true</code> if the output was produced; <code>false</code> if it was skipped
+     * @throws Exception
+     *             in case of a generation error
+     */
+    public final boolean derive(File source, String sourceMimeType, File target) throws Exception {
+        if (maxInputSize > 0 && source.length() > maxInputSize) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean done = false;
+        try {
+            done = generate(source, sourceMimeType, target);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            time.record(System.nanoTime() - start);
+        }
+        (done ? generated : skipped).incrementAndGet();
+
+        return done;
+    }
+
+    /**
+     * Writes the output for the specified source file into the target file.
+     * 
+     * @param source
+     *            the source file
+     * @param sourceMimeType
+     *            the MIME type of the source file
+     * @param target
+     *            the file to write the output into
+     * @return <code>true</code> if the output was produced; <code>false</code> if the source cannot be handled
+     * @throws Exception
+     *             in case of a generation error
+     */
+    protected abstract boolean generate(File source, String sourceMimeType, File target)
+            throws Exception;
+
+    public String getExtension() {
+        return extension;
+    }
+
+    @ManagedAttribute
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @ManagedAttribute
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     * Returns the name of the output, this generator needs as its input for documents of the specified MIME type (e.g. the
+     * preview of an office document is rendered from its PDF version).
+     * 
+     * @param sourceMimeType
+     *            the MIME type of the document
+     * @return the name of the output, used as input for the specified MIME type, or <code>null</code> if the generator works on
+     *         the document itself
+     */
+    public String getInput(String sourceMimeType) {
+        return null;
+    }
+
+    /**
+     * Returns the MIME type of the produced output.
+     * 
+     * @return the MIME type of the produced output
+     */
+    public abstract String getMimeType();
+
+    @ManagedAttribute
+    public String getName() {
+        return name;
+    }
+
+    @ManagedAttribute(description = "Number of documents skipped as too large or not supported")
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the histogram of the output generation time.
+     * 
+     * @return the histogram of the output generation time
+     */
+    public LatencyHistogram getTime() {
+        return time;
+    }
+
+    @ManagedAttribute(description = "Average generation time in milliseconds")
+    public long getTimeMean() {
+        return time.getMean() / 1000;
+    }
+
+    @ManagedAttribute(description = "Maximum generation time in milliseconds")
+    public long getTimeMax() {
+        return time.getMax() / 1000;
+    }
+
+    @ManagedAttribute(description = "Number of generations cancelled after the output timeout")
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Checks if the generator can produce its output for documents of the specified MIME type.
+     * 
+     * @param sourceMimeType
+     *            the MIME type of the document
+     * @return <code>true</code> if the generator can produce its output for documents of the specified MIME type
+     */
+    public boolean isSupported(String sourceMimeType) {
+        if (sourceMimeType == null) {
+            return false;
+        }
+        MimeTypeMatcher matcher = mimeTypeMatcher;
+        if (matcher == null
+                || !matcher.isCompiledFrom(JCRContentUtils.getInstance().getMimeTypes())) {
+            // MIME type group definitions were changed
+            matcher = MimeTypeMatcher.compile(supportedDocumentFormats);
+            mimeTypeMatcher = matcher;
+        }
+
+        return matcher.matches(sourceMimeType);
+    }
+
+    @ManagedOperation
+    public void resetStatistics() {
+        failures.set(0);
+        generated.set(0);
+        skipped.set(0);
+        timeouts.set(0);
+        time.reset();
+    }
+
+    public void setExtension(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Sets the maximum size of the source file in bytes, this generator processes. Larger files are skipped to keep the time and
+     * memory, needed for the output, bounded.
+     * 
+     * @param maxInputSize
+     *            the maximum size of the source file in bytes; <code>0</code> means no limit
+     */
+    public void setMaxInputSize(long maxInputSize) {
+        this.maxInputSize = maxInputSize;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+        this.time = new LatencyHistogram(name);
+    }
+
+    public void setSupportedDocumentFormats(String[] supportedDocumentFormats) {
+        this.supportedDocumentFormats = supportedDocumentFormats;
+        this.mimeTypeMatcher = null;
+    }
+
+    /**
+     * Accounts a generation, cancelled because it exceeded the output timeout.
+     */
+    public void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+}
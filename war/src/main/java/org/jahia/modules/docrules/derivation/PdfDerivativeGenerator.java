@@ -0,0 +1,82 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.derivation;
+
+import java.io.File;
+
+import org.jahia.services.transform.DocumentConverterService;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Produces the PDF version of a document using the {@link DocumentConverterService}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=PdfDerivativeGenerator",
+        description = "PDF output of the document derivation rule")
+public class PdfDerivativeGenerator extends DerivativeGenerator {
+
+    static final String PDF_MIME_TYPE = "application/pdf";
+
+    private DocumentConverterService documentConverterService;
+
+    @Override
+    protected boolean generate(File source, String sourceMimeType, File target) throws Exception {
+        documentConverterService.convert(source, sourceMimeType, target, PDF_MIME_TYPE);
+
+        return target.length() > 0;
+    }
+
+    @Override
+    public String getMimeType() {
+        return PDF_MIME_TYPE;
+    }
+
+    @Override
+    public boolean isSupported(String sourceMimeType) {
+        return documentConverterService.isEnabled() && !PDF_MIME_TYPE.equals(sourceMimeType)
+                && super.isSupported(sourceMimeType);
+    }
+
+    public void setDocumentConverterService(DocumentConverterService converterService) {
+        this.documentConverterService = converterService;
+    }
+
+}
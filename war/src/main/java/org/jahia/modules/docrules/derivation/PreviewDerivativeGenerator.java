@@ -0,0 +1,201 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.derivation;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Produces a downscaled preview image of the first page of a document. Images are decoded with source subsampling and PDF
+ * documents are rendered at the resolution matching the preview size, so that the memory usage is bounded by the preview size
+ * rather than by the document size. Other documents are previewed using their PDF output.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=PreviewDerivativeGenerator",
+        description = "Preview output of the document derivation rule")
+public class PreviewDerivativeGenerator extends DerivativeGenerator {
+
+    private String format = "png";
+
+    private int maxSize = 320;
+
+    private String pdfOutput = "pdf";
+
+    @Override
+    protected boolean generate(File source, String sourceMimeType, File target) throws Exception {
+        BufferedImage image = PdfDerivativeGenerator.PDF_MIME_TYPE.equals(sourceMimeType) ? renderPdf(
+                source) : readImage(source);
+        if (image == null) {
+            return false;
+        }
+
+        return ImageIO.write(scale(image), format, target);
+    }
+
+    @Override
+    public String getInput(String sourceMimeType) {
+        return sourceMimeType.startsWith("image/")
+                || PdfDerivativeGenerator.PDF_MIME_TYPE.equals(sourceMimeType) ? null : pdfOutput;
+    }
+
+    @Override
+    public String getMimeType() {
+        return "image/" + format;
+    }
+
+    private BufferedImage readImage(File source) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(source);
+        if (in == null) {
+            return null;
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int subsampling = Math.max(1,
+                        Math.max(reader.getWidth(0), reader.getHeight(0)) / (maxSize * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private BufferedImage renderPdf(File source) throws IOException {
+        PDDocument document = PDDocument.load(source);
+        try {
+            if (document.isEncrypted()) {
+                return null;
+            }
+            List<?> pages = document.getDocumentCatalog().getAllPages();
+            if (pages.isEmpty()) {
+                return null;
+            }
+            PDPage page = (PDPage) pages.get(0);
+            PDRectangle box = page.findMediaBox();
+            float size = Math.max(box.getWidth(), box.getHeight());
+            // page dimensions are in points (1/72 inch)
+            int resolution = size > 0 ? Math.max(1, (int) Math.ceil(maxSize * 72 / size)) : 72;
+            return page.convertToImage(BufferedImage.TYPE_INT_RGB, resolution);
+        } finally {
+            document.close();
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double ratio = Math.min(1.0, (double) maxSize / Math.max(width, height));
+        int scaledWidth = Math.max(1, (int) Math.round(width * ratio));
+        int scaledHeight = Math.max(1, (int) Math.round(height * ratio));
+
+        BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            // transparent areas are rendered on white background
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, scaledWidth, scaledHeight);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        return scaled;
+    }
+
+    /**
+     * Sets the image format of the preview, as known to {@link ImageIO} (png, jpeg).
+     * 
+     * @param format
+     *            the image format of the preview
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets the maximum width and height of the preview image in pixels.
+     * 
+     * @param maxSize
+     *            the maximum width and height of the preview image in pixels
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the name of the PDF output, used to render the preview of documents, which are neither images nor PDF files.
+     * 
+     * @param pdfOutput
+     *            the name of the PDF output
+     */
+    public void setPdfOutput(String pdfOutput) {
+        this.pdfOutput = pdfOutput;
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import javax.jcr.RepositoryException;
+
+import org.jahia.services.content.JCRNodeWrapper;
+
+/**
+ * Snapshot of the document data, included into an e-mail digest. The data is captured at the time the document event is
+ * buffered, so that no JCR session is needed when the digest is sent.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DigestDocument {
+
+    private static String getString(JCRNodeWrapper node, String property)
+            throws RepositoryException {
+        return node.hasProperty(property) ? node.getProperty(property).getString() : null;
+    }
+
+    private final String lastModified;
+
+    private final String lastModifiedBy;
+
+    private final String name;
+
+    private final String path;
+
+    private final String url;
+
+    /**
+     * Initializes an instance of this class.
+     * 
+     * @param document
+     *            the document node to capture the data from
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public DigestDocument(JCRNodeWrapper document) throws RepositoryException {
+        super();
+        name = document.getName();
+        path = document.getPath();
+        url = document.getUrl();
+        lastModified = getString(document, "jcr:lastModified");
+        lastModifiedBy = getString(document, "jcr:lastModifiedBy");
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public String getLastModifiedBy() {
+        return lastModifiedBy;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+}
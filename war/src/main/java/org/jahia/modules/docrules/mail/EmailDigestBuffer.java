@@ -0,0 +1,331 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Buffers document e-mail notifications per folder and recipient group and sends them as a single summary message (digest)
+ * after a configurable time window or as soon as the configured number of documents is reached. The total number of buffered
+ * documents is bounded: if the limit is reached, the oldest digest is sent immediately. Pending digests are sent on shutdown.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=EmailDigestBuffer",
+        description = "Buffer of the e-mail notification digests")
+public class EmailDigestBuffer implements InitializingBean, DisposableBean {
+
+    private static class Digest {
+
+        private final long created = System.currentTimeMillis();
+
+        private final List<DigestDocument> documents = new ArrayList<DigestDocument>();
+
+        private final String folderPath;
+
+        private final String key;
+
+        private final String receivers;
+
+        Digest(String key, String folderPath, String receivers) {
+            super();
+            this.key = key;
+            this.folderPath = folderPath;
+            this.receivers = receivers;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailDigestBuffer.class);
+
+    private String body;
+
+    private final Map<String, Digest> digests = new LinkedHashMap<String, Digest>();
+
+    private final AtomicLong digestsSent = new AtomicLong();
+
+    private final AtomicLong documentsBuffered = new AtomicLong();
+
+    private final AtomicLong earlyFlushes = new AtomicLong();
+
+    private MailSender mailSender;
+
+    private int maxDocuments = 100;
+
+    private int maxPendingDocuments = 10000;
+
+    private int pendingDocuments;
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    private String subject;
+
+    private TemplateRenderer templateRenderer;
+
+    private long window = 5 * 60 * 1000L;
+
+    /**
+     * Adds the provided document to the digest for the specified folder and recipients.
+     * 
+     * @param folderKey
+     *            the key of the folder (workspace and folder identifier)
+     * @param folderPath
+     *            the folder path to be mentioned in the digest
+     * @param receivers
+     *            comma-separated list of receivers for the digest
+     * @param document
+     *            the document data
+     */
+    public void add(String folderKey, String folderPath, String receivers, DigestDocument document) {
+        documentsBuffered.incrementAndGet();
+        List<Digest> ready = new ArrayList<Digest>(1);
+        synchronized (digests) {
+            if (pendingDocuments >= maxPendingDocuments && !digests.isEmpty()) {
+                // buffer is full: send the oldest digest right away
+                earlyFlushes.incrementAndGet();
+                ready.add(remove(digests.keySet().iterator().next()));
+            }
+            String key = folderKey + "|" + receivers;
+            Digest digest = digests.get(key);
+            if (digest == null) {
+                digest = new Digest(key, folderPath, receivers);
+                digests.put(key, digest);
+                scheduleFlush(digest);
+            }
+            digest.documents.add(document);
+            pendingDocuments++;
+            if (digest.documents.size() >= maxDocuments) {
+                ready.add(remove(key));
+            }
+        }
+
+        for (Digest digest : ready) {
+            submit(digest);
+        }
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-email-digest-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // pending digests are sent by destroy() instead of waiting for the end of their windows
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public void destroy() throws Exception {
+        scheduler.shutdown();
+        if (!scheduler.awaitTermination(30, TimeUnit.SECONDS)) {
+            scheduler.shutdownNow();
+        }
+        flush();
+    }
+
+    /**
+     * Sends all pending digests immediately.
+     */
+    @ManagedOperation
+    public void flush() {
+        List<Digest> pending = null;
+        synchronized (digests) {
+            pending = new ArrayList<Digest>(digests.values());
+            digests.clear();
+            pendingDocuments = 0;
+        }
+        for (Digest digest : pending) {
+            send(digest);
+        }
+    }
+
+    @ManagedAttribute
+    public long getDigestsSent() {
+        return digestsSent.get();
+    }
+
+    @ManagedAttribute
+    public long getDocumentsBuffered() {
+        return documentsBuffered.get();
+    }
+
+    @ManagedAttribute
+    public long getEarlyFlushes() {
+        return earlyFlushes.get();
+    }
+
+    @ManagedAttribute
+    public int getPendingDigests() {
+        synchronized (digests) {
+            return digests.size();
+        }
+    }
+
+    @ManagedAttribute
+    public int getPendingDocuments() {
+        synchronized (digests) {
+            return pendingDocuments;
+        }
+    }
+
+    private Digest remove(String key) {
+        Digest digest = digests.remove(key);
+        if (digest != null) {
+            pendingDocuments -= digest.documents.size();
+        }
+        return digest;
+    }
+
+    private void scheduleFlush(final Digest digest) {
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                synchronized (digests) {
+                    if (digests.get(digest.key) != digest) {
+                        // was already sent
+                        return;
+                    }
+                    remove(digest.key);
+                }
+                send(digest);
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(Digest digest) {
+        Map<String, Object> bindings = new HashMap<String, Object>();
+        bindings.put("folder", digest.folderPath);
+        bindings.put("documents", digest.documents);
+        try {
+            if (mailSender.sendHtmlMessage(digest.receivers,
+                    templateRenderer.render(subject, bindings),
+                    templateRenderer.render(body, bindings))) {
+                digestsSent.incrementAndGet();
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sent e-mail digest for {} document(s) in folder {} buffered for {} ms",
+                        new Object[] { digest.documents.size(), digest.folderPath,
+                                System.currentTimeMillis() - digest.created });
+            }
+        } catch (Exception e) {
+            logger.error("Error sending e-mail digest " + digest.key, e);
+        }
+    }
+
+    public void setBody(String body) {
+        this.body = body;
+    }
+
+    public void setMailSender(MailSender mailSender) {
+        this.mailSender = mailSender;
+    }
+
+    /**
+     * Sets the number of documents, after which the digest is sent without waiting for the end of the time window.
+     * 
+     * @param maxDocuments
+     *            the maximum number of documents in a single digest
+     */
+    public void setMaxDocuments(int maxDocuments) {
+        this.maxDocuments = maxDocuments;
+    }
+
+    /**
+     * Sets the maximum number of documents, buffered in all digests.
+     * 
+     * @param maxPendingDocuments
+     *            the maximum number of documents, buffered in all digests
+     */
+    public void setMaxPendingDocuments(int maxPendingDocuments) {
+        this.maxPendingDocuments = maxPendingDocuments;
+    }
+
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+
+    public void setTemplateRenderer(TemplateRenderer templateRenderer) {
+        this.templateRenderer = templateRenderer;
+    }
+
+    /**
+     * Sets the time window in milliseconds, during which document notifications are collected into a single digest.
+     * 
+     * @param window
+     *            the time window in milliseconds
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    private void submit(final Digest digest) {
+        if (digest == null) {
+            return;
+        }
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    send(digest);
+                }
+            });
+        } catch (RuntimeException e) {
+            // scheduler is already shut down
+            send(digest);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jahia.modules.docrules.stats.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Asynchronous outbound queue for the e-mail messages, generated by the document rules. Messages are accepted into a bounded
+ * queue and sent by a small pool of sender threads using the delegate {@link MailSender}. Failed messages are retried with an
+ * exponential backoff; messages, which cannot be delivered after the maximum number of attempts, or which do not fit into the
+ * queue, are written to the dead-letter log (logger <code>org.jahia.modules.docrules.mail.DeadLetters</code>). On shutdown the
+ * messages, which are waiting for a retry or are not sent within the shutdown timeout, are dead-lettered as well.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=MailQueue",
+        description = "Outbound queue of the document rule e-mails")
+public class MailQueue implements MailSender, InitializingBean, DisposableBean {
+
+    private class Mail implements Runnable {
+
+        private int attempt;
+
+        private final String body;
+
+        private final long enqueued = System.currentTimeMillis();
+
+        private final String subject;
+
+        private final String to;
+
+        Mail(String to, String subject, String body) {
+            super();
+            this.to = to;
+            this.subject = subject;
+            this.body = body;
+        }
+
+        public void run() {
+            attempt++;
+            long start = System.nanoTime();
+            boolean delivered = false;
+            try {
+                delivered = delegate.sendHtmlMessage(to, subject, body);
+            } catch (Exception e) {
+                logger.warn("Error sending e-mail message to " + to, e);
+            }
+            sendTime.record(System.nanoTime() - start);
+
+            if (delivered) {
+                sent.incrementAndGet();
+                deliveryTime.recordMicros((System.currentTimeMillis() - enqueued) * 1000L);
+            } else if (attempt < maxAttempts) {
+                retry(this);
+            } else {
+                deadLetter(this, "delivery failed after " + attempt + " attempt(s)");
+            }
+        }
+    }
+
+    private static final Logger deadLetters = LoggerFactory
+            .getLogger("org.jahia.modules.docrules.mail.DeadLetters");
+
+    private static final Logger logger = LoggerFactory.getLogger(MailQueue.class);
+
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    private MailSender delegate;
+
+    private final LatencyHistogram deliveryTime = new LatencyHistogram("delivery");
+
+    private long initialRetryDelay = 30000;
+
+    private int maxAttempts = 5;
+
+    private long maxRetryDelay = 30 * 60 * 1000L;
+
+    private int queueCapacity = 1000;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final Set<Mail> retrying = Collections
+            .newSetFromMap(new ConcurrentHashMap<Mail, Boolean>());
+
+    private ScheduledThreadPoolExecutor retryScheduler;
+
+    private ThreadPoolExecutor senders;
+
+    private final LatencyHistogram sendTime = new LatencyHistogram("send");
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private int threads = 2;
+
+    public void afterPropertiesSet() throws Exception {
+        senders = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "doc-rules-mail-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        retryScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-mail-retry");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        retryScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    private void deadLetter(Mail mail, String reason) {
+        deadLettered.incrementAndGet();
+        deadLetters.error("Undeliverable e-mail message ({}) to: {}, subject: {}", new Object[] {
+                reason, mail.to, mail.subject });
+        if (deadLetters.isDebugEnabled()) {
+            // bodies may contain personal data and document links: only logged on demand
+            deadLetters.debug("Body of the undeliverable e-mail message to {}:\n{}", mail.to,
+                    mail.body);
+        }
+    }
+
+    public void destroy() throws Exception {
+        retryScheduler.shutdownNow();
+        // the scheduler returns its own task wrappers, so the messages are taken from the retry set
+        for (Mail mail : new ArrayList<Mail>(retrying)) {
+            if (retrying.remove(mail)) {
+                deadLetter(mail, "awaiting retry on shutdown");
+            }
+        }
+        senders.shutdown();
+        if (!senders.awaitTermination(30, TimeUnit.SECONDS)) {
+            for (Runnable mail : senders.shutdownNow()) {
+                deadLetter((Mail) mail, "not sent before shutdown");
+            }
+        }
+    }
+
+    private boolean enqueue(Mail mail) {
+        try {
+            senders.execute(mail);
+            return true;
+        } catch (RejectedExecutionException e) {
+            deadLetter(mail, senders.isShutdown() ? "queue is shut down" : "queue is full");
+            return false;
+        }
+    }
+
+    @ManagedAttribute
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * Returns the histogram of the time from accepting a message until its successful delivery, including retries.
+     * 
+     * @return the histogram of the time from accepting a message until its successful delivery
+     */
+    public LatencyHistogram getDeliveryTime() {
+        return deliveryTime;
+    }
+
+    @ManagedAttribute(description = "Average delivery time in milliseconds, including queueing and retries")
+    public long getDeliveryTimeMean() {
+        return deliveryTime.getMean() / 1000;
+    }
+
+    @ManagedAttribute(description = "Number of messages waiting in the queue")
+    public int getQueueDepth() {
+        return senders != null ? senders.getQueue().size() : 0;
+    }
+
+    @ManagedAttribute
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @ManagedAttribute(description = "Number of messages waiting for a retry")
+    public int getRetryQueueDepth() {
+        return retrying.size();
+    }
+
+    /**
+     * Returns the histogram of the time, spent for sending a message by the delegate sender.
+     * 
+     * @return the histogram of the time, spent for sending a message by the delegate sender
+     */
+    public LatencyHistogram getSendTime() {
+        return sendTime;
+    }
+
+    @ManagedAttribute(description = "95th percentile of the send time in microseconds")
+    public long getSendTime95() {
+        return sendTime.getPercentile95();
+    }
+
+    @ManagedAttribute(description = "Average send time in microseconds")
+    public long getSendTimeMean() {
+        return sendTime.getMean();
+    }
+
+    @ManagedAttribute
+    public long getSent() {
+        return sent.get();
+    }
+
+    private void retry(final Mail mail) {
+        long delay = Math.min(initialRetryDelay << Math.min(mail.attempt - 1, 20), maxRetryDelay);
+        retries.incrementAndGet();
+        logger.info("Sending e-mail message to {} failed (attempt {} of {}). Retrying in {} ms",
+                new Object[] { mail.to, mail.attempt, maxAttempts, delay });
+        retrying.add(mail);
+        try {
+            retryScheduler.schedule(new Runnable() {
+                public void run() {
+                    // not dead-lettered by a concurrent shutdown
+                    if (retrying.remove(mail)) {
+                        enqueue(mail);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (retrying.remove(mail)) {
+                deadLetter(mail, "retry queue is shut down");
+            }
+        }
+    }
+
+    /**
+     * Accepts the message into the queue and returns immediately.
+     * 
+     * @return <code>true</code> if the message was accepted for sending; <code>false</code> if the queue is full
+     */
+    public boolean sendHtmlMessage(String to, String subject, String body) {
+        return enqueue(new Mail(to, subject, body));
+    }
+
+    /**
+     * Sets the sender, used for the actual message delivery.
+     * 
+     * @param delegate
+     *            the sender, used for the actual message delivery
+     */
+    public void setDelegate(MailSender delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first retry. The delay is doubled with each further attempt.
+     * 
+     * @param initialRetryDelay
+     *            the delay in milliseconds before the first retry
+     */
+    public void setInitialRetryDelay(long initialRetryDelay) {
+        this.initialRetryDelay = initialRetryDelay;
+    }
+
+    /**
+     * Sets the maximum number of delivery attempts per message, after which it is written to the dead-letter log.
+     * 
+     * @param maxAttempts
+     *            the maximum number of delivery attempts per message
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the number of sender threads. Each sender thread keeps its own connection to the mail server.
+     * 
+     * @param threads
+     *            the number of sender threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import java.security.Principal;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.services.preferences.user.UserPreferencesHelper;
+import org.jahia.services.usermanager.JahiaGroup;
+import org.jahia.services.usermanager.JahiaGroupManagerService;
+import org.jahia.services.usermanager.JahiaUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Resolves the e-mail addresses of the group members, who have not disabled e-mail notifications. Members of nested groups are
+ * included. The resolved addresses are cached per group for a configurable time and the cache is flushed when a group
+ * membership or a user e-mail preference is changed. When the cache is full, the least recently used group is evicted.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=RecipientResolver",
+        description = "Resolver of the e-mail notification recipients")
+public class RecipientResolver {
+
+    private static class CachedRecipients {
+
+        private final String[] addresses;
+
+        private final long created = System.currentTimeMillis();
+
+        CachedRecipients(String[] addresses) {
+            super();
+            this.addresses = addresses;
+        }
+    }
+
+    private static final String[] EMPTY = new String[0];
+
+    private static final Logger logger = LoggerFactory.getLogger(RecipientResolver.class);
+
+    private static String getKey(int siteId, String groupName) {
+        return siteId + ":" + groupName;
+    }
+
+    private final Map<String, CachedRecipients> cache = new LinkedHashMap<String, CachedRecipients>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 6016403374568612482L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedRecipients> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private JahiaGroupManagerService groupManagerService;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private int maxEntries = 1000;
+
+    private final AtomicLong maxResolutionTime = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong resolutionTime = new AtomicLong();
+
+    private long timeToLive = 10 * 60 * 1000L;
+
+    private void collect(JahiaGroup group, Set<String> addresses, Set<String> visitedGroups) {
+        if (!visitedGroups.add(group.getGroupKey())) {
+            // cyclic group membership
+            return;
+        }
+        for (Principal principal : group.getMembers()) {
+            if (principal instanceof JahiaUser) {
+                JahiaUser user = (JahiaUser) principal;
+                String email = !UserPreferencesHelper.areEmailNotificationsDisabled(user) ? UserPreferencesHelper
+                        .getPersonalizedEmailAddress(user) : null;
+
+                if (StringUtils.isNotEmpty(email)) {
+                    addresses.add(email);
+                }
+            } else if (principal instanceof JahiaGroup) {
+                collect((JahiaGroup) principal, addresses, visitedGroups);
+            }
+        }
+    }
+
+    /**
+     * Returns the average time in microseconds needed to resolve recipients of a group.
+     * 
+     * @return the average time in microseconds needed to resolve recipients of a group
+     */
+    @ManagedAttribute
+    public long getAverageResolutionTime() {
+        long count = misses.get();
+        return count > 0 ? resolutionTime.get() / count / 1000L : 0;
+    }
+
+    @ManagedAttribute
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @ManagedAttribute
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the maximum time in microseconds needed to resolve recipients of a group.
+     * 
+     * @return the maximum time in microseconds needed to resolve recipients of a group
+     */
+    @ManagedAttribute
+    public long getMaxResolutionTime() {
+        return maxResolutionTime.get() / 1000L;
+    }
+
+    @ManagedAttribute
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Flushes the resolved recipients of all groups.
+     */
+    @ManagedOperation
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+        logger.debug("Flushed resolved e-mail recipients");
+    }
+
+    /**
+     * Flushes the resolved recipients of the specified group.
+     * 
+     * @param siteId
+     *            the ID of the group site
+     * @param groupName
+     *            the group name
+     */
+    public void invalidate(int siteId, String groupName) {
+        synchronized (cache) {
+            cache.remove(getKey(siteId, groupName));
+        }
+    }
+
+    JahiaGroup lookupGroup(int siteId, String groupName) {
+        return groupManagerService.lookupGroup(siteId, groupName);
+    }
+
+    /**
+     * Returns the e-mail addresses of the members of the specified group, including members of the nested groups.
+     * 
+     * @param siteId
+     *            the ID of the group site
+     * @param groupName
+     *            the group name
+     * @return the e-mail addresses of the group members or <code>null</code> if the group cannot be found
+     */
+    public String[] resolve(int siteId, String groupName) {
+        String key = getKey(siteId, groupName);
+        CachedRecipients entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null && (timeToLive <= 0 || System.currentTimeMillis() - entry.created < timeToLive)) {
+            hits.incrementAndGet();
+            return entry.addresses;
+        }
+
+        misses.incrementAndGet();
+        long timer = System.nanoTime();
+        JahiaGroup group = lookupGroup(siteId, groupName);
+        if (group == null) {
+            return null;
+        }
+        Set<String> addresses = new LinkedHashSet<String>();
+        collect(group, addresses, new HashSet<String>());
+        entry = new CachedRecipients(addresses.toArray(EMPTY));
+        synchronized (cache) {
+            cache.put(key, entry);
+        }
+
+        long time = System.nanoTime() - timer;
+        resolutionTime.addAndGet(time);
+        long max = maxResolutionTime.get();
+        while (time > max && !maxResolutionTime.compareAndSet(max, time)) {
+            max = maxResolutionTime.get();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Resolved {} e-mail recipient(s) for group {} in {} ms", new Object[] {
+                    entry.addresses.length, key, time / 1000000L });
+        }
+
+        return entry.addresses;
+    }
+
+    public void setGroupManagerService(JahiaGroupManagerService groupManagerService) {
+        this.groupManagerService = groupManagerService;
+    }
+
+    /**
+     * Sets the maximum number of groups, whose resolved recipients are cached.
+     * 
+     * @param maxEntries
+     *            the maximum number of groups, whose resolved recipients are cached
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds the resolved recipients of a group are cached. A value <code>&lt;= 0</code> disables
+     * the expiration.
+     * 
+     * @param timeToLive
+     *            the maximum time in milliseconds the resolved recipients of a group are cached
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.Authenticator;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Sends e-mail messages directly via SMTP to the configured host, reusing the connection of the calling thread across messages,
+ * e.g. for a dedicated mail relay or a local SMTP stand-in. If no SMTP host is configured, the messages are sent by the delegate
+ * sender (see {@link JahiaMailSender}), so the server settings of the Jahia mail service are applied by the Jahia mail service
+ * itself.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class SmtpMailSender implements MailSender, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmtpMailSender.class);
+
+    private final ThreadLocal<Transport> connection = new ThreadLocal<Transport>();
+
+    private final Set<Transport> connections = Collections.newSetFromMap(new ConcurrentHashMap<Transport, Boolean>());
+
+    private int connectionTimeout = 10000;
+
+    private MailSender delegate;
+
+    private String from;
+
+    private String host;
+
+    private String password;
+
+    private int port = 25;
+
+    private String protocol = "smtp";
+
+    private volatile Session session;
+
+    private int timeout = 30000;
+
+    private String username;
+
+    private void close(Transport transport) {
+        connection.remove();
+        connections.remove(transport);
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Error closing SMTP connection", e);
+        }
+    }
+
+    private Transport connect() throws MessagingException {
+        Transport transport = connection.get();
+        if (transport != null && transport.isConnected()) {
+            return transport;
+        }
+        if (transport != null) {
+            close(transport);
+        }
+        transport = getSession().getTransport(protocol);
+        transport.connect();
+        connection.set(transport);
+        connections.add(transport);
+
+        return transport;
+    }
+
+    public void destroy() throws Exception {
+        for (Transport transport : connections) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.debug("Error closing SMTP connection", e);
+            }
+        }
+        connections.clear();
+    }
+
+    private Session getSession() {
+        if (session == null) {
+            synchronized (this) {
+                if (session == null) {
+                    session = newSession();
+                }
+            }
+        }
+        return session;
+    }
+
+    private Session newSession() {
+        Properties props = new Properties();
+        String prefix = "mail." + protocol + ".";
+        props.setProperty("mail.transport.protocol", protocol);
+        props.setProperty(prefix + "host", host);
+        props.setProperty(prefix + "port", String.valueOf(port));
+        props.setProperty(prefix + "connectiontimeout", String.valueOf(connectionTimeout));
+        props.setProperty(prefix + "timeout", String.valueOf(timeout));
+        if (StringUtils.isNotEmpty(from)) {
+            props.setProperty("mail.from", from);
+        }
+
+        if (StringUtils.isNotEmpty(username)) {
+            props.setProperty(prefix + "auth", "true");
+            props.setProperty(prefix + "user", username);
+            final PasswordAuthentication auth = new PasswordAuthentication(username,
+                    StringUtils.defaultString(password));
+            return Session.getInstance(props, new Authenticator() {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return auth;
+                }
+            });
+        }
+
+        return Session.getInstance(props);
+    }
+
+    private MimeMessage newMessage(String to, String subject, String body)
+            throws MessagingException {
+        MimeMessage message = new MimeMessage(getSession());
+        if (StringUtils.isNotEmpty(from)) {
+            message.setFrom(new InternetAddress(from));
+        }
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to));
+        message.setSubject(subject, "UTF-8");
+        message.setContent(body, "text/html; charset=UTF-8");
+        message.setSentDate(new Date());
+        message.saveChanges();
+
+        return message;
+    }
+
+    /**
+     * Resets the SMTP session, so the changed server settings are taken into account for new connections.
+     */
+    public synchronized void reset() {
+        session = null;
+    }
+
+    public boolean sendHtmlMessage(String to, String subject, String body) {
+        if (StringUtils.isEmpty(host)) {
+            return delegate.sendHtmlMessage(to, subject, body);
+        }
+        try {
+            MimeMessage message = newMessage(to, subject, body);
+            Transport transport = connect();
+            try {
+                transport.sendMessage(message, message.getAllRecipients());
+            } catch (MessagingException e) {
+                // the reused connection could have been dropped by the server: retry once with a new one
+                logger.debug("Error sending message using existing SMTP connection. Reconnecting.", e);
+                close(transport);
+                connect().sendMessage(message, message.getAllRecipients());
+            }
+            return true;
+        } catch (MessagingException e) {
+            logger.warn("Error sending e-mail message to " + to + ": " + e.getMessage(), e);
+            Transport transport = connection.get();
+            if (transport != null) {
+                close(transport);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Sets the connection timeout in milliseconds.
+     * 
+     * @param connectionTimeout
+     *            the connection timeout in milliseconds
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Sets the sender, used if no SMTP host is configured.
+     * 
+     * @param delegate
+     *            the sender, used if no SMTP host is configured
+     */
+    public void setDelegate(MailSender delegate) {
+        this.delegate = delegate;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    /**
+     * Sets the SMTP host. If not set, the messages are sent by the delegate sender.
+     * 
+     * @param host
+     *            the SMTP host
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Sets the socket read timeout in milliseconds.
+     * 
+     * @param timeout
+     *            the socket read timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Renders Velocity templates (e.g. e-mail subject and body). Each distinct template text is parsed only once and the compiled
+ * template is kept in an LRU cache. Rendering uses a dedicated context per invocation, so the renderer can be safely used by
+ * concurrent jobs.
+ * <p>
+ * The templates are compiled by a private Velocity runtime, configured with the UTF-8 input encoding and the logging only, and
+ * not by the Jahia <code>velocity</code> script engine (see <code>ScriptEngineUtils</code>): the global macros, tools and
+ * resource loaders of the Jahia Velocity configuration are not available, so the templates can use the provided bindings and
+ * the Velocity directives only. A template without any reference or directive is returned as is (trimmed), whereas the script
+ * engine based evaluation returned <code>null</code> for a text without <code>${</code>, i.e. static subjects and bodies are
+ * now sent instead of being dropped.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=TemplateRenderer",
+        description = "Renderer of the e-mail templates")
+public class TemplateRenderer implements InitializingBean {
+
+    /**
+     * Thrown in case a template cannot be parsed.
+     */
+    public static class TemplateException extends Exception {
+
+        private static final long serialVersionUID = -2811356164395453271L;
+
+        public TemplateException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static boolean isStatic(String template) {
+        return template.indexOf('$') == -1 && template.indexOf('#') == -1;
+    }
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private int maxTemplates = 100;
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong renderCount = new AtomicLong();
+
+    private final AtomicLong renderTime = new AtomicLong();
+
+    private RuntimeInstance runtime;
+
+    private Map<String, Template> templates;
+
+    public void afterPropertiesSet() throws Exception {
+        RuntimeInstance velocity = new RuntimeInstance();
+        velocity.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
+                "org.apache.velocity.runtime.log.Log4JLogChute,"
+                        + "org.apache.velocity.runtime.log.NullLogChute");
+        velocity.setProperty("runtime.log.logsystem.log4j.logger", TemplateRenderer.class.getName());
+        velocity.setProperty(RuntimeConstants.INPUT_ENCODING, "UTF-8");
+        velocity.init();
+        runtime = velocity;
+
+        templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+            private static final long serialVersionUID = 4469823470526212876L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+                if (size() > maxTemplates) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Flushes all compiled templates.
+     */
+    @ManagedOperation
+    public void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    private Template compile(String template) throws TemplateException {
+        Template compiled = new Template();
+        compiled.setName("docrules-" + Integer.toHexString(template.hashCode()));
+        compiled.setRuntimeServices(runtime);
+        try {
+            compiled.setData(runtime.parse(new StringReader(template), compiled.getName()));
+        } catch (ParseException e) {
+            throw new TemplateException("Unable to parse template [" + template + "]", e);
+        }
+        compiled.initDocument();
+
+        return compiled;
+    }
+
+    /**
+     * Returns the average rendering time in microseconds.
+     * 
+     * @return the average rendering time in microseconds
+     */
+    @ManagedAttribute
+    public long getAverageRenderTime() {
+        long count = renderCount.get();
+        return count > 0 ? renderTime.get() / count / 1000L : 0;
+    }
+
+    @ManagedAttribute
+    public long getCacheEvictions() {
+        return evictions.get();
+    }
+
+    @ManagedAttribute
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute
+    public int getCacheSize() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    @ManagedAttribute
+    public long getRenderCount() {
+        return renderCount.get();
+    }
+
+    private Template getTemplate(String template) throws TemplateException {
+        Template compiled = null;
+        synchronized (templates) {
+            compiled = templates.get(template);
+        }
+        if (compiled != null) {
+            hits.incrementAndGet();
+            return compiled;
+        }
+
+        misses.incrementAndGet();
+        compiled = compile(template);
+        synchronized (templates) {
+            templates.put(template, compiled);
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Renders the provided template text using the specified objects. The bindings are copied into the context of each rendering,
+     * as the template can set variables (<code>#set</code>), so they may be immutable and shared between renderings.
+     * 
+     * @param template
+     *            the template text
+     * @param bindings
+     *            the objects, available in the template; not modified
+     * @return the rendered and trimmed output
+     * @throws TemplateException
+     *             in case the template cannot be parsed
+     */
+    public String render(String template, Map<String, Object> bindings) throws TemplateException {
+        if (template == null) {
+            return null;
+        }
+        if (isStatic(template)) {
+            return template.trim();
+        }
+
+        long timer = System.nanoTime();
+        try {
+            StringWriter out = new StringWriter(template.length() + 64);
+            getTemplate(template).merge(
+                    new VelocityContext(new HashMap<String, Object>(bindings)), out);
+            return out.toString().trim();
+        } finally {
+            renderCount.incrementAndGet();
+            renderTime.addAndGet(System.nanoTime() - timer);
+        }
+    }
+
+    /**
+     * Sets the maximum number of compiled templates kept in the cache.
+     * 
+     * @param maxTemplates
+     *            the maximum number of compiled templates kept in the cache
+     */
+    public void setMaxTemplates(int maxTemplates) {
+        this.maxTemplates = maxTemplates;
+    }
+}
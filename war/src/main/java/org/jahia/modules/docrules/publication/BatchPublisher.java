@@ -0,0 +1,403 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.publication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.RepositoryException;
+
+import org.jahia.api.Constants;
+import org.jahia.modules.docrules.stats.LatencyHistogram;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRPublicationService;
+import org.jahia.services.content.JCRSessionFactory;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.jahia.services.content.PublicationInfo;
+import org.jahia.services.usermanager.JahiaAdminUser;
+import org.jahia.services.usermanager.JahiaUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Collects the nodes to be published and publishes them to the live workspace in one batched publication per folder. A folder
+ * batch is published as soon as no new nodes were added to it during the debounce window, when it reaches the maximum size or
+ * when its oldest node waits longer than the maximum delay. Nodes, which no longer exist at publication time, are skipped.
+ * <p>
+ * Each document is published with its full publication set, i.e. its sub-nodes and referenced nodes, as collected by the
+ * {@link JCRPublicationService#getPublicationInfo(String, Set, boolean, boolean, boolean, String, String)}, like the publication
+ * of a node, marked with <code>jmix:autoPublish</code>.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=BatchPublisher",
+        description = "Debounced batch publication of documents")
+public class BatchPublisher implements InitializingBean, DisposableBean {
+
+    private static class Batch {
+
+        private final long created = System.currentTimeMillis();
+
+        private final String folderPath;
+
+        private long updated = created;
+
+        private final Map<String, Long> uuids = new LinkedHashMap<String, Long>();
+
+        Batch(String folderPath) {
+            super();
+            this.folderPath = folderPath;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchPublisher.class);
+
+    private final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private int maxBatchSize = 500;
+
+    private long maxDelay = 60000;
+
+    private final AtomicLong publications = new AtomicLong();
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong received = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    private final LatencyHistogram timeToLive = new LatencyHistogram("uploadToLive");
+
+    private final AtomicLong vanished = new AtomicLong();
+
+    private long window = 5000;
+
+    /**
+     * Adds the specified node to the publication batch of its folder.
+     * 
+     * @param folderIdentifier
+     *            the identifier of the parent folder
+     * @param folderPath
+     *            the path of the parent folder
+     * @param uuid
+     *            the identifier of the node to be published
+     */
+    public void add(String folderIdentifier, String folderPath, String uuid) {
+        received.incrementAndGet();
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(folderIdentifier);
+            if (batch == null) {
+                batch = new Batch(folderPath);
+                batches.put(folderIdentifier, batch);
+            }
+            if (!batch.uuids.containsKey(uuid)) {
+                batch.uuids.put(uuid, System.currentTimeMillis());
+            }
+            batch.updated = System.currentTimeMillis();
+            if (batch.uuids.size() >= maxBatchSize) {
+                full = batches.remove(folderIdentifier);
+            }
+        }
+        if (full != null) {
+            final Batch batch = full;
+            try {
+                scheduler.execute(new Runnable() {
+                    public void run() {
+                        publish(batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                publish(batch);
+            }
+        }
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-publisher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(window / 4, 100);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush(false);
+                } catch (Exception e) {
+                    logger.error("Error publishing pending documents", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void destroy() throws Exception {
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        flush(true);
+    }
+
+    private List<String> filterExisting(final List<String> uuids) throws RepositoryException {
+        return JCRTemplate.getInstance().doExecuteWithSystemSession(null,
+                Constants.EDIT_WORKSPACE, new JCRCallback<List<String>>() {
+                    public List<String> doInJCR(JCRSessionWrapper session)
+                            throws RepositoryException {
+                        List<String> existing = new ArrayList<String>(uuids.size());
+                        for (String uuid : uuids) {
+                            try {
+                                session.getNodeByIdentifier(uuid);
+                                existing.add(uuid);
+                            } catch (ItemNotFoundException e) {
+                                vanished.incrementAndGet();
+                                logger.debug("Node {} no longer exists. Skip publishing it.", uuid);
+                            }
+                        }
+                        return existing;
+                    }
+                });
+    }
+
+    /**
+     * Publishes the pending batches, which debounce window is over.
+     * 
+     * @param all
+     *            if <code>true</code>, all pending batches are published immediately
+     */
+    public void flush(boolean all) {
+        List<Batch> due = new ArrayList<Batch>();
+        long now = System.currentTimeMillis();
+        synchronized (batches) {
+            for (Iterator<Batch> it = batches.values().iterator(); it.hasNext();) {
+                Batch batch = it.next();
+                if (all || now - batch.updated >= window || now - batch.created >= maxDelay) {
+                    it.remove();
+                    due.add(batch);
+                }
+            }
+        }
+        for (Batch batch : due) {
+            publish(batch);
+        }
+    }
+
+    @ManagedOperation(description = "Publishes all pending documents immediately")
+    public void flushAll() {
+        flush(true);
+    }
+
+    @ManagedAttribute
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @ManagedAttribute(description = "Number of documents waiting for publication")
+    public int getPending() {
+        int count = 0;
+        synchronized (batches) {
+            for (Batch batch : batches.values()) {
+                count += batch.uuids.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Collects the full publication set of the specified nodes: the nodes themselves, their sub-nodes and referenced nodes.
+     */
+    private List<String> getPublicationSet(List<String> uuids) throws RepositoryException {
+        JCRPublicationService publicationService = JCRPublicationService.getInstance();
+        Set<String> all = new LinkedHashSet<String>(uuids.size() * 4);
+        for (String uuid : uuids) {
+            all.add(uuid);
+            for (PublicationInfo info : publicationService.getPublicationInfo(uuid, null, true,
+                    true, false, Constants.EDIT_WORKSPACE, Constants.LIVE_WORKSPACE)) {
+                all.addAll(info.getAllUuids());
+            }
+        }
+        return new ArrayList<String>(all);
+    }
+
+    @ManagedAttribute(description = "Number of batched publications")
+    public long getPublications() {
+        return publications.get();
+    }
+
+    @ManagedAttribute(description = "Number of published documents")
+    public long getPublished() {
+        return published.get();
+    }
+
+    @ManagedAttribute
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Returns the histogram of the time from the rule execution on a document (i.e. its upload) until it is published.
+     * 
+     * @return the histogram of the time from the rule execution on a document until it is published
+     */
+    public LatencyHistogram getTimeToLive() {
+        return timeToLive;
+    }
+
+    @ManagedAttribute(description = "Average time from upload to live in milliseconds")
+    public long getTimeToLiveMean() {
+        return timeToLive.getMean() / 1000;
+    }
+
+    @ManagedAttribute(description = "Maximum time from upload to live in milliseconds")
+    public long getTimeToLiveMax() {
+        return timeToLive.getMax() / 1000;
+    }
+
+    @ManagedAttribute(description = "Number of documents, which no longer existed at publication time")
+    public long getVanished() {
+        return vanished.get();
+    }
+
+    private void publish(Batch batch) {
+        JCRSessionFactory sessionFactory = JCRSessionFactory.getInstance();
+        JahiaUser previousUser = sessionFactory.getCurrentUser();
+        sessionFactory.setCurrentUser(JahiaAdminUser.getAdminUser(0));
+        try {
+            List<String> uuids = filterExisting(new ArrayList<String>(batch.uuids.keySet()));
+            if (uuids.isEmpty()) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                JCRPublicationService.getInstance().publish(getPublicationSet(uuids),
+                        Constants.EDIT_WORKSPACE, Constants.LIVE_WORKSPACE, null);
+                publications.incrementAndGet();
+                published(batch, uuids);
+            } catch (RepositoryException e) {
+                logger.warn("Error publishing " + uuids.size() + " document(s) in "
+                        + batch.folderPath + ". Will publish them one by one.", e);
+                // nodes could have been deleted or locked meanwhile: publish the remaining ones separately
+                for (String uuid : filterExisting(uuids)) {
+                    try {
+                        JCRPublicationService.getInstance().publish(
+                                getPublicationSet(Collections.singletonList(uuid)),
+                                Constants.EDIT_WORKSPACE, Constants.LIVE_WORKSPACE, null);
+                        publications.incrementAndGet();
+                        published(batch, Collections.singletonList(uuid));
+                    } catch (RepositoryException ex) {
+                        failed.incrementAndGet();
+                        logger.error("Error publishing node " + uuid, ex);
+                    }
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Published {} document(s) in {} in {} ms", new Object[] {
+                        uuids.size(), batch.folderPath, System.currentTimeMillis() - start });
+            }
+        } catch (Exception e) {
+            failed.addAndGet(batch.uuids.size());
+            logger.error("Error publishing documents in " + batch.folderPath, e);
+        } finally {
+            sessionFactory.setCurrentUser(previousUser);
+        }
+    }
+
+    private void published(Batch batch, List<String> uuids) {
+        long now = System.currentTimeMillis();
+        for (String uuid : uuids) {
+            published.incrementAndGet();
+            timeToLive.recordMicros((now - batch.uuids.get(uuid)) * 1000L);
+        }
+    }
+
+    /**
+     * Sets the maximum number of documents per batched publication.
+     * 
+     * @param maxBatchSize
+     *            the maximum number of documents per batched publication
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a document waits for publication, even if new documents keep coming into the same
+     * folder.
+     * 
+     * @param maxDelay
+     *            the maximum time in milliseconds a document waits for publication
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Sets the debounce window in milliseconds: a folder batch is published if no new documents were added to it during this
+     * time.
+     * 
+     * @param window
+     *            the debounce window in milliseconds
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+}
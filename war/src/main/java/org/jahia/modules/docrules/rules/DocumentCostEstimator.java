@@ -0,0 +1,167 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.rules;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jahia.modules.docrules.MimeTypeMatcher;
+import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRFileContent;
+import org.jahia.services.content.JCRNodeWrapper;
+
+/**
+ * Estimates the expected cost (execution time in milliseconds) of a background document rule on a document, based on the rule,
+ * the document size and its MIME type. The estimation is used by the executor to separate heavy from light work and to run
+ * cheap executions first.
+ * 
+ * <pre>
+ * cost = baseCost(rule) + size in MB * costPerMegabyte(rule) * mimeTypeWeight(MIME type)
+ * </pre>
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentCostEstimator {
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    private Map<String, Long> baseCosts = Collections.emptyMap();
+
+    private Map<String, Long> costsPerMegabyte = Collections.emptyMap();
+
+    private long defaultBaseCost = 100;
+
+    private volatile Map<MimeTypeMatcher, Double> mimeTypeMatchers;
+
+    private Map<String, Double> mimeTypeWeights = Collections.emptyMap();
+
+    /**
+     * Returns the estimated cost of executing the specified rule on the document.
+     * 
+     * @param document
+     *            the document node
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return the estimated cost of executing the specified rule on the document in milliseconds
+     */
+    public long estimate(JCRNodeWrapper document, String ruleBeanId) {
+        Long base = baseCosts.get(ruleBeanId);
+        long cost = base != null ? base.longValue() : defaultBaseCost;
+        Long perMegabyte = costsPerMegabyte.get(ruleBeanId);
+        if (perMegabyte == null || perMegabyte.longValue() <= 0 || !document.isFile()) {
+            return cost;
+        }
+        JCRFileContent content = document.getFileContent();
+        if (content == null) {
+            return cost;
+        }
+
+        double megabytes = content.getContentLength() / MEGABYTE;
+
+        return cost + (long) (megabytes * perMegabyte.longValue()
+                * getMimeTypeWeight(content.getContentType()));
+    }
+
+    private double getMimeTypeWeight(String mimeType) {
+        if (mimeType == null) {
+            return 1.0;
+        }
+        Map<String, List<String>> groups = JCRContentUtils.getInstance().getMimeTypes();
+        Map<MimeTypeMatcher, Double> matchers = mimeTypeMatchers;
+        if (matchers == null || !matchers.isEmpty()
+                && !matchers.keySet().iterator().next().isCompiledFrom(groups)) {
+            // MIME type group definitions were changed
+            matchers = new LinkedHashMap<MimeTypeMatcher, Double>();
+            for (Map.Entry<String, Double> weight : mimeTypeWeights.entrySet()) {
+                matchers.put(MimeTypeMatcher.compile(groups, weight.getKey()), weight.getValue());
+            }
+            mimeTypeMatchers = matchers;
+        }
+        for (Map.Entry<MimeTypeMatcher, Double> weight : matchers.entrySet()) {
+            if (weight.getKey().matches(mimeType)) {
+                return weight.getValue().doubleValue();
+            }
+        }
+
+        return 1.0;
+    }
+
+    /**
+     * Sets the fixed cost in milliseconds of a single execution per rule bean ID.
+     * 
+     * @param baseCosts
+     *            the fixed cost in milliseconds of a single execution per rule bean ID
+     */
+    public void setBaseCosts(Map<String, Long> baseCosts) {
+        this.baseCosts = baseCosts != null ? baseCosts : Collections.<String, Long> emptyMap();
+    }
+
+    /**
+     * Sets the cost in milliseconds per megabyte of the document content per rule bean ID. Rules, which are not mentioned here,
+     * do not depend on the document size.
+     * 
+     * @param costsPerMegabyte
+     *            the cost in milliseconds per megabyte of the document content per rule bean ID
+     */
+    public void setCostsPerMegabyte(Map<String, Long> costsPerMegabyte) {
+        this.costsPerMegabyte = costsPerMegabyte != null ? costsPerMegabyte : Collections
+                .<String, Long> emptyMap();
+    }
+
+    public void setDefaultBaseCost(long defaultBaseCost) {
+        this.defaultBaseCost = defaultBaseCost;
+    }
+
+    /**
+     * Sets the weights of the size-dependent cost per MIME type or MIME type group (like powerpoint, pdf, text/*). The first
+     * matching entry is used; documents of other types have the weight of <code>1.0</code>.
+     * 
+     * @param mimeTypeWeights
+     *            the weights of the size-dependent cost per MIME type or MIME type group
+     */
+    public void setMimeTypeWeights(Map<String, Double> mimeTypeWeights) {
+        this.mimeTypeWeights = mimeTypeWeights != null ? new LinkedHashMap<String, Double>(
+                mimeTypeWeights) : Collections.<String, Double> emptyMap();
+        this.mimeTypeMatchers = null;
+    }
+
+}
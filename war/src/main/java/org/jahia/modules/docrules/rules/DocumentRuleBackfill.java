@@ -0,0 +1,639 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.rules;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.Query;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jahia.api.Constants;
+import org.jahia.modules.docrules.DocumentRuleJob;
+import org.jahia.services.content.JCRCallback;
+import org.jahia.services.content.JCRContentUtils;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.JCRSessionWrapper;
+import org.jahia.services.content.JCRTemplate;
+import org.jahia.settings.SettingsBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Applies the document rules of folders to their existing content, e.g. after a rule was added to a folder with many files. The
+ * files of the subtree are streamed page by page using a JCR query, ordered by creation date and identifier, each page starting
+ * after the last document of the previous one. The rules are executed in batches by a pool of workers. The pre-filter
+ * conditions of the rules (see {@link DocumentRulesRuleService#setConditions(Map)}) are applied and the backfill is slowed down
+ * to the rate limits of the rules (see {@link DocumentRuleRateLimiter}). The last processed document is checkpointed after each
+ * page, so an interrupted backfill is resumed from there on the next start.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=DocumentRuleBackfill",
+        description = "Applies document rules to the existing content of folders")
+public class DocumentRuleBackfill implements InitializingBean, DisposableBean,
+        ApplicationListener<ContextRefreshedEvent> {
+
+    private class Backfill implements Runnable {
+
+        private volatile boolean cancelled;
+
+        private final File checkpoint;
+
+        private volatile String lastCreated;
+
+        private volatile String lastUuid;
+
+        private final String path;
+
+        private volatile long processed;
+
+        private final Set<String> rules;
+
+        private final long started = System.currentTimeMillis();
+
+        private final long startProcessed;
+
+        private volatile long total = -1;
+
+        private final String workspace;
+
+        Backfill(String workspace, String path, Set<String> rules, Properties resumeFrom) {
+            super();
+            this.workspace = workspace;
+            this.path = path;
+            this.rules = rules;
+            if (resumeFrom != null && resumeFrom.getProperty("uuid") != null) {
+                lastCreated = resumeFrom.getProperty("created");
+                lastUuid = resumeFrom.getProperty("uuid");
+                processed = Long.parseLong(resumeFrom.getProperty("processed", "0"));
+            }
+            this.startProcessed = processed;
+            this.checkpoint = getCheckpoint(workspace, path);
+        }
+
+        /**
+         * Waits until the rate limits of the rule allow its execution on a document of the folder. The backfill only catches up
+         * on existing content, so it is slowed down instead of deferring or dropping documents.
+         * 
+         * @return <code>false</code> if the backfill was cancelled meanwhile
+         */
+        private boolean acquire(String ruleBeanId, String folderPath) throws InterruptedException {
+            if (rateLimiter == null) {
+                return true;
+            }
+            while (!cancelled) {
+                DocumentRuleRateLimiter.Decision decision = rateLimiter.acquire(ruleBeanId,
+                        folderPath);
+                if (decision.isAllowed()) {
+                    return true;
+                }
+                if (decision.isReserved()) {
+                    pause(decision.getDelay());
+                    return !cancelled;
+                }
+                pause(RATE_LIMIT_RETRY_INTERVAL);
+            }
+            return false;
+        }
+
+        private void checkpoint() throws IOException {
+            Properties props = new Properties();
+            props.setProperty("workspace", workspace);
+            props.setProperty("path", path);
+            props.setProperty("rules", StringUtils.join(rules, ","));
+            if (lastUuid != null) {
+                props.setProperty("created", lastCreated);
+                props.setProperty("uuid", lastUuid);
+            }
+            props.setProperty("processed", String.valueOf(processed));
+            OutputStream out = new FileOutputStream(checkpoint);
+            try {
+                props.store(out, "Document rule backfill checkpoint");
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }
+
+        private int executePage(JCRSessionWrapper session) throws RepositoryException,
+                InterruptedException {
+            StringBuilder sql = new StringBuilder(256);
+            sql.append("SELECT * FROM [nt:file] AS file WHERE ISDESCENDANTNODE(file, [")
+                    .append(JCRContentUtils.sqlEncode(path)).append("])");
+            if (lastUuid != null) {
+                // continue after the last processed document
+                sql.append(" AND (file.[jcr:created] > $created OR (file.[jcr:created] = $created"
+                        + " AND file.[jcr:uuid] > $uuid))");
+            }
+            sql.append(" ORDER BY file.[jcr:created], file.[jcr:uuid]");
+            Query query = session.getWorkspace().getQueryManager()
+                    .createQuery(sql.toString(), Query.JCR_SQL2);
+            if (lastUuid != null) {
+                ValueFactory valueFactory = session.getValueFactory();
+                query.bindValue("created", valueFactory.createValue(lastCreated, PropertyType.DATE));
+                query.bindValue("uuid", valueFactory.createValue(lastUuid));
+            }
+            query.setLimit(pageSize);
+
+            // group the documents of the page by rule
+            Map<String, List<String>> byRule = new LinkedHashMap<String, List<String>>();
+            int count = 0;
+            for (NodeIterator it = query.execute().getNodes(); it.hasNext() && !cancelled;) {
+                JCRNodeWrapper doc = (JCRNodeWrapper) it.nextNode();
+                JCRNodeWrapper folder = doc.getParent();
+                List<FolderRules.Rule> selected = new LinkedList<FolderRules.Rule>();
+                for (FolderRules.Rule rule : folderRulesCache.get(folder).getRules()) {
+                    if (rules.isEmpty() || rules.contains(rule.getBeanId())) {
+                        selected.add(rule);
+                    }
+                }
+                if (rulesService != null && !selected.isEmpty()) {
+                    selected = rulesService.filter(doc, selected);
+                }
+                for (FolderRules.Rule rule : selected) {
+                    if (!acquire(rule.getBeanId(), folder.getPath())) {
+                        break;
+                    }
+                    List<String> uuids = byRule.get(rule.getBeanId());
+                    if (uuids == null) {
+                        uuids = new LinkedList<String>();
+                        byRule.put(rule.getBeanId(), uuids);
+                    }
+                    uuids.add(doc.getIdentifier());
+                }
+                if (cancelled) {
+                    // the document is processed again on resume
+                    break;
+                }
+                lastCreated = doc.getProperty("jcr:created").getString();
+                lastUuid = doc.getIdentifier();
+                count++;
+            }
+
+            List<Future<?>> tasks = new LinkedList<Future<?>>();
+            for (Map.Entry<String, List<String>> rule : byRule.entrySet()) {
+                List<String> uuids = new ArrayList<String>(rule.getValue());
+                for (int i = 0; i < uuids.size(); i += batchSize) {
+                    tasks.add(submit(workspace,
+                            uuids.subList(i, Math.min(i + batchSize, uuids.size())),
+                            rule.getKey()));
+                }
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    logger.error("Error backfilling document rules in " + path, e.getCause());
+                }
+            }
+
+            return count;
+        }
+
+        /**
+         * Returns the estimated remaining time in seconds or <code>-1</code> if it cannot be estimated.
+         */
+        long getEta() {
+            double throughput = getThroughput();
+            return total >= 0 && throughput > 0 ? (long) (Math.max(total - processed, 0) / throughput)
+                    : -1;
+        }
+
+        /**
+         * Returns the number of documents processed per second.
+         */
+        double getThroughput() {
+            long elapsed = System.currentTimeMillis() - started;
+            return elapsed > 0 ? (processed - startProcessed) * 1000.0 / elapsed : 0;
+        }
+
+        private void pause(long millis) throws InterruptedException {
+            long until = System.currentTimeMillis() + millis;
+            long now;
+            while (!cancelled && (now = System.currentTimeMillis()) < until) {
+                Thread.sleep(Math.min(until - now, 1000));
+            }
+        }
+
+        public void run() {
+            logger.info("Starting backfill of document rules {} in {} ({}) after {} document(s)",
+                    new Object[] { rules.isEmpty() ? "(all)" : rules, path, workspace, processed });
+            try {
+                JCRTemplate.getInstance().doExecuteWithSystemSession(null, workspace,
+                        new JCRCallback<Boolean>() {
+                            public Boolean doInJCR(JCRSessionWrapper session)
+                                    throws RepositoryException {
+                                total = count(session);
+                                try {
+                                    int count;
+                                    do {
+                                        count = executePage(session);
+                                        processed += count;
+                                        checkpoint();
+                                        // drop the nodes of the processed page
+                                        session.refresh(false);
+                                        logger.info("Backfill of {}: {}", path, getStatus());
+                                    } while (count == pageSize && !cancelled);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    cancelled = true;
+                                } catch (IOException e) {
+                                    throw new RepositoryException(e);
+                                }
+                                return Boolean.TRUE;
+                            }
+                        });
+                if (cancelled) {
+                    logger.info("Backfill of document rules in {} is stopped after {} document(s)",
+                            path, processed);
+                } else {
+                    FileUtils.deleteQuietly(checkpoint);
+                    logger.info("Backfill of document rules in {} is completed: {}", path,
+                            getStatus());
+                }
+            } catch (Exception e) {
+                logger.error("Backfill of document rules in " + path + " failed after "
+                        + processed + " document(s). It will be resumed on the next start.", e);
+            } finally {
+                running.remove(getKey(workspace, path), this);
+            }
+        }
+
+        private long count(JCRSessionWrapper session) {
+            try {
+                return session.getWorkspace().getQueryManager().createQuery(
+                        "SELECT * FROM [nt:file] AS file WHERE ISDESCENDANTNODE(file, ["
+                                + JCRContentUtils.sqlEncode(path) + "])", Query.JCR_SQL2)
+                        .execute().getNodes().getSize();
+            } catch (RepositoryException e) {
+                logger.warn("Unable to count documents in " + path, e);
+                return -1;
+            }
+        }
+
+        String getStatus() {
+            StringBuilder out = new StringBuilder(128);
+            out.append(processed);
+            if (total >= 0) {
+                out.append(" of ").append(total);
+            }
+            out.append(" document(s), ").append(String.format("%.1f", getThroughput()))
+                    .append(" doc/s");
+            if (startProcessed > 0) {
+                out.append(", resumed after ").append(startProcessed);
+            }
+            long eta = getEta();
+            if (eta >= 0) {
+                out.append(", ETA ").append(eta / 60).append(" min ").append(eta % 60)
+                        .append(" s");
+            }
+            return out.toString();
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRuleBackfill.class);
+
+    private static final long RATE_LIMIT_RETRY_INTERVAL = 1000;
+
+    private static String getKey(String workspace, String path) {
+        return workspace + ":" + path;
+    }
+
+    private static Set<String> parseRules(String rules) {
+        return StringUtils.isBlank(rules) ? Collections.<String> emptySet() : new HashSet<String>(
+                Arrays.asList(StringUtils.split(rules, ", ")));
+    }
+
+    private int batchSize = 20;
+
+    private int commitInterval = 20;
+
+    private int concurrency = 4;
+
+    private File directory;
+
+    private FolderRulesCache folderRulesCache;
+
+    private int pageSize = 500;
+
+    private DocumentRuleRateLimiter rateLimiter;
+
+    private boolean resumed;
+
+    private boolean resumeOnStartup = true;
+
+    private DocumentRulesRuleService rulesService;
+
+    private final ConcurrentMap<String, Backfill> running = new ConcurrentHashMap<String, Backfill>();
+
+    private ThreadPoolExecutor workers;
+    public void afterPropertiesSet() throws Exception {
+        if (directory == null) {
+            directory = new File(SettingsBean.getInstance().getJahiaVarDiskPath(),
+                    "doc-rules-backfill");
+        }
+        FileUtils.forceMkdir(directory);
+
+        workers = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "doc-rules-backfill-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the backfill of the specified folder. The progress is kept and the backfill can be started again from the last
+     * checkpoint.
+     * 
+     * @param workspace
+     *            the workspace name
+     * @param path
+     *            the folder path
+     * @return <code>true</code> if the backfill was running
+     */
+    @ManagedOperation(description = "Stops the backfill of the specified folder, keeping its checkpoint")
+    public boolean cancel(String workspace, String path) {
+        Backfill backfill = running.get(getKey(StringUtils.defaultIfEmpty(workspace,
+                Constants.EDIT_WORKSPACE), path));
+        if (backfill != null) {
+            backfill.cancelled = true;
+        }
+        return backfill != null;
+    }
+
+    public void destroy() throws Exception {
+        for (Backfill backfill : running.values()) {
+            backfill.cancelled = true;
+        }
+        if (workers != null) {
+            workers.shutdown();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private File getCheckpoint(String workspace, String path) {
+        return new File(directory, Integer.toHexString(getKey(workspace, path).hashCode())
+                + ".properties");
+    }
+
+    /**
+     * Returns the progress of the running backfills, including throughput and the estimated remaining time.
+     * 
+     * @return the progress of the running backfills
+     */
+    @ManagedAttribute
+    public String getStatus() {
+        StringBuilder out = new StringBuilder(256);
+        for (Map.Entry<String, Backfill> backfill : running.entrySet()) {
+            if (out.length() > 0) {
+                out.append("\n");
+            }
+            out.append(backfill.getKey()).append(": ").append(backfill.getValue().getStatus());
+        }
+        return out.length() > 0 ? out.toString() : "No backfill is running";
+    }
+
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        // resume the interrupted backfills as soon as the rule beans are available
+        if (resumeOnStartup && !resumed) {
+            resumed = true;
+            resume();
+        }
+    }
+
+    private void resume() {
+        File[] checkpoints = directory.listFiles();
+        if (checkpoints == null) {
+            return;
+        }
+        for (File checkpoint : checkpoints) {
+            if (!checkpoint.getName().endsWith(".properties")) {
+                continue;
+            }
+            Properties props = new Properties();
+            InputStream in = null;
+            try {
+                in = new FileInputStream(checkpoint);
+                props.load(in);
+                start(props.getProperty("workspace"), props.getProperty("path"),
+                        parseRules(props.getProperty("rules")), props);
+            } catch (Exception e) {
+                logger.warn("Unable to resume document rule backfill from checkpoint "
+                        + checkpoint, e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Sets the number of rule batches, executed concurrently.
+     * 
+     * @param concurrency
+     *            the number of rule batches, executed concurrently
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the directory for the checkpoint files. Defaults to <code>doc-rules-backfill</code> in the Jahia var directory.
+     * 
+     * @param directory
+     *            the directory for the checkpoint files
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public void setFolderRulesCache(FolderRulesCache folderRulesCache) {
+        this.folderRulesCache = folderRulesCache;
+    }
+
+    /**
+     * Sets the number of documents, read with one query. The last document of the page is checkpointed.
+     * 
+     * @param pageSize
+     *            the number of documents, read with one query
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the rate limiter. The backfill waits until the rate limits of a rule allow its execution.
+     * 
+     * @param rateLimiter
+     *            the rate limiter
+     */
+    public void setRateLimiter(DocumentRuleRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    public void setResumeOnStartup(boolean resumeOnStartup) {
+        this.resumeOnStartup = resumeOnStartup;
+    }
+
+    /**
+     * Sets the document rules service, which pre-filter conditions are applied to the documents.
+     * 
+     * @param rulesService
+     *            the document rules service
+     */
+    public void setRulesService(DocumentRulesRuleService rulesService) {
+        this.rulesService = rulesService;
+    }
+
+    /**
+     * Starts the backfill of the document rules, defined on the folders of the specified subtree, for the existing documents.
+     * 
+     * @param workspace
+     *            the workspace name; if empty, the default workspace is used
+     * @param path
+     *            the path of the folder to start from
+     * @param rules
+     *            comma-separated list of the rule bean IDs to apply (e.g. <code>documentRuleCreatePdf</code>); if empty, all
+     *            rules of the folders are applied
+     * @return the status message
+     */
+    @ManagedOperation(description = "Applies document rules to the existing documents of a folder subtree."
+            + " Rules: comma-separated rule bean IDs or empty for all rules.")
+    public String start(String workspace, String path, String rules) {
+        workspace = StringUtils.defaultIfEmpty(workspace, Constants.EDIT_WORKSPACE);
+        Set<String> ruleSet = parseRules(rules);
+        File checkpoint = getCheckpoint(workspace, path);
+        Properties resumeFrom = null;
+        if (checkpoint.exists()) {
+            Properties props = new Properties();
+            InputStream in = null;
+            try {
+                in = new FileInputStream(checkpoint);
+                props.load(in);
+                if (path.equals(props.getProperty("path"))
+                        && ruleSet.equals(parseRules(props.getProperty("rules")))) {
+                    resumeFrom = props;
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to read checkpoint " + checkpoint, e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return start(workspace, path, ruleSet, resumeFrom);
+    }
+
+    private String start(String workspace, String path, Set<String> rules, Properties resumeFrom) {
+        Backfill backfill = new Backfill(workspace, path, rules, resumeFrom);
+        if (running.putIfAbsent(getKey(workspace, path), backfill) != null) {
+            return "Backfill of " + path + " is already running";
+        }
+        Thread thread = new Thread(backfill, "doc-rules-backfill " + path);
+        thread.setDaemon(true);
+        thread.start();
+
+        return "Backfill of " + path + " started"
+                + (backfill.startProcessed > 0 ? " after " + backfill.startProcessed
+                        + " document(s)" : "");
+    }
+
+    private Future<?> submit(final String workspace, final List<String> uuids,
+            final String ruleBeanId) {
+        return workers.submit(new Runnable() {
+            public void run() {
+                try {
+                    DocumentRuleJob.executeRule(workspace, uuids, ruleBeanId, commitInterval);
+                } catch (RepositoryException e) {
+                    logger.error("Error backfilling rule " + ruleBeanId + " on the document node(s) "
+                            + uuids, e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.rules;
+
+import java.util.regex.Pattern;
+
+import org.jahia.modules.docrules.MimeTypeMatcher;
+import org.jahia.services.content.JCRContentUtils;
+
+/**
+ * Declarative pre-filter condition of a document rule, which is evaluated on the event node before the rule is scheduled or
+ * executed. The condition is compiled once into a MIME type matcher and a single regular expression for the file name globs,
+ * so that rejecting a document does not require a background job, a system session or the rule itself. All configured criteria
+ * must match; criteria, which are not set, are not checked.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentRuleCondition {
+
+    private static Pattern compileGlobs(String[] globs) {
+        if (globs == null || globs.length == 0) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.trim().toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    private Pattern excludedNames;
+
+    private long maxSize;
+
+    private volatile MimeTypeMatcher mimeTypeMatcher;
+
+    private String[] mimeTypes;
+
+    private long minSize;
+
+    private Pattern names;
+
+    private MimeTypeMatcher getMimeTypeMatcher() {
+        MimeTypeMatcher matcher = mimeTypeMatcher;
+        if (matcher == null
+                || !matcher.isCompiledFrom(JCRContentUtils.getInstance().getMimeTypes())) {
+            // MIME type group definitions were changed
+            matcher = MimeTypeMatcher.compile(mimeTypes);
+            mimeTypeMatcher = matcher;
+        }
+        return matcher;
+    }
+
+    /**
+     * Checks if the document with the specified properties satisfies this condition.
+     * 
+     * @param name
+     *            the document name
+     * @param mimeType
+     *            the MIME type of the document content
+     * @param size
+     *            the size of the document content in bytes
+     * @return <code>true</code> if the document satisfies this condition
+     */
+    public boolean matches(String name, String mimeType, long size) {
+        if (minSize > 0 && size < minSize || maxSize > 0 && size > maxSize) {
+            return false;
+        }
+        if (names != null && !names.matcher(name).matches() || excludedNames != null
+                && excludedNames.matcher(name).matches()) {
+            return false;
+        }
+        return mimeTypes == null || mimeType != null && getMimeTypeMatcher().matches(mimeType);
+    }
+
+    /**
+     * Sets the file name globs (e.g. <code>*.tmp</code>, <code>~$*</code>), which are not accepted.
+     * 
+     * @param excludedNames
+     *            the file name globs, which are not accepted
+     */
+    public void setExcludedNames(String[] excludedNames) {
+        this.excludedNames = compileGlobs(excludedNames);
+    }
+
+    /**
+     * Sets the maximum size of the document content in bytes.
+     * 
+     * @param maxSize
+     *            the maximum size of the document content in bytes; <code>0</code> means no limit
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the accepted MIME types or MIME type groups (like pdf,word,openoffice, <code>image/*</code>, etc.).
+     * 
+     * @param mimeTypes
+     *            the accepted MIME types or MIME type groups
+     */
+    public void setMimeTypes(String[] mimeTypes) {
+        this.mimeTypes = mimeTypes != null && mimeTypes.length > 0 ? mimeTypes : null;
+        this.mimeTypeMatcher = null;
+    }
+
+    /**
+     * Sets the minimum size of the document content in bytes.
+     * 
+     * @param minSize
+     *            the minimum size of the document content in bytes
+     */
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * Sets the accepted file name globs (e.g. <code>*.doc*</code>), matched case-insensitively.
+     * 
+     * @param names
+     *            the accepted file name globs
+     */
+    public void setNames(String[] names) {
+        this.names = compileGlobs(names);
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.rules;
+
+/**
+ * Token bucket rate limit of a document rule. A separate bucket is kept for each folder, site or for the rule as a whole,
+ * depending on the {@link Scope}; each bucket allows bursts of up to <code>burst</code> executions and is refilled with
+ * <code>rate</code> executions per second. The {@link Policy} defines what happens to an execution, which exceeds the limit.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class DocumentRuleRateLimit {
+
+    /**
+     * Policy, applied to a rule execution, which exceeds the limit.
+     */
+    public enum Policy {
+        /**
+         * The execution is deferred in background until the bucket allows it; executions, which would wait longer than the
+         * maximum delay of the limiter, are dropped.
+         */
+        DEFER,
+        /**
+         * The degraded variant of the rule is executed (see {@link org.jahia.modules.docrules.DegradableDocumentRule}); rules
+         * without a degraded variant are dropped.
+         */
+        DEGRADE,
+        /**
+         * The execution is dropped and written to the audit log.
+         */
+        DROP;
+    }
+
+    /**
+     * Scope of a token bucket.
+     */
+    public enum Scope {
+        /**
+         * A bucket per parent folder of the documents.
+         */
+        FOLDER,
+        /**
+         * A bucket for all documents of the rule.
+         */
+        RULE,
+        /**
+         * A bucket per site of the documents.
+         */
+        SITE;
+    }
+
+    private int burst = 100;
+
+    private Policy policy = Policy.DEFER;
+
+    private double rate = 10;
+
+    private Scope scope = Scope.FOLDER;
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    /**
+     * Sets the maximum number of executions, which are allowed at once after a period of inactivity.
+     * 
+     * @param burst
+     *            the maximum number of executions, which are allowed at once
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Sets the sustained number of executions per second.
+     * 
+     * @param rate
+     *            the sustained number of executions per second
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void setScope(Scope scope) {
+        this.scope = scope;
+    }
+
+    @Override
+    public String toString() {
+        return scope + " " + rate + "/s (burst " + burst + ", " + policy + ")";
+    }
+}
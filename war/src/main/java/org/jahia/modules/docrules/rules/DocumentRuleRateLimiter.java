@@ -0,0 +1,503 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.modules.docrules.rules.DocumentRuleRateLimit.Policy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Rate limiter of the document rule executions with token buckets per folder, site and rule (see {@link DocumentRuleRateLimit}),
+ * so that an upload storm into a single folder or site cannot saturate the document converter or the mail relay for the other
+ * sites. An execution has to pass all limits of its rule; if one of them is exceeded, the policy of that limit decides whether
+ * the execution is deferred, dropped or degraded. The tokens of a deferred execution are reserved, so the deferred executions
+ * are spread according to the rate. If the token of a deferred execution cannot be reserved within the maximum delay, it waits
+ * for the maximum delay and the limits are checked again. The number of waiting deferred executions is bounded: beyond the
+ * maximum the executions are shed. In a cluster, the limits apply per member.
+ * <p>
+ * Idle buckets (completely refilled) are evicted, when the number of buckets exceeds the configured maximum.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=DocumentRuleRateLimiter",
+        description = "Rate limiter of the document rule executions")
+public class DocumentRuleRateLimiter implements InitializingBean, DisposableBean {
+
+    private static class Bucket {
+
+        private final String key;
+
+        private long last;
+
+        private final DocumentRuleRateLimit limit;
+
+        private double measuredRate;
+
+        private final double ratePerMilli;
+
+        private long shed;
+
+        private double tokens;
+
+        private int windowCount;
+
+        private long windowStart;
+
+        Bucket(String key, DocumentRuleRateLimit limit, long now) {
+            super();
+            this.key = key;
+            this.limit = limit;
+            this.ratePerMilli = limit.getRate() / 1000;
+            this.tokens = limit.getBurst();
+            this.last = now;
+            this.windowStart = now;
+        }
+
+        /**
+         * Takes a token. Returns <code>0</code> if a token was available, the time in milliseconds until the reserved token
+         * becomes available or <code>-1</code> if no token is available within the specified maximum wait time. Only a token,
+         * which is not available without waiting (maximum wait time <code>0</code>), counts as shed.
+         */
+        synchronized long acquire(long now, long maxWait) {
+            refill(now);
+            if (now - windowStart >= 1000) {
+                measuredRate = windowCount * 1000.0 / (now - windowStart);
+                windowStart = now;
+                windowCount = 0;
+            }
+            windowCount++;
+
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            if (maxWait > 0 && ratePerMilli > 0) {
+                long wait = (long) Math.ceil((1 - tokens) / ratePerMilli);
+                if (wait <= maxWait) {
+                    tokens--;
+                    return wait;
+                }
+            }
+            if (maxWait <= 0) {
+                shed++;
+            }
+            return -1;
+        }
+
+        synchronized double getRate(long now) {
+            long elapsed = now - windowStart;
+            if (elapsed >= 2000) {
+                return 0;
+            }
+            // the rate of the previous window or of the current one, if it is already complete or the first one
+            return elapsed >= 1000 ? windowCount * 1000.0 / elapsed : (measuredRate > 0
+                    ? measuredRate : windowCount);
+        }
+
+        synchronized boolean isIdle(long now) {
+            refill(now);
+            return tokens >= limit.getBurst();
+        }
+
+        private void refill(long now) {
+            if (now > last) {
+                tokens = Math.min(limit.getBurst(), tokens + (now - last) * ratePerMilli);
+                last = now;
+            }
+        }
+
+        synchronized void release() {
+            tokens = Math.min(limit.getBurst(), tokens + 1);
+        }
+
+        synchronized String toString(long now) {
+            refill(now);
+            return key + ": " + Math.round(getRate(now) * 10) / 10.0 + "/s, "
+                    + Math.round(tokens * 10) / 10.0 + " token(s), " + shed + " shed";
+        }
+    }
+
+    /**
+     * Result of a rate limit check.
+     */
+    public static final class Decision {
+
+        /**
+         * The execution is allowed.
+         */
+        public static final Decision ALLOWED = new Decision(null, null, 0, true);
+
+        private final String bucket;
+
+        private final long delay;
+
+        private final Policy policy;
+
+        private final boolean reserved;
+
+        Decision(Policy policy, String bucket, long delay, boolean reserved) {
+            super();
+            this.policy = policy;
+            this.bucket = bucket;
+            this.delay = delay;
+            this.reserved = reserved;
+        }
+
+        /**
+         * Returns the key of the bucket, which limit was exceeded.
+         * 
+         * @return the key of the bucket, which limit was exceeded
+         */
+        public String getBucket() {
+            return bucket;
+        }
+
+        /**
+         * Returns the delay in milliseconds for a deferred execution.
+         * 
+         * @return the delay in milliseconds for a deferred execution
+         */
+        public long getDelay() {
+            return delay;
+        }
+
+        /**
+         * Returns the policy to apply or <code>null</code> if the execution is allowed.
+         * 
+         * @return the policy to apply or <code>null</code> if the execution is allowed
+         */
+        public Policy getPolicy() {
+            return policy;
+        }
+
+        public boolean isAllowed() {
+            return policy == null;
+        }
+
+        /**
+         * Returns <code>true</code> if the tokens of a deferred execution are reserved, so that it can run after the delay;
+         * <code>false</code> if the limits have to be checked again after the delay.
+         * 
+         * @return <code>true</code> if the tokens of a deferred execution are reserved, so that it can run after the delay
+         */
+        public boolean isReserved() {
+            return reserved;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRuleRateLimiter.class);
+
+    private static String getSiteKey(String folderPath) {
+        return folderPath.startsWith("/sites/") ? StringUtils.substringBefore(
+                folderPath.substring("/sites/".length()), "/") : "/";
+    }
+
+    private final AtomicLong allowed = new AtomicLong();
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    private final AtomicLong deferred = new AtomicLong();
+
+    private Map<String, List<DocumentRuleRateLimit>> limits = Collections.emptyMap();
+
+    private int maxBuckets = 10000;
+
+    private int maxDeferred = 10000;
+
+    private long maxDelay = 3600000;
+
+    private ScheduledThreadPoolExecutor scheduler;
+
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Checks the rate limits of the rule for a document in the specified folder and takes a token from each of the buckets. If a
+     * limit is exceeded, the tokens, already taken for this execution, are returned, unless the execution is deferred with
+     * reserved tokens. A deferred execution, which cannot get its tokens within the maximum delay, is deferred by the maximum
+     * delay without reserved tokens (see {@link Decision#isReserved()}).
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @param folderPath
+     *            the path of the parent folder of the document
+     * @return the decision, whether the execution is allowed, deferred, dropped or degraded
+     */
+    public Decision acquire(String ruleBeanId, String folderPath) {
+        List<DocumentRuleRateLimit> ruleLimits = limits.get(ruleBeanId);
+        if (ruleLimits == null) {
+            return Decision.ALLOWED;
+        }
+
+        long now = System.currentTimeMillis();
+        long delay = 0;
+        String deferredBucket = null;
+        for (int i = 0; i < ruleLimits.size(); i++) {
+            DocumentRuleRateLimit limit = ruleLimits.get(i);
+            Bucket bucket = getBucket(ruleBeanId, limit, folderPath, now);
+            long wait = bucket.acquire(now, limit.getPolicy() == Policy.DEFER ? maxDelay : 0);
+            if (wait < 0) {
+                for (int j = 0; j < i; j++) {
+                    getBucket(ruleBeanId, ruleLimits.get(j), folderPath, now).release();
+                }
+                if (limit.getPolicy() == Policy.DEFER) {
+                    deferred.incrementAndGet();
+                    return new Decision(Policy.DEFER, bucket.key, maxDelay, false);
+                }
+                shed.incrementAndGet();
+                return new Decision(limit.getPolicy(), bucket.key, 0, false);
+            }
+            if (wait > delay) {
+                delay = wait;
+                deferredBucket = bucket.key;
+            }
+        }
+
+        if (delay > 0) {
+            deferred.incrementAndGet();
+            return new Decision(Policy.DEFER, deferredBucket, delay, true);
+        }
+        allowed.incrementAndGet();
+        return Decision.ALLOWED;
+    }
+
+    public void afterPropertiesSet() throws Exception {
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "doc-rules-rate-limiter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            // deferred executions of background rules are kept in the journal
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void evictIdle(long now) {
+        synchronized (buckets) {
+            if (buckets.size() < maxBuckets) {
+                return;
+            }
+            int evicted = 0;
+            for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+                if (it.next().isIdle(now)) {
+                    it.remove();
+                    evicted++;
+                }
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Evicted {} idle rate limit buckets, {} buckets remaining", evicted,
+                        buckets.size());
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Number of executions within the limits")
+    public long getAllowed() {
+        return allowed.get();
+    }
+
+    private Bucket getBucket(String ruleBeanId, DocumentRuleRateLimit limit, String folderPath,
+            long now) {
+        String key;
+        switch (limit.getScope()) {
+            case FOLDER:
+                key = ruleBeanId + " folder " + folderPath;
+                break;
+            case SITE:
+                key = ruleBeanId + " site " + getSiteKey(folderPath);
+                break;
+            default:
+                key = ruleBeanId;
+        }
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxBuckets) {
+                evictIdle(now);
+            }
+            bucket = new Bucket(key, limit, now);
+            Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        return bucket;
+    }
+
+    @ManagedAttribute(description = "Number of token buckets")
+    public int getBucketCount() {
+        return buckets.size();
+    }
+
+    @ManagedAttribute(description = "Current rates and shed counts of the 20 busiest token buckets")
+    public String getBuckets() {
+        final long now = System.currentTimeMillis();
+        List<Bucket> busiest = new ArrayList<Bucket>(buckets.values());
+        Collections.sort(busiest, new Comparator<Bucket>() {
+            public int compare(Bucket b1, Bucket b2) {
+                return Double.compare(b2.getRate(now), b1.getRate(now));
+            }
+        });
+        StringBuilder out = new StringBuilder(1024);
+        for (Bucket bucket : busiest.subList(0, Math.min(20, busiest.size()))) {
+            if (out.length() > 0) {
+                out.append("\n");
+            }
+            out.append(bucket.toString(now));
+        }
+        return out.toString();
+    }
+
+    @ManagedAttribute(description = "Number of deferred executions")
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    @ManagedAttribute(description = "Number of deferred executions, waiting for their turn (the deferred backlog)")
+    public int getDeferredPending() {
+        return scheduler != null ? scheduler.getQueue().size() : 0;
+    }
+
+    @ManagedAttribute(description = "Maximum number of deferred executions, waiting for their turn")
+    public int getMaxDeferred() {
+        return maxDeferred;
+    }
+
+    @ManagedAttribute(description = "Number of executions over the limits or the deferred backlog, which were dropped or degraded")
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * Checks if rate limits are defined for the specified rule.
+     * 
+     * @param ruleBeanId
+     *            the rule bean ID
+     * @return <code>true</code> if rate limits are defined for the specified rule
+     */
+    public boolean isLimited(String ruleBeanId) {
+        return limits.containsKey(ruleBeanId);
+    }
+
+    /**
+     * Runs the deferred execution after the specified delay, unless the backlog of deferred executions is full. A shed execution
+     * is counted and has to be dropped by the caller.
+     * 
+     * @param task
+     *            the deferred execution
+     * @param delay
+     *            the delay in milliseconds
+     * @return <code>true</code> if the execution is scheduled; <code>false</code> if it is shed as the backlog is full
+     */
+    public boolean schedule(Runnable task, long delay) {
+        if (maxDeferred > 0 && scheduler.getQueue().size() >= maxDeferred) {
+            shed.incrementAndGet();
+            return false;
+        }
+        scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Sets the rate limits per rule bean ID. Rules without limits are not limited.
+     * 
+     * @param limits
+     *            the rate limits per rule bean ID
+     */
+    public void setLimits(Map<String, List<DocumentRuleRateLimit>> limits) {
+        this.limits = limits != null ? limits : Collections
+                .<String, List<DocumentRuleRateLimit>> emptyMap();
+    }
+
+    /**
+     * Sets the number of token buckets, from which on the idle buckets are evicted.
+     * 
+     * @param maxBuckets
+     *            the number of token buckets, from which on the idle buckets are evicted
+     */
+    public void setMaxBuckets(int maxBuckets) {
+        this.maxBuckets = maxBuckets;
+    }
+
+    /**
+     * Sets the maximum number of deferred executions, waiting for their turn. Further deferred executions are shed. A value of
+     * <code>0</code> or less disables the bound.
+     * 
+     * @param maxDeferred
+     *            the maximum number of deferred executions, waiting for their turn
+     */
+    public void setMaxDeferred(int maxDeferred) {
+        this.maxDeferred = maxDeferred;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a token is reserved in advance for a deferred execution. Executions, which would
+     * have to wait longer, wait for this time without a reserved token and their limits are checked again.
+     * 
+     * @param maxDelay
+     *            the maximum time in milliseconds a token is reserved in advance for a deferred execution
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+}
@@ -40,21 +40,37 @@
 
 package org.jahia.modules.docrules.rules;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jcr.RepositoryException;
 
-import org.apache.commons.lang.StringUtils;
 import org.drools.spi.KnowledgeHelper;
+import org.jahia.exceptions.JahiaException;
+import org.jahia.modules.docrules.CachingDocumentRule;
+import org.jahia.modules.docrules.DegradableDocumentRule;
+import org.jahia.modules.docrules.DocumentRule;
+import org.jahia.modules.docrules.DocumentRuleFingerprints;
 import org.jahia.modules.docrules.DocumentRuleJob;
+import org.jahia.modules.docrules.DocumentRuleRegistry;
+import org.jahia.modules.docrules.cluster.DocumentRulePartitioner;
+import org.jahia.modules.docrules.execution.DocumentRuleCoalescer;
+import org.jahia.modules.docrules.execution.DocumentRuleExecutor;
+import org.jahia.modules.docrules.execution.PendingRuleJournal;
+import org.jahia.modules.docrules.stats.DocumentRuleStatistics;
+import org.jahia.services.content.JCRFileContent;
 import org.jahia.services.content.JCRNodeWrapper;
-import org.jahia.services.content.nodetypes.ExtendedNodeType;
 import org.jahia.services.content.rules.AddedNodeFact;
-import org.jahia.services.scheduler.BackgroundJob;
+import org.jahia.services.content.rules.DeletedNodeFact;
 import org.jahia.services.scheduler.SchedulerService;
-import org.quartz.JobDataMap;
-import org.quartz.JobDetail;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,12 +81,123 @@ import org.slf4j.LoggerFactory;
  */
 public class DocumentRulesRuleService {
 
+    private static final Logger audit = LoggerFactory.getLogger("org.jahia.modules.docrules.audit");
+
     private static Logger logger = LoggerFactory.getLogger(DocumentRulesRuleService.class);
 
+    private DocumentRuleCoalescer coalescer;
+
+    private Map<String, DocumentRuleCondition> conditions = Collections.emptyMap();
+
+    private DocumentCostEstimator costEstimator;
+
+    private DocumentRuleExecutor executor;
+
+    private FolderRulesCache folderRulesCache;
+
+    private PendingRuleJournal journal;
+
+    private Set<String> parallelRules = Collections.emptySet();
+
+    private long parallelTimeout = 60000;
+
+    private DocumentRulePartitioner partitioner;
+
+    private DocumentRuleRateLimiter rateLimiter;
+
     private SchedulerService schedulerService;
 
+    private void awaitParallel(Map<String, Future<?>> parallel, String path) {
+        long deadline = System.currentTimeMillis() + parallelTimeout;
+        for (Map.Entry<String, Future<?>> rule : parallel.entrySet()) {
+            try {
+                rule.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0),
+                        TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("Document rule '{}' did not complete on node {} within {} ms."
+                        + " Leaving it running in background.", new Object[] { rule.getKey(),
+                        path, parallelTimeout });
+            } catch (ExecutionException e) {
+                logger.warn("Error executing document rule '" + rule.getKey() + "' on node "
+                        + path, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for document rules on node {}", path);
+                return;
+            }
+        }
+    }
+
+    private void defer(JCRNodeWrapper doc, JCRNodeWrapper folder, String ruleBeanId,
+            DocumentRuleRateLimiter.Decision decision) throws RepositoryException {
+        String workspace = doc.getSession().getWorkspace().getName();
+        long cost = costEstimator != null ? costEstimator.estimate(doc, ruleBeanId) : 0;
+        long generation = journal != null ? journal.append(workspace, doc.getIdentifier(),
+                ruleBeanId) : 0;
+        defer(workspace, doc.getIdentifier(), ruleBeanId, doc.getName(), cost, folder.getPath(),
+                decision, generation);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Document rule '{}' on node {} is rate limited. Deferred by {} ms",
+                    new Object[] { ruleBeanId, doc.getPath(), decision.getDelay() });
+        }
+    }
+
     /**
-     * Executes the document rules, defined on the parent folder, on the provided node.
+     * Submits the deferred execution after the delay of the decision. If no tokens are reserved for it, the limits are checked
+     * again and the execution is deferred once more, if they are still exceeded. The execution stays in the journal meanwhile; if
+     * it is dropped, its journal entry is completed only if it was not appended again after the provided generation. Once the
+     * backlog of deferred executions is full (see {@link DocumentRuleRateLimiter#setMaxDeferred(int)}), the execution is dropped.
+     */
+    private void defer(final String workspace, final String uuid, final String ruleBeanId,
+            final String name, final long cost, final String folderPath,
+            final DocumentRuleRateLimiter.Decision decision, final long generation) {
+        boolean scheduled = rateLimiter.schedule(new Runnable() {
+            public void run() {
+                try {
+                    DocumentRuleRateLimiter.Decision next = decision.isReserved() ? decision
+                            : rateLimiter.acquire(ruleBeanId, folderPath);
+                    if (next.isAllowed() || next.isReserved()) {
+                        submit(workspace, uuid, ruleBeanId, name, cost);
+                    } else if (next.getPolicy() == DocumentRuleRateLimit.Policy.DEFER) {
+                        defer(workspace, uuid, ruleBeanId, name, cost, folderPath, next,
+                                generation);
+                    } else {
+                        // another limit of the rule drops or degrades the execution, which is not possible without the node
+                        dropDeferred(workspace, uuid, ruleBeanId, folderPath, generation,
+                                "rate limit of [" + next.getBucket() + "] exceeded");
+                    }
+                } catch (Exception e) {
+                    logger.warn("Error scheduling deferred document rule '" + ruleBeanId
+                            + "' on node " + uuid, e);
+                }
+            }
+        }, decision.getDelay());
+        if (!scheduled) {
+            dropDeferred(workspace, uuid, ruleBeanId, folderPath, generation,
+                    "backlog of deferred executions is full");
+        }
+    }
+
+    private void dropDeferred(String workspace, String uuid, String ruleBeanId,
+            String folderPath, long generation, String reason) {
+        DocumentRuleStatistics.getInstance().recordDropped(ruleBeanId);
+        audit.info("Dropped deferred document rule '{}' on node {} in folder {}: {}",
+                new Object[] { ruleBeanId, uuid, folderPath, reason });
+        if (journal != null) {
+            journal.complete(workspace, uuid, ruleBeanId, generation);
+        }
+    }
+
+    /**
+     * Executes the document rules, defined on the parent folder, on the provided node. Background rules are handed over to the
+     * executor with their expected cost (see {@link DocumentCostEstimator}). Synchronous rules, configured as independent (see
+     * {@link #setParallelRules(Set)}), are started concurrently, each in its own session, while the remaining synchronous rules
+     * are executed in order on the caller's session. The method returns after all synchronous rules are completed. Rules, which
+     * pre-filter condition (see {@link #setConditions(Map)}) does not match the document, are skipped before anything is
+     * scheduled. In a cluster, a background rule, owned by another member, is handed over to its owner (see
+     * {@link DocumentRulePartitioner}) and executed locally, if the hand-over fails. Rules, exceeding their rate limits (see {@link DocumentRuleRateLimiter}), are deferred,
+     * dropped or degraded.
      * 
      * @param nodeFact
      *            the node to execute rules on
@@ -83,41 +210,66 @@ public class DocumentRulesRuleService {
             throws RepositoryException {
         JCRNodeWrapper doc = nodeFact.getNode();
         JCRNodeWrapper folder = doc.getParent();
-        Set<String> mixins = new HashSet<String>();
-        if (folder.isNodeType("jmix:applyDocumentRules")) {
-            ExtendedNodeType[] mixinNodeTypes = folder.getMixinNodeTypes();
-            for (ExtendedNodeType mixin : mixinNodeTypes) {
-                if (mixin.isNodeType("jmix:applyDocumentRules")
-                        && !mixin.getName().equals("jmix:applyDocumentRules")) {
-                    mixins.add(StringUtils.substringAfter(mixin.getName(), ":"));
-                }
-            }
-        }
+        FolderRules rules = folderRulesCache.get(folder);
 
         String path = doc.getPath();
-        if (mixins.isEmpty()) {
+        if (rules.isEmpty()) {
             logger.info("No document rules are defined on the parent folder {}."
                     + " Skip executing rules on node {}", folder.getPath(), path);
             return;
         }
 
-        for (String ruleBeanId : mixins) {
+        List<FolderRules.Rule> accepted = filter(doc, rules.getRules());
+        if (accepted.isEmpty()) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Node {} does not match conditions of the document rules {}."
+                        + " Skip executing rules on it.", path, rules.getRules());
+            }
+            return;
+        }
+        if (partitioner != null) {
+            accepted = partition(doc, accepted);
+        }
+        if (rateLimiter != null) {
+            accepted = throttle(doc, folder, accepted);
+        }
+
+        Map<String, Future<?>> parallel = null;
+        for (FolderRules.Rule rule : accepted) {
+            String ruleBeanId = rule.getBeanId();
+            if (rule.isBackgroundJob() || executor == null
+                    || !parallelRules.contains(ruleBeanId)) {
+                continue;
+            }
+            try {
+                Future<?> future = executor.executeParallel(doc.getSession().getWorkspace()
+                        .getName(), doc.getIdentifier(), ruleBeanId);
+                if (parallel == null) {
+                    parallel = new LinkedHashMap<String, Future<?>>();
+                }
+                parallel.put(ruleBeanId, future);
+            } catch (Exception e) {
+                logger.warn("Error starting document rule '" + ruleBeanId + "' on node " + path, e);
+            }
+        }
+
+        for (FolderRules.Rule rule : accepted) {
+            String ruleBeanId = rule.getBeanId();
+            if (parallel != null && parallel.containsKey(ruleBeanId)) {
+                continue;
+            }
             try {
                 long timer = System.currentTimeMillis();
 
-                String backgroundJobProperty = "j:" + ruleBeanId + "AsBackgroundJob";
-                if (folder.hasProperty(backgroundJobProperty)
-                        && folder.getProperty(backgroundJobProperty).getBoolean()) {
+                if (rule.isBackgroundJob()) {
                     // execute as a background job
-                    JobDetail jobDetail = BackgroundJob.createJahiaJob("Document rule "
-                            + ruleBeanId + " for " + doc.getName(), DocumentRuleJob.class);
-                    JobDataMap jobDataMap = jobDetail.getJobDataMap();
-                    jobDataMap.put(DocumentRuleJob.JOB_RULE_BEAN_ID, ruleBeanId);
-                    jobDataMap.put(DocumentRuleJob.JOB_UUID, doc.getIdentifier());
-                    jobDataMap.put(DocumentRuleJob.JOB_WORKSPACE, doc.getSession().getWorkspace()
-                            .getName());
-
-                    schedulerService.scheduleJobNow(jobDetail);
+                    String workspace = doc.getSession().getWorkspace().getName();
+                    long cost = costEstimator != null ? costEstimator.estimate(doc, ruleBeanId)
+                            : 0;
+                    if (journal != null) {
+                        journal.append(workspace, doc.getIdentifier(), ruleBeanId);
+                    }
+                    submit(workspace, doc.getIdentifier(), ruleBeanId, doc.getName(), cost);
 
                     if (logger.isDebugEnabled()) {
                         logger.debug(
@@ -139,10 +291,277 @@ public class DocumentRulesRuleService {
                 logger.warn("Error executing document rule '" + ruleBeanId + "' on node " + path, e);
             }
         }
+
+        if (parallel != null) {
+            awaitParallel(parallel, path);
+        }
+    }
+
+    /**
+     * Returns the rules, which pre-filter condition matches the document. The document content properties are read only if a
+     * condition is defined for one of the rules. Is also used by the {@link DocumentRuleBackfill}.
+     */
+    List<FolderRules.Rule> filter(JCRNodeWrapper doc, List<FolderRules.Rule> rules) {
+        if (conditions.isEmpty()) {
+            return rules;
+        }
+        List<FolderRules.Rule> accepted = null;
+        JCRFileContent content = null;
+        for (int i = 0; i < rules.size(); i++) {
+            FolderRules.Rule rule = rules.get(i);
+            DocumentRuleCondition condition = conditions.get(rule.getBeanId());
+            boolean matches = true;
+            if (condition != null) {
+                if (content == null) {
+                    content = doc.getFileContent();
+                }
+                matches = condition.matches(doc.getName(), content.getContentType(),
+                        content.getContentLength());
+            }
+            if (!matches) {
+                DocumentRuleStatistics.getInstance().recordFiltered(rule.getBeanId());
+                if (accepted == null) {
+                    accepted = new ArrayList<FolderRules.Rule>(rules.subList(0, i));
+                }
+            } else if (accepted != null) {
+                accepted.add(rule);
+            }
+        }
+
+        return accepted != null ? accepted : rules;
+    }
+
+    /**
+     * Flushes the cached document rules and the cached rule settings of the specified folder node. Is called when the mixins or
+     * the document rule properties of the folder are changed.
+     * 
+     * @param folderFact
+     *            the folder node, which settings were changed
+     * @param drools
+     *            the rule engine helper class
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void invalidateRules(AddedNodeFact folderFact, KnowledgeHelper drools)
+            throws RepositoryException {
+        JCRNodeWrapper folder = folderFact.getNode();
+        String workspace = folder.getSession().getWorkspace().getName();
+        folderRulesCache.invalidate(workspace, folder.getIdentifier());
+
+        DocumentRuleRegistry registry = DocumentRuleRegistry.getInstance();
+        if (registry != null) {
+            for (DocumentRule rule : registry.getRules().values()) {
+                if (rule instanceof CachingDocumentRule) {
+                    ((CachingDocumentRule) rule).invalidate(workspace, folder.getIdentifier());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the background rules, which were handed over to another cluster member.
+     */
+    private List<FolderRules.Rule> partition(JCRNodeWrapper doc, List<FolderRules.Rule> rules)
+            throws RepositoryException {
+        String workspace = doc.getSession().getWorkspace().getName();
+        List<FolderRules.Rule> owned = null;
+        for (int i = 0; i < rules.size(); i++) {
+            FolderRules.Rule rule = rules.get(i);
+            if (rule.isBackgroundJob()
+                    && partitioner.handOver(workspace, doc.getIdentifier(), rule.getBeanId())) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Document rule '{}' on node {} is handed over to the cluster member {}",
+                            new Object[] { rule.getBeanId(), doc.getPath(),
+                                    partitioner.getOwner(doc.getIdentifier(), rule.getBeanId()) });
+                }
+                if (owned == null) {
+                    owned = new ArrayList<FolderRules.Rule>(rules.subList(0, i));
+                }
+            } else if (owned != null) {
+                owned.add(rule);
+            }
+        }
+
+        return owned != null ? owned : rules;
+    }
+
+    /**
+     * Removes the processing fingerprints of the deleted document (see {@link DocumentRuleFingerprints}).
+     * 
+     * @param nodeFact
+     *            the deleted document node
+     * @param drools
+     *            the rule engine helper class
+     * @throws RepositoryException
+     *             in case of an error
+     */
+    public void removeFingerprints(DeletedNodeFact nodeFact, KnowledgeHelper drools)
+            throws RepositoryException {
+        DocumentRuleFingerprints.getInstance().remove(nodeFact.getWorkspace(),
+                nodeFact.getIdentifier());
+    }
+
+    public void setCoalescer(DocumentRuleCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Sets the pre-filter conditions per rule bean ID. A rule is executed on a document only if its condition matches. Rules
+     * without a condition are always executed (and may still reject the document in {@link DocumentRule#isApplicable}).
+     * 
+     * @param conditions
+     *            the pre-filter conditions per rule bean ID
+     */
+    public void setConditions(Map<String, DocumentRuleCondition> conditions) {
+        this.conditions = conditions != null ? conditions : Collections
+                .<String, DocumentRuleCondition> emptyMap();
+    }
+
+    /**
+     * Sets the estimator of the expected cost of background rules, used by the executor to separate heavy from light work.
+     * 
+     * @param costEstimator
+     *            the estimator of the expected cost of background rules
+     */
+    public void setCostEstimator(DocumentCostEstimator costEstimator) {
+        this.costEstimator = costEstimator;
+    }
+
+    public void setExecutor(DocumentRuleExecutor executor) {
+        this.executor = executor;
+    }
+
+    public void setFolderRulesCache(FolderRulesCache folderRulesCache) {
+        this.folderRulesCache = folderRulesCache;
+    }
+
+    /**
+     * Sets the journal, which keeps the background rule executions until they are completed, so that they are not lost on
+     * restart.
+     * 
+     * @param journal
+     *            the journal of the pending background rule executions
+     */
+    public void setJournal(PendingRuleJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the bean IDs of the synchronous rules, which do not depend on the caller's session and on other rules (e.g. e-mail
+     * notification or PDF conversion), and can be executed concurrently. Requires an executor to be set. Empty by default.
+     * <p>
+     * A concurrent rule runs in its own system session: it does not see the unsaved changes of the caller and of the preceding
+     * rules, its changes are saved independently of the caller's session and it continues in background, if it does not
+     * complete within the parallel timeout. Only rules, which can live with that, should be listed here.
+     * 
+     * @param parallelRules
+     *            the bean IDs of the independent synchronous rules
+     */
+    public void setParallelRules(Set<String> parallelRules) {
+        this.parallelRules = parallelRules != null ? parallelRules : Collections
+                .<String> emptySet();
+    }
+
+    /**
+     * Sets the maximum time in milliseconds to wait for the completion of the concurrently executed rules. The rules, which are
+     * not completed in time, continue in background.
+     * 
+     * @param parallelTimeout
+     *            the maximum time in milliseconds to wait for the completion of the concurrently executed rules
+     */
+    public void setParallelTimeout(long parallelTimeout) {
+        this.parallelTimeout = parallelTimeout;
+    }
+
+    /**
+     * Sets the partitioner of the background rule executions between the cluster members. If not set (the default), all background
+     * rules are scheduled locally.
+     * 
+     * @param partitioner
+     *            the partitioner of the background rule executions between the cluster members
+     */
+    public void setPartitioner(DocumentRulePartitioner partitioner) {
+        this.partitioner = partitioner;
+    }
+
+    /**
+     * Sets the rate limiter of the rule executions. If not set, the rules are not rate limited.
+     * 
+     * @param rateLimiter
+     *            the rate limiter of the rule executions
+     */
+    public void setRateLimiter(DocumentRuleRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
     }
 
     public void setSchedulerService(SchedulerService schedulerService) {
         this.schedulerService = schedulerService;
     }
 
+    private void shed(JCRNodeWrapper doc, JCRNodeWrapper folder, String ruleBeanId,
+            DocumentRuleRateLimiter.Decision decision) throws RepositoryException {
+        DocumentRuleStatistics stats = DocumentRuleStatistics.getInstance();
+        if (decision.getPolicy() == DocumentRuleRateLimit.Policy.DEFER) {
+            stats.recordDeferred(ruleBeanId);
+            defer(doc, folder, ruleBeanId, decision);
+            return;
+        }
+
+        if (decision.getPolicy() == DocumentRuleRateLimit.Policy.DEGRADE) {
+            DocumentRuleRegistry registry = DocumentRuleRegistry.getInstance();
+            DocumentRule rule = registry != null ? registry.getRule(ruleBeanId) : null;
+            if (rule instanceof DegradableDocumentRule) {
+                stats.recordDegraded(ruleBeanId);
+                try {
+                    if (rule.isApplicable(doc)) {
+                        ((DegradableDocumentRule) rule).executeDegraded(doc);
+                    }
+                } catch (Exception e) {
+                    logger.warn("Error executing degraded document rule '" + ruleBeanId
+                            + "' on node " + doc.getPath(), e);
+                }
+                return;
+            }
+        }
+
+        stats.recordDropped(ruleBeanId);
+        audit.info("Dropped document rule '{}' on node {} in folder {}: rate limit of [{}] exceeded",
+                new Object[] { ruleBeanId, doc.getPath(), folder.getPath(), decision.getBucket() });
+    }
+
+    private void submit(String workspace, String uuid, String ruleBeanId, String name, long cost)
+            throws JahiaException {
+        if (coalescer != null) {
+            coalescer.submit(workspace, uuid, ruleBeanId, name, cost);
+        } else if (executor != null) {
+            executor.execute(workspace, uuid, ruleBeanId, name, cost);
+        } else {
+            schedulerService.scheduleJobNow(DocumentRuleJob.createJob(workspace, uuid,
+                    ruleBeanId, name));
+        }
+    }
+
+    /**
+     * Returns the rules, which are within their rate limits. The rules over the limits are deferred, dropped or degraded.
+     */
+    private List<FolderRules.Rule> throttle(JCRNodeWrapper doc, JCRNodeWrapper folder,
+            List<FolderRules.Rule> rules) throws RepositoryException {
+        List<FolderRules.Rule> allowed = null;
+        for (int i = 0; i < rules.size(); i++) {
+            FolderRules.Rule rule = rules.get(i);
+            DocumentRuleRateLimiter.Decision decision = rateLimiter.acquire(rule.getBeanId(),
+                    folder.getPath());
+            if (!decision.isAllowed()) {
+                shed(doc, folder, rule.getBeanId(), decision);
+                if (allowed == null) {
+                    allowed = new ArrayList<FolderRules.Rule>(rules.subList(0, i));
+                }
+            } else if (allowed != null) {
+                allowed.add(rule);
+            }
+        }
+
+        return allowed != null ? allowed : rules;
+    }
+
 }
\ No newline at end of file
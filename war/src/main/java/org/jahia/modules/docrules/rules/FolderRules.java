@@ -0,0 +1,173 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.rules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang.StringUtils;
+import org.jahia.modules.docrules.DocumentRuleRegistry;
+import org.jahia.services.content.JCRNodeWrapper;
+import org.jahia.services.content.nodetypes.ExtendedNodeType;
+
+/**
+ * Immutable set of document rules, defined on a folder, together with their execution mode.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class FolderRules {
+
+    /**
+     * Single document rule, defined on a folder.
+     */
+    public static class Rule {
+
+        private final boolean backgroundJob;
+
+        private final String beanId;
+
+        Rule(String beanId, boolean backgroundJob) {
+            super();
+            this.beanId = beanId;
+            this.backgroundJob = backgroundJob;
+        }
+
+        /**
+         * Returns the ID of the rule bean.
+         * 
+         * @return the ID of the rule bean
+         */
+        public String getBeanId() {
+            return beanId;
+        }
+
+        /**
+         * Returns <code>true</code> if the rule should be executed as a background job.
+         * 
+         * @return <code>true</code> if the rule should be executed as a background job
+         */
+        public boolean isBackgroundJob() {
+            return backgroundJob;
+        }
+
+        @Override
+        public String toString() {
+            return beanId + (backgroundJob ? " (background)" : "");
+        }
+    }
+
+    static final String APPLY_DOCUMENT_RULES = "jmix:applyDocumentRules";
+
+    /**
+     * Resolves the document rules, defined on the specified folder node. Rule mixins without a registered rule are skipped.
+     * 
+     * @param folder
+     *            the folder node to resolve rules for
+     * @return the document rules, defined on the specified folder node
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public static FolderRules resolve(JCRNodeWrapper folder) throws RepositoryException {
+        if (!folder.isNodeType(APPLY_DOCUMENT_RULES)) {
+            return new FolderRules(Collections.<Rule> emptyList());
+        }
+        DocumentRuleRegistry registry = DocumentRuleRegistry.getInstance();
+        List<Rule> rules = new ArrayList<Rule>();
+        for (ExtendedNodeType mixin : folder.getMixinNodeTypes()) {
+            if (mixin.isNodeType(APPLY_DOCUMENT_RULES)
+                    && !mixin.getName().equals(APPLY_DOCUMENT_RULES)) {
+                if (registry != null && registry.getRuleForMixin(mixin.getName()) == null) {
+                    continue;
+                }
+                String ruleBeanId = StringUtils.substringAfter(mixin.getName(), ":");
+                String backgroundJobProperty = "j:" + ruleBeanId + "AsBackgroundJob";
+                boolean background = folder.hasProperty(backgroundJobProperty)
+                        && folder.getProperty(backgroundJobProperty).getBoolean();
+                rules.add(new Rule(ruleBeanId, background));
+            }
+        }
+
+        return new FolderRules(rules);
+    }
+
+    private final long created = System.currentTimeMillis();
+
+    private final List<Rule> rules;
+
+    FolderRules(List<Rule> rules) {
+        super();
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Returns the timestamp this rule set was resolved at.
+     * 
+     * @return the timestamp this rule set was resolved at
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns an unmodifiable list of rules, defined on the folder.
+     * 
+     * @return an unmodifiable list of rules, defined on the folder
+     */
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Returns <code>true</code> if there are no rules defined on the folder.
+     * 
+     * @return <code>true</code> if there are no rules defined on the folder
+     */
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return rules.toString();
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.rules;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+
+import org.jahia.services.content.JCRNodeWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Cache for document rule sets, resolved on folders. The entries are keyed by the workspace name and folder identifier and are
+ * invalidated when the document rule mixins or <code>j:documentRule*</code> properties of the folder are changed, except for
+ * the <code>j:documentRuleSourceDigest</code>, which is written on each derived document. When the cache is full, the expired
+ * entries and then the oldest ones are evicted.
+ * 
+ * @author Sergiy Shyrkov
+ */
+@ManagedResource(objectName = "org.jahia.modules.docrules:type=FolderRulesCache",
+        description = "Cache of the document rules per folder")
+public class FolderRulesCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderRulesCache.class);
+
+    private static String getKey(String workspace, String folderIdentifier) {
+        return workspace + "/" + folderIdentifier;
+    }
+
+    private final ConcurrentMap<String, FolderRules> cache = new ConcurrentHashMap<String, FolderRules>();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private int maxEntries = 10000;
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private long timeToLive = 5 * 60 * 1000L;
+
+    /**
+     * Flushes all cache entries.
+     */
+    @ManagedOperation
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Removes the expired entries and, if the cache is still full, the oldest tenth of the entries.
+     */
+    private void evict() {
+        synchronized (cache) {
+            if (cache.size() < maxEntries) {
+                // already done by another thread
+                return;
+            }
+            int size = cache.size();
+            long now = System.currentTimeMillis();
+            long[] created = new long[size];
+            int count = 0;
+            for (Iterator<FolderRules> it = cache.values().iterator(); it.hasNext();) {
+                FolderRules rules = it.next();
+                if (timeToLive > 0 && now - rules.getCreated() >= timeToLive) {
+                    it.remove();
+                } else if (count < created.length) {
+                    created[count++] = rules.getCreated();
+                }
+            }
+            if (cache.size() >= maxEntries && count > 0) {
+                Arrays.sort(created, 0, count);
+                long oldest = created[Math.max(count / 10, 1) - 1];
+                for (Iterator<FolderRules> it = cache.values().iterator(); it.hasNext();) {
+                    if (it.next().getCreated() <= oldest) {
+                        it.remove();
+                    }
+                }
+            }
+            evictions.addAndGet(Math.max(size - cache.size(), 0));
+            if (logger.isDebugEnabled()) {
+                logger.debug("Evicted {} folder rule entries, {} entries remaining", size
+                        - cache.size(), cache.size());
+            }
+        }
+    }
+
+    /**
+     * Returns the document rules, defined on the specified folder, either from cache or by resolving them.
+     * 
+     * @param folder
+     *            the folder node to get rules for
+     * @return the document rules, defined on the specified folder
+     * @throws RepositoryException
+     *             in case of a JCR error
+     */
+    public FolderRules get(JCRNodeWrapper folder) throws RepositoryException {
+        String key = getKey(folder.getSession().getWorkspace().getName(), folder.getIdentifier());
+        FolderRules rules = cache.get(key);
+        if (rules != null
+                && (timeToLive <= 0 || System.currentTimeMillis() - rules.getCreated() < timeToLive)
+                // the mixin change, which removed the last rule of the folder, is not matched by the invalidation rule
+                && (rules.isEmpty() || folder.isNodeType(FolderRules.APPLY_DOCUMENT_RULES))) {
+            hits.incrementAndGet();
+            return rules;
+        }
+
+        misses.incrementAndGet();
+        rules = FolderRules.resolve(folder);
+        if (cache.size() >= maxEntries) {
+            evict();
+        }
+        cache.put(key, rules);
+
+        return rules;
+    }
+
+    @ManagedAttribute
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @ManagedAttribute
+    public long getHits() {
+        return hits.get();
+    }
+
+    @ManagedAttribute
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @ManagedAttribute
+    public int getSize() {
+        return cache.size();
+    }
+
+    /**
+     * Removes the cached rule set for the specified folder.
+     * 
+     * @param workspace
+     *            the workspace name
+     * @param folderIdentifier
+     *            the folder node identifier
+     */
+    public void invalidate(String workspace, String folderIdentifier) {
+        if (cache.remove(getKey(workspace, folderIdentifier)) != null && logger.isDebugEnabled()) {
+            logger.debug("Flushed cached document rules for folder {} in workspace {}",
+                    folderIdentifier, workspace);
+        }
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a resolved rule set is kept in the cache. It is a safety net for changes, not covered by
+     * the explicit invalidation (e.g. modifications done on another cluster node). A value <code>&lt;= 0</code> disables the
+     * expiration.
+     * 
+     * @param timeToLive
+     *            the maximum time in milliseconds a resolved rule set is kept in the cache
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+}
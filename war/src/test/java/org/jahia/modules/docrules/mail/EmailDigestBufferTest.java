@@ -0,0 +1,212 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+
+import org.jahia.services.content.JCRNodeWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link EmailDigestBuffer}, sending the digests via the {@link SmtpMailSender} to an in-process
+ * {@link SmtpStandIn}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class EmailDigestBufferTest {
+
+    private static final String BODY = "#foreach($document in $documents)[$document.name]#end";
+
+    private static final String SUBJECT = "Document notification";
+
+    private static DigestDocument newDocument(final String folder, final String name)
+            throws RepositoryException {
+        JCRNodeWrapper node = (JCRNodeWrapper) Proxy.newProxyInstance(
+                JCRNodeWrapper.class.getClassLoader(), new Class<?>[] { JCRNodeWrapper.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String methodName = method.getName();
+                        if ("getName".equals(methodName)) {
+                            return name;
+                        } else if ("getPath".equals(methodName)) {
+                            return folder + "/" + name;
+                        } else if ("getUrl".equals(methodName)) {
+                            return "/cms/render/default/en" + folder + "/" + name;
+                        } else if ("hasProperty".equals(methodName)) {
+                            return Boolean.FALSE;
+                        }
+                        throw new UnsupportedOperationException(methodName);
+                    }
+                });
+        return new DigestDocument(node);
+    }
+
+    private EmailDigestBuffer buffer;
+
+    private SmtpMailSender sender;
+
+    private SmtpStandIn smtp;
+
+    private void add(String folder, String receivers, String... names) throws RepositoryException {
+        for (String name : names) {
+            buffer.add("default:" + folder, folder, receivers, newDocument(folder, name));
+        }
+    }
+
+    private long awaitDigestsSent(long count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (buffer.getDigestsSent() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return buffer.getDigestsSent();
+    }
+
+    private void start(long window, int maxDocuments, int maxPendingDocuments) throws Exception {
+        buffer.setWindow(window);
+        buffer.setMaxDocuments(maxDocuments);
+        buffer.setMaxPendingDocuments(maxPendingDocuments);
+        buffer.afterPropertiesSet();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        smtp = new SmtpStandIn();
+        smtp.start();
+        sender = new SmtpMailSender();
+        sender.setHost("localhost");
+        sender.setPort(smtp.getPort());
+        sender.setFrom("noreply@example.com");
+
+        TemplateRenderer renderer = new TemplateRenderer();
+        renderer.afterPropertiesSet();
+
+        buffer = new EmailDigestBuffer();
+        buffer.setMailSender(sender);
+        buffer.setTemplateRenderer(renderer);
+        buffer.setSubject(SUBJECT);
+        buffer.setBody(BODY);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        buffer.destroy();
+        sender.destroy();
+        smtp.stop();
+    }
+
+    @Test
+    public void testBoundedBuffer() throws Exception {
+        start(60000, 100, 4);
+        add("/sites/acme/files/a", "a@example.com", "a1.pdf", "a2.pdf");
+        add("/sites/acme/files/b", "b@example.com", "b1.pdf", "b2.pdf");
+        assertEquals(4, buffer.getPendingDocuments());
+
+        // the buffer is full: the oldest digest is sent right away
+        add("/sites/acme/files/c", "c@example.com", "c1.pdf");
+        List<SmtpStandIn.ReceivedMessage> messages = smtp.awaitMessages(1, 5000);
+        assertEquals(1, messages.size());
+        assertEquals(Arrays.asList("a@example.com"), messages.get(0).getRecipients());
+        assertTrue(messages.get(0).getData().contains("[a1.pdf][a2.pdf]"));
+        assertEquals(1, buffer.getEarlyFlushes());
+        assertEquals(3, buffer.getPendingDocuments());
+        assertEquals(2, buffer.getPendingDigests());
+    }
+
+    @Test
+    public void testFlushOnCount() throws Exception {
+        start(60000, 3, 1000);
+        add("/sites/acme/files/a", "a@example.com", "a1.pdf", "a2.pdf");
+        Thread.sleep(200);
+        assertEquals(0, smtp.getMessages().size());
+
+        add("/sites/acme/files/a", "a@example.com", "a3.pdf", "a4.pdf");
+        List<SmtpStandIn.ReceivedMessage> messages = smtp.awaitMessages(1, 5000);
+        assertEquals(1, messages.size());
+        assertEquals(SUBJECT, messages.get(0).getSubject());
+        assertTrue(messages.get(0).getData().contains("[a1.pdf][a2.pdf][a3.pdf]"));
+        assertEquals(1, buffer.getPendingDocuments());
+    }
+
+    @Test
+    public void testFlushOnShutdown() throws Exception {
+        start(60000, 100, 1000);
+        add("/sites/acme/files/a", "a@example.com", "a1.pdf", "a2.pdf");
+        add("/sites/acme/files/a", "b@example.com", "a1.pdf");
+        assertEquals(2, buffer.getPendingDigests());
+        assertEquals(0, smtp.getMessages().size());
+
+        buffer.destroy();
+        List<SmtpStandIn.ReceivedMessage> messages = smtp.awaitMessages(2, 5000);
+        assertEquals(2, messages.size());
+        assertEquals(Arrays.asList("a@example.com"), messages.get(0).getRecipients());
+        assertTrue(messages.get(0).getData().contains("[a1.pdf][a2.pdf]"));
+        assertEquals(Arrays.asList("b@example.com"), messages.get(1).getRecipients());
+        assertEquals(0, buffer.getPendingDigests());
+        assertEquals(2, buffer.getDigestsSent());
+    }
+
+    @Test
+    public void testFlushOnWindow() throws Exception {
+        start(300, 100, 1000);
+        add("/sites/acme/files/a", "a@example.com, b@example.com", "a1.pdf", "a2.pdf",
+                "a3.pdf");
+        assertEquals(0, smtp.getMessages().size());
+
+        List<SmtpStandIn.ReceivedMessage> messages = smtp.awaitMessages(1, 5000);
+        assertEquals(1, messages.size());
+        assertEquals(Arrays.asList("a@example.com", "b@example.com"), messages.get(0)
+                .getRecipients());
+        assertTrue(messages.get(0).getData().contains("[a1.pdf][a2.pdf][a3.pdf]"));
+        assertEquals(0, buffer.getPendingDocuments());
+        assertEquals(1, awaitDigestsSent(1, 5000));
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link MailQueue}, delivering via the {@link SmtpMailSender} to an in-process {@link SmtpStandIn}, which
+ * rejects a number of messages with a transient error.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class MailQueueTest {
+
+    /**
+     * State of the queue to wait for.
+     */
+    private interface Condition {
+        boolean isMet();
+    }
+
+    private static final long TIMEOUT = 10000;
+
+    private static void await(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.isMet() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Condition is not met within " + TIMEOUT + " ms", condition.isMet());
+    }
+
+    private MailQueue queue;
+
+    private SmtpMailSender sender;
+
+    private SmtpStandIn smtp;
+
+    /**
+     * Lets the specified number of delivery attempts fail. The sender retries each message once on a new connection, so each
+     * attempt is rejected twice.
+     */
+    private void failAttempts(int attempts) {
+        smtp.rejectNext(attempts * 2);
+    }
+
+    private void start(int maxAttempts, long initialRetryDelay, long maxRetryDelay)
+            throws Exception {
+        queue.setMaxAttempts(maxAttempts);
+        queue.setInitialRetryDelay(initialRetryDelay);
+        queue.setMaxRetryDelay(maxRetryDelay);
+        queue.afterPropertiesSet();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        smtp = new SmtpStandIn();
+        smtp.start();
+        sender = new SmtpMailSender();
+        sender.setHost("localhost");
+        sender.setPort(smtp.getPort());
+        sender.setFrom("noreply@example.com");
+        queue = new MailQueue();
+        queue.setDelegate(sender);
+        queue.setThreads(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.destroy();
+        sender.destroy();
+        smtp.stop();
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        start(5, 200, 60000);
+        failAttempts(2);
+        long started = System.currentTimeMillis();
+        assertTrue(queue.sendHtmlMessage("john@example.com", "Subject", "<p>Body</p>"));
+
+        assertEquals(1, smtp.awaitMessages(1, TIMEOUT).size());
+        // the delay is doubled with each attempt: 200 ms and 400 ms
+        assertTrue(System.currentTimeMillis() - started >= 600);
+        assertEquals(2, queue.getRetries());
+    }
+
+    @Test
+    public void testBackoffIsCapped() throws Exception {
+        start(5, 100, 100);
+        failAttempts(3);
+        long started = System.currentTimeMillis();
+        assertTrue(queue.sendHtmlMessage("john@example.com", "Subject", "<p>Body</p>"));
+
+        assertEquals(1, smtp.awaitMessages(1, TIMEOUT).size());
+        long elapsed = System.currentTimeMillis() - started;
+        // 3 x 100 ms instead of 100 + 200 + 400 ms
+        assertTrue(elapsed >= 300);
+        assertTrue("Delivered after " + elapsed + " ms", elapsed < 700);
+        assertEquals(3, queue.getRetries());
+    }
+
+    @Test
+    public void testDeadLetterAfterMaxAttempts() throws Exception {
+        start(3, 10, 10);
+        smtp.rejectNext(Integer.MAX_VALUE);
+        assertTrue(queue.sendHtmlMessage("john@example.com", "Subject", "<p>Body</p>"));
+
+        await(new Condition() {
+            public boolean isMet() {
+                return queue.getDeadLettered() == 1;
+            }
+        });
+        assertEquals(2, queue.getRetries());
+        assertEquals(0, queue.getSent());
+        assertEquals(0, queue.getRetryQueueDepth());
+        assertTrue(smtp.getMessages().isEmpty());
+    }
+
+    @Test
+    public void testDeadLetterOnShutdown() throws Exception {
+        start(5, 60000, 60000);
+        failAttempts(1);
+        assertTrue(queue.sendHtmlMessage("john@example.com", "Subject", "<p>Body</p>"));
+        await(new Condition() {
+            public boolean isMet() {
+                return queue.getRetryQueueDepth() == 1;
+            }
+        });
+
+        queue.destroy();
+        assertEquals(1, queue.getDeadLettered());
+        assertEquals(0, queue.getRetryQueueDepth());
+        assertEquals(0, queue.getSent());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        start(3, 50, 50);
+        failAttempts(1);
+        assertTrue(queue.sendHtmlMessage("john@example.com", "Retried", "<p>Body</p>"));
+
+        List<SmtpStandIn.ReceivedMessage> messages = smtp.awaitMessages(1, TIMEOUT);
+        assertEquals(1, messages.size());
+        assertEquals("Retried", messages.get(0).getSubject());
+        await(new Condition() {
+            public boolean isMet() {
+                return queue.getSent() == 1;
+            }
+        });
+        assertEquals(1, queue.getRetries());
+        assertEquals(0, queue.getDeadLettered());
+    }
+
+}
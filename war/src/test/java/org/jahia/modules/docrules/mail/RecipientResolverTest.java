@@ -0,0 +1,258 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.jahia.services.usermanager.JahiaGroup;
+import org.jahia.services.usermanager.JahiaUser;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link RecipientResolver} with in-memory groups and users.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class RecipientResolverTest {
+
+    /**
+     * In-memory group with a modifiable list of members.
+     */
+    private static class TestGroup extends JahiaGroup {
+
+        private final String groupname;
+
+        private final List<Principal> members = new ArrayList<Principal>();
+
+        TestGroup(String groupname) {
+            super();
+            this.groupname = groupname;
+        }
+
+        public boolean addMember(Principal principal) {
+            return members.add(principal);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+
+        @Override
+        public String getGroupKey() {
+            return groupname + ":" + SITE_ID;
+        }
+
+        @Override
+        public String getGroupname() {
+            return groupname;
+        }
+
+        @Override
+        public Collection<Principal> getMembers() {
+            return new ArrayList<Principal>(members);
+        }
+
+        public String getName() {
+            return groupname;
+        }
+
+        public Properties getProperties() {
+            return new Properties();
+        }
+
+        public String getProperty(String key) {
+            return null;
+        }
+
+        public String getProviderName() {
+            return "test";
+        }
+
+        @Override
+        public int getSiteID() {
+            return SITE_ID;
+        }
+
+        @Override
+        public int hashCode() {
+            return groupname.hashCode();
+        }
+
+        public boolean removeMember(Principal principal) {
+            return members.remove(principal);
+        }
+
+        public boolean removeMembers() {
+            members.clear();
+            return true;
+        }
+
+        public boolean removeProperty(String key) {
+            return false;
+        }
+
+        public boolean setProperty(String key, String value) {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return groupname;
+        }
+    }
+
+    private static final int SITE_ID = 1;
+
+    private static JahiaUser newUser(final String username) {
+        return (JahiaUser) Proxy.newProxyInstance(JahiaUser.class.getClassLoader(),
+                new Class<?>[] { JahiaUser.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String methodName = method.getName();
+                        if ("getProperty".equals(methodName)) {
+                            return "j:email".equals(args[0]) ? username + "@example.com" : null;
+                        } else if ("getName".equals(methodName)
+                                || "getUsername".equals(methodName)
+                                || "getUserKey".equals(methodName)
+                                || "toString".equals(methodName)) {
+                            return username;
+                        } else if ("hashCode".equals(methodName)) {
+                            return Integer.valueOf(System.identityHashCode(proxy));
+                        } else if ("equals".equals(methodName)) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private final Map<String, TestGroup> groups = new HashMap<String, TestGroup>();
+
+    private RecipientResolver resolver;
+
+    private TestGroup addGroup(String groupname, String... usernames) {
+        TestGroup group = new TestGroup(groupname);
+        for (String username : usernames) {
+            group.addMember(newUser(username));
+        }
+        groups.put(groupname, group);
+        return group;
+    }
+
+    @Before
+    public void setUp() {
+        resolver = new RecipientResolver() {
+            @Override
+            JahiaGroup lookupGroup(int siteId, String groupName) {
+                return siteId == SITE_ID ? groups.get(groupName) : null;
+            }
+        };
+    }
+
+    @Test
+    public void testBoundedCache() {
+        resolver.setMaxEntries(2);
+        addGroup("editors", "john");
+        addGroup("reviewers", "jane");
+        addGroup("publishers", "jim");
+
+        resolver.resolve(SITE_ID, "editors");
+        resolver.resolve(SITE_ID, "reviewers");
+        // the editors are used more recently than the reviewers
+        resolver.resolve(SITE_ID, "editors");
+        resolver.resolve(SITE_ID, "publishers");
+        assertEquals(2, resolver.getSize());
+        assertEquals(1, resolver.getEvictions());
+
+        resolver.resolve(SITE_ID, "editors");
+        assertEquals(2, resolver.getHits());
+        resolver.resolve(SITE_ID, "reviewers");
+        assertEquals(4, resolver.getMisses());
+    }
+
+    @Test
+    public void testGroupCycle() {
+        TestGroup editors = addGroup("editors", "john");
+        TestGroup reviewers = addGroup("reviewers", "jane");
+        editors.addMember(reviewers);
+        reviewers.addMember(editors);
+
+        assertEquals(new HashSet<String>(Arrays.asList("john@example.com", "jane@example.com")),
+                new HashSet<String>(Arrays.asList(resolver.resolve(SITE_ID, "editors"))));
+        assertEquals(new HashSet<String>(Arrays.asList("john@example.com", "jane@example.com")),
+                new HashSet<String>(Arrays.asList(resolver.resolve(SITE_ID, "reviewers"))));
+        assertNull(resolver.resolve(SITE_ID, "unknown"));
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        TestGroup editors = addGroup("editors", "john");
+        assertEquals(Arrays.asList("john@example.com"),
+                Arrays.asList(resolver.resolve(SITE_ID, "editors")));
+
+        editors.addMember(newUser("jane"));
+        // still cached
+        assertEquals(Arrays.asList("john@example.com"),
+                Arrays.asList(resolver.resolve(SITE_ID, "editors")));
+        assertEquals(1, resolver.getHits());
+
+        resolver.invalidateAll();
+        assertEquals(0, resolver.getSize());
+        assertEquals(Arrays.asList("john@example.com", "jane@example.com"),
+                Arrays.asList(resolver.resolve(SITE_ID, "editors")));
+        assertEquals(2, resolver.getMisses());
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link SmtpMailSender}, sending to an in-process {@link SmtpStandIn}.
+ * 
+ * @author Sergiy Shyrkov
+ */
+public class SmtpMailSenderTest {
+
+    private final List<String> delegated = new ArrayList<String>();
+
+    private SmtpMailSender sender;
+
+    private SmtpStandIn smtp;
+
+    @Before
+    public void setUp() throws Exception {
+        smtp = new SmtpStandIn();
+        smtp.start();
+        sender = new SmtpMailSender();
+        sender.setHost("localhost");
+        sender.setPort(smtp.getPort());
+        sender.setFrom("noreply@example.com");
+        sender.setDelegate(new MailSender() {
+            public boolean sendHtmlMessage(String to, String subject, String body) {
+                delegated.add(to);
+                return true;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.destroy();
+        smtp.stop();
+    }
+
+    @Test
+    public void testDelegatesWithoutHost() throws Exception {
+        sender.setHost(null);
+        assertTrue(sender.sendHtmlMessage("john@example.com", "Subject", "<p>Body</p>"));
+        assertEquals(Arrays.asList("john@example.com"), delegated);
+        assertEquals(0, smtp.getConnections());
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        smtp.stop();
+        assertFalse(sender.sendHtmlMessage("john@example.com", "Subject", "<p>Body</p>"));
+        assertTrue(delegated.isEmpty());
+    }
+
+    @Test
+    public void testReconnectsAfterDroppedConnection() throws Exception {
+        assertTrue(sender.sendHtmlMessage("john@example.com", "First", "<p>1</p>"));
+        smtp.awaitMessages(1, 5000);
+        smtp.dropConnections();
+
+        assertTrue(sender.sendHtmlMessage("john@example.com", "Second", "<p>2</p>"));
+        List<SmtpStandIn.ReceivedMessage> messages = smtp.awaitMessages(2, 5000);
+        assertEquals(2, messages.size());
+        assertEquals("Second", messages.get(1).getSubject());
+        assertEquals(2, smtp.getConnections());
+    }
+
+    @Test
+    public void testReusesConnection() throws Exception {
+        assertTrue(sender.sendHtmlMessage("john@example.com", "First", "<p>1</p>"));
+        assertTrue(sender.sendHtmlMessage("jane@example.com, john@example.com", "Second",
+                "<p>2</p>"));
+        assertTrue(sender.sendHtmlMessage("jane@example.com", "Third", "<p>3</p>"));
+
+        List<SmtpStandIn.ReceivedMessage> messages = smtp.awaitMessages(3, 5000);
+        assertEquals(3, messages.size());
+        assertEquals(Arrays.asList("john@example.com"), messages.get(0).getRecipients());
+        assertEquals(Arrays.asList("jane@example.com", "john@example.com"), messages.get(1)
+                .getRecipients());
+        assertEquals("Third", messages.get(2).getSubject());
+        assertTrue(messages.get(2).getData().contains("<p>3</p>"));
+        assertEquals(1, smtp.getConnections());
+        assertTrue(delegated.isEmpty());
+    }
+
+}
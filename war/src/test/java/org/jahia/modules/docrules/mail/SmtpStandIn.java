@@ -0,0 +1,284 @@
+/**
+ * This file is part of Jahia, next-generation open source CMS:
+ * Jahia's next-generation, open source CMS stems from a widely acknowledged vision
+ * of enterprise application convergence - web, search, document, social and portal -
+ * unified by the simplicity of web content management.
+ *
+ * For more information, please visit http://www.jahia.com.
+ *
+ * Copyright (C) 2002-2013 Jahia Solutions Group SA. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ * As a special exception to the terms and conditions of version 2.0 of
+ * the GPL (or any later version), you may redistribute this Program in connection
+ * with Free/Libre and Open Source Software ("FLOSS") applications as described
+ * in Jahia's FLOSS exception. You should have received a copy of the text
+ * describing the FLOSS exception, and it is also available here:
+ * http://www.jahia.com/license
+ *
+ * Commercial and Supported Versions of the program (dual licensing):
+ * alternatively, commercial and supported versions of the program may be used
+ * in accordance with the terms and conditions contained in a separate
+ * written agreement between you and Jahia Solutions Group SA.
+ *
+ * If you are unsure which license is appropriate for your use,
+ * please contact the sales department at sales@jahia.com.
+ */
+package org.jahia.modules.docrules.mail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process SMTP server for the tests, which accepts all messages and keeps them in memory. It understands the commands,
+ * used by JavaMail for plain SMTP (<code>EHLO</code>, <code>HELO</code>, <code>MAIL</code>, <code>RCPT</code>, <code>DATA</code>,
+ * <code>RSET</code>, <code>NOOP</code> and <code>QUIT</code>) and listens on a free local port. A number of messages can be
+ * rejected with a transient error (see {@link #rejectNext(int)}).
+ * 
+ * @author Sergiy Shyrkov
+ */
+class SmtpStandIn {
+
+    /**
+     * Message, received by the stand-in.
+     */
+    static class ReceivedMessage {
+
+        private final String data;
+
+        private final List<String> recipients;
+
+        ReceivedMessage(List<String> recipients, String data) {
+            super();
+            this.recipients = recipients;
+            this.data = data;
+        }
+
+        String getData() {
+            return data;
+        }
+
+        List<String> getRecipients() {
+            return recipients;
+        }
+
+        String getSubject() {
+            for (String line : data.split("\r\n")) {
+                if (line.length() == 0) {
+                    break;
+                }
+                if (line.startsWith("Subject: ")) {
+                    return line.substring("Subject: ".length());
+                }
+            }
+            return null;
+        }
+    }
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>();
+
+    private final List<Socket> open = Collections.synchronizedList(new ArrayList<Socket>());
+
+    private final AtomicInteger rejections = new AtomicInteger();
+
+    private ServerSocket server;
+
+    /**
+     * Waits until the specified number of messages is received or the timeout is over.
+     * 
+     * @param count
+     *            the number of messages to wait for
+     * @param timeout
+     *            the maximum time to wait in milliseconds
+     * @return the received messages
+     * @throws InterruptedException
+     *             if the current thread is interrupted
+     */
+    List<ReceivedMessage> awaitMessages(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (messages) {
+            long wait;
+            while (messages.size() < count && (wait = deadline - System.currentTimeMillis()) > 0) {
+                messages.wait(wait);
+            }
+            return new ArrayList<ReceivedMessage>(messages);
+        }
+    }
+
+    private void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Closes all client connections, as an SMTP server does after an idle timeout.
+     */
+    void dropConnections() {
+        synchronized (open) {
+            for (Socket socket : open) {
+                close(socket);
+            }
+            open.clear();
+        }
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    List<ReceivedMessage> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<ReceivedMessage>(messages);
+        }
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    private boolean reject() {
+        for (;;) {
+            int left = rejections.get();
+            if (left <= 0) {
+                return false;
+            }
+            if (rejections.compareAndSet(left, left - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Rejects the next messages with a transient error, as a server does, which is temporarily unable to accept mail.
+     * 
+     * @param count
+     *            the number of messages to reject
+     */
+    void rejectNext(int count) {
+        rejections.set(count);
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                "UTF-8"));
+        OutputStream out = socket.getOutputStream();
+        write(out, "220 localhost SMTP stand-in");
+        List<String> recipients = new ArrayList<String>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line;
+            if ("EHLO".equals(command) || "HELO".equals(command)) {
+                write(out, "250 localhost");
+            } else if ("MAIL".equals(command)) {
+                recipients = new ArrayList<String>();
+                write(out, reject() ? "451 Try again later" : "250 OK");
+            } else if ("RCPT".equals(command)) {
+                recipients.add(line.substring(line.indexOf('<') + 1, line.lastIndexOf('>')));
+                write(out, "250 OK");
+            } else if ("DATA".equals(command)) {
+                write(out, "354 End data with <CR><LF>.<CR><LF>");
+                StringBuilder data = new StringBuilder();
+                while ((line = in.readLine()) != null && !".".equals(line)) {
+                    data.append(line.startsWith("..") ? line.substring(1) : line).append("\r\n");
+                }
+                synchronized (messages) {
+                    messages.add(new ReceivedMessage(recipients, data.toString()));
+                    messages.notifyAll();
+                }
+                write(out, "250 OK");
+            } else if ("RSET".equals(command) || "NOOP".equals(command)) {
+                write(out, "250 OK");
+            } else if ("QUIT".equals(command)) {
+                write(out, "221 Bye");
+                break;
+            } else {
+                write(out, "500 Command not recognized");
+            }
+        }
+    }
+
+    /**
+     * Starts listening on a free local port.
+     * 
+     * @throws IOException
+     *             in case of an I/O error
+     */
+    void start() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (!server.isClosed()) {
+                    final Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    connections.incrementAndGet();
+                    open.add(socket);
+                    Thread handler = new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                serve(socket);
+                            } catch (IOException e) {
+                                // connection dropped
+                            } finally {
+                                open.remove(socket);
+                                close(socket);
+                            }
+                        }
+                    }, "smtp-stand-in-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            }
+        }, "smtp-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops listening and closes all client connections.
+     */
+    void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        dropConnections();
+    }
+
+    private void write(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes("UTF-8"));
+        out.flush();
+    }
+
+}